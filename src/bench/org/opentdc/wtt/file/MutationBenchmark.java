@@ -0,0 +1,105 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.opentdc.wtt.ProjectModel;
+import org.opentdc.wtt.ResourceRefModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Write paths, including the cost of the persistence mode (none, sync, journal or writeBehind).
+ * <pre>
+ * ant bench -Dbench.args="MutationBenchmark -p persistence=journal,writeBehind"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MutationBenchmark {
+
+	/**
+	 * A company that is created before each invocation of deleteCompany, outside of the measured time.
+	 */
+	@State(Scope.Thread)
+	public static class DeletableCompany {
+		public String companyId;
+
+		@Setup(Level.Invocation)
+		public void setUp(
+				ProviderState state) {
+			companyId = state.data.createCompany(state.provider);
+		}
+	}
+
+	/**
+	 * The data set grows by one project per invocation.
+	 */
+	@Benchmark
+	public ProjectModel createSubproject(
+			ProviderState state) {
+		String _companyId = state.companyId(ThreadLocalRandom.current().nextInt());
+		String _projectId = state.provider.listProjects(_companyId, null, null, 0, 1).get(0).getId();
+		return state.provider.createSubproject(BenchmarkServiceProvider.newRequest(), _companyId, _projectId,
+				state.data.newProject());
+	}
+
+	/**
+	 * Adds a resourceRef and removes it again, so that the data set does not grow.
+	 */
+	@Benchmark
+	public ResourceRefModel addAndRemoveResourceRef(
+			ProviderState state) {
+		String _companyId = state.companyId(ThreadLocalRandom.current().nextInt());
+		String _projectId = state.provider.listProjects(_companyId, null, null, 0, 1).get(0).getId();
+		ResourceRefModel _resourceRef = state.provider.addResourceRef(BenchmarkServiceProvider.newRequest(),
+				_companyId, _projectId, state.data.newResourceRef());
+		state.provider.removeResourceRef(_companyId, _projectId, _resourceRef.getId());
+		return _resourceRef;
+	}
+
+	/**
+	 * Deletes a company including all its projects and resourceRefs (cascade).
+	 */
+	@Benchmark
+	public void deleteCompany(
+			ProviderState state,
+			DeletableCompany company) {
+		state.provider.deleteCompany(company.companyId);
+	}
+}
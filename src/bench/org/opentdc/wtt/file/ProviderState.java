@@ -0,0 +1,141 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A provider with synthetic data, shared by the threads of a benchmark.
+ * The persistence parameter is none (in memory only) or a wtt.persistenceMode (sync, journal, writeBehind).
+ */
+@State(Scope.Benchmark)
+public class ProviderState {
+	@Param({ "100" })
+	public int companies;
+
+	@Param({ "10" })
+	public int projects;
+
+	@Param({ "2" })
+	public int depth;
+
+	@Param({ "3" })
+	public int fanOut;
+
+	@Param({ "2" })
+	public int resources;
+
+	@Param({ "none", "sync", "journal", "writeBehind" })
+	public String persistence;
+
+	public BenchmarkServiceProvider provider;
+	public SyntheticData data;
+	public List<String> companyIds;
+	public File directory;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("wtt-bench").toFile();
+		data = new SyntheticData(projects, depth, fanOut, resources);
+		if ("none".equals(persistence)) {
+			provider = BenchmarkServiceProvider.create(directory, false, new HashMap<String, String>());
+			companyIds = data.createCompanies(provider, companies);
+		} else {
+			// build the data with a single write, then import it with the persistence mode under test
+			provider = BenchmarkServiceProvider.create(directory, true, bulkLoadParameters());
+			companyIds = data.createCompanies(provider, companies);
+			Map<String, String> _parameters = new HashMap<String, String>();
+			_parameters.put("wtt.persistenceMode", persistence);
+			provider = BenchmarkServiceProvider.create(directory, true, _parameters);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		BenchmarkServiceProvider.reset();
+		delete(directory);
+	}
+
+	/**
+	 * @return the id of a company, chosen by the index
+	 */
+	public String companyId(
+			int index) {
+		return companyIds.get(Math.abs(index % companyIds.size()));
+	}
+
+	/**
+	 * @return servlet context parameters that defer all writes until the provider is reset
+	 */
+	public static Map<String, String> bulkLoadParameters() {
+		Map<String, String> _parameters = new HashMap<String, String>();
+		_parameters.put("wtt.persistenceMode", "writeBehind");
+		_parameters.put("wtt.writeBehind.interval", "86400000");
+		_parameters.put("wtt.writeBehind.maxPending", String.valueOf(Integer.MAX_VALUE));
+		return _parameters;
+	}
+
+	/**
+	 * Delete a directory including its content.
+	 * 
+	 * @param directory
+	 * @throws IOException
+	 */
+	public static void delete(
+			File directory)
+					throws IOException {
+		if (directory == null || ! directory.exists()) {
+			return;
+		}
+		Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException ex) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
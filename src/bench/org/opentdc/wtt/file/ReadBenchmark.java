@@ -0,0 +1,95 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.opentdc.wtt.CompanyModel;
+import org.opentdc.wtt.ProjectModel;
+import org.opentdc.wtt.ProjectTreeNodeModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Read paths: listing (with paging) and reading project trees.
+ * Reads do not write, so the results do not depend on the persistence mode.
+ * <pre>
+ * ant bench -Dbench.args="ReadBenchmark -p persistence=none -p companies=1000"
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadBenchmark {
+	private static final int PAGE_SIZE = 20;
+
+	@Benchmark
+	public List<CompanyModel> listCompanies(
+			ProviderState state) {
+		int _position = ThreadLocalRandom.current().nextInt(Math.max(1, state.companies - PAGE_SIZE));
+		return state.provider.listCompanies(null, null, _position, PAGE_SIZE);
+	}
+
+	@Benchmark
+	public List<CompanyModel> searchCompanies(
+			ProviderState state) {
+		return state.provider.listCompanies("company 1", "title", 0, PAGE_SIZE);
+	}
+
+	@Benchmark
+	public List<ProjectModel> listProjects(
+			ProviderState state) {
+		ThreadLocalRandom _random = ThreadLocalRandom.current();
+		int _position = _random.nextInt(Math.max(1, state.projects - PAGE_SIZE));
+		return state.provider.listProjects(state.companyId(_random.nextInt()), null, null, _position, PAGE_SIZE);
+	}
+
+	/**
+	 * Served from the tree cache after the first read of each company.
+	 */
+	@Benchmark
+	public ProjectTreeNodeModel readAsTree(
+			ProviderState state) {
+		return state.provider.readAsTree(state.companyId(ThreadLocalRandom.current().nextInt()));
+	}
+
+	/**
+	 * Builds the whole tree on each call, because only trees without a depth limit are cached.
+	 */
+	@Benchmark
+	public ProjectTreeNodeModel readAsTreeUncached(
+			ProviderState state) {
+		return state.provider.readAsTree(state.companyId(ThreadLocalRandom.current().nextInt()),
+				null, Integer.MAX_VALUE, true);
+	}
+}
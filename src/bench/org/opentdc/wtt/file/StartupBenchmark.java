@@ -0,0 +1,107 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Startup: reading the snapshot and building all indexes, per snapshot format and sharding.
+ * <pre>
+ * ant bench -Dbench.args="StartupBenchmark -p companies=10000 -p format=binary"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StartupBenchmark {
+	@Param({ "1000" })
+	public int companies;
+
+	@Param({ "10" })
+	public int projects;
+
+	@Param({ "2" })
+	public int depth;
+
+	@Param({ "3" })
+	public int fanOut;
+
+	@Param({ "2" })
+	public int resources;
+
+	@Param({ "json", "binary" })
+	public String format;
+
+	@Param({ "none", "company" })
+	public String sharding;
+
+	private File directory;
+	private Map<String, String> parameters;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("wtt-bench").toFile();
+		parameters = new HashMap<String, String>();
+		parameters.put("wtt.snapshot.format", format);
+		parameters.put("wtt.snapshot.sharding", sharding);
+		Map<String, String> _bulkLoad = ProviderState.bulkLoadParameters();
+		_bulkLoad.putAll(parameters);
+		FileServiceProvider _provider = BenchmarkServiceProvider.create(directory, true, _bulkLoad);
+		new SyntheticData(projects, depth, fanOut, resources).createCompanies(_provider, companies);
+		BenchmarkServiceProvider.reset();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		BenchmarkServiceProvider.reset();
+		ProviderState.delete(directory);
+	}
+
+	@Benchmark
+	public FileServiceProvider importCompanies() throws IOException {
+		return BenchmarkServiceProvider.create(directory, true, parameters);
+	}
+}
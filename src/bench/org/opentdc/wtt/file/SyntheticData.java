@@ -0,0 +1,140 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.opentdc.wtt.CompanyModel;
+import org.opentdc.wtt.ProjectModel;
+import org.opentdc.wtt.ResourceRefModel;
+
+/**
+ * Builds synthetic companies with project trees of a configurable size:
+ * each company has the given number of top-level projects, each project has fanOut subprojects
+ * down to the given depth, and each project has the given number of resourceRefs.
+ */
+public class SyntheticData {
+	private final int projects;
+	private final int depth;
+	private final int fanOut;
+	private final int resources;
+	private int counter = 0;
+
+	/**
+	 * @param projects the number of top-level projects per company
+	 * @param depth the number of subproject levels below the top-level projects
+	 * @param fanOut the number of subprojects per project
+	 * @param resources the number of resourceRefs per project
+	 */
+	public SyntheticData(
+			int projects,
+			int depth,
+			int fanOut,
+			int resources) {
+		this.projects = projects;
+		this.depth = depth;
+		this.fanOut = fanOut;
+		this.resources = resources;
+	}
+
+	/**
+	 * Create companies including their project trees.
+	 * 
+	 * @param provider
+	 * @param companies the number of companies
+	 * @return the ids of the new companies
+	 */
+	public List<String> createCompanies(
+			FileServiceProvider provider,
+			int companies) {
+		List<String> _ids = new ArrayList<String>(companies);
+		for (int i = 0; i < companies; i++) {
+			_ids.add(createCompany(provider));
+		}
+		return _ids;
+	}
+
+	/**
+	 * Create one company including its project tree.
+	 * 
+	 * @param provider
+	 * @return the id of the new company
+	 */
+	public String createCompany(
+			FileServiceProvider provider) {
+		HttpServletRequest _request = BenchmarkServiceProvider.newRequest();
+		int _number = nextNumber();
+		CompanyModel _company = new CompanyModel();
+		_company.setTitle("Company " + _number);
+		_company.setDescription("synthetic company");
+		_company.setOrgId("org" + _number);
+		String _id = provider.createCompany(_request, _company).getId();
+		List<ProjectSubtree> _subtrees = new ArrayList<ProjectSubtree>(projects);
+		for (int i = 0; i < projects; i++) {
+			_subtrees.add(newSubtree(depth));
+		}
+		provider.createProjectTree(_request, _id, null, _subtrees);
+		return _id;
+	}
+
+	/**
+	 * @return a new project that is not yet created
+	 */
+	public ProjectModel newProject() {
+		ProjectModel _project = new ProjectModel();
+		_project.setTitle("Project " + nextNumber());
+		_project.setDescription("synthetic project");
+		return _project;
+	}
+
+	/**
+	 * @return a new resourceRef that is not yet created
+	 */
+	public ResourceRefModel newResourceRef() {
+		ResourceRefModel _resourceRef = new ResourceRefModel();
+		_resourceRef.setResourceId("resource" + (nextNumber() % 1000));
+		return _resourceRef;
+	}
+
+	private ProjectSubtree newSubtree(
+			int levels) {
+		ProjectSubtree _subtree = new ProjectSubtree(newProject());
+		for (int i = 0; i < resources; i++) {
+			_subtree.addResource(newResourceRef());
+		}
+		if (levels > 0) {
+			for (int i = 0; i < fanOut; i++) {
+				_subtree.addSubproject(newSubtree(levels - 1));
+			}
+		}
+		return _subtree;
+	}
+
+	private synchronized int nextNumber() {
+		return counter++;
+	}
+}
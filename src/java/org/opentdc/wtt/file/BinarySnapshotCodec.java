@@ -0,0 +1,306 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opentdc.wtt.CompanyModel;
+import org.opentdc.wtt.ProjectModel;
+import org.opentdc.wtt.ResourceRefModel;
+
+/**
+ * Compact binary snapshot format for WttCompany trees.
+ * <pre>
+ * snapshot := MAGIC version:int count:int company* END
+ * company  := companyModel modelVersion:long count:int project*
+ * project  := projectModel modelVersion:long count:int resourceRef* count:int project*
+ * </pre>
+ * The END marker tells a complete snapshot from a truncated one without parsing it (see isComplete()).
+ * Version 2 snapshots (without END) and version 1 snapshots (without END and modelVersion) can still be read.
+ * Strings are interned per snapshot: the first occurrence is written as NEW_STRING,
+ * length and UTF-8 bytes; each further occurrence only as its index in the string table.
+ * Dates are written as epoch millis (NULL_DATE for null).
+ * A codec instance holds the string table of one stream and must not be reused.
+ */
+public class BinarySnapshotCodec {
+	public static final int MAGIC = 0x57545442;		// "WTTB"
+	public static final int END = 0x57545445;		// "WTTE"
+	private static final int VERSION = 3;
+	private static final int VERSION_WITHOUT_END = 2;
+	private static final int VERSION_WITHOUT_MODEL_VERSIONS = 1;
+	private static final int NULL_STRING = -1;
+	private static final int NEW_STRING = -2;
+	private static final long NULL_DATE = Long.MIN_VALUE;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final Map<String, Integer> writtenStrings = new HashMap<String, Integer>();
+	private final List<String> readStrings = new ArrayList<String>();
+	private int readVersion = VERSION;
+
+	/**
+	 * Write all companies including their projects and resourceRefs.
+	 *
+	 * @param out
+	 * @param companies
+	 * @throws IOException
+	 */
+	public void write(
+			DataOutputStream out,
+			Collection<WttCompany> companies)
+					throws IOException {
+		List<WttCompany> _companies = new ArrayList<WttCompany>(companies);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(_companies.size());
+		for (WttCompany _company : _companies) {
+			writeCompany(out, _company.getModel());
+			out.writeLong(_company.getVersion());
+			writeProjects(out, _company.getProjects());
+		}
+		out.writeInt(END);
+		out.flush();
+	}
+
+	/**
+	 * Read a snapshot and pass each company to the handler as soon as it is read.
+	 *
+	 * @param in
+	 * @param handler
+	 * @return the number of companies read
+	 * @throws IOException
+	 */
+	public int read(
+			DataInputStream in,
+			SnapshotReader.CompanyHandler handler)
+					throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("not a binary wtt snapshot.");
+		}
+		readVersion = in.readInt();
+		if (readVersion < VERSION_WITHOUT_MODEL_VERSIONS || readVersion > VERSION) {
+			throw new IOException("unsupported binary snapshot version <" + readVersion + ">.");
+		}
+		int _count = in.readInt();
+		for (int i = 0; i < _count; i++) {
+			WttCompany _company = new WttCompany();
+			_company.setModel(readCompany(in));
+			_company.setVersion(readModelVersion(in));
+			_company.setProjects(readProjects(in));
+			handler.handle(_company);
+		}
+		if (readVersion > VERSION_WITHOUT_END && in.readInt() != END) {
+			throw new IOException("binary snapshot has no end marker after " + _count + " companies.");
+		}
+		return _count;
+	}
+
+	/**
+	 * Check the end marker of a binary snapshot without reading its companies.
+	 *
+	 * @param file a file that starts with MAGIC
+	 * @return false if the snapshot is truncated; snapshots before version 3 have no end marker and count as complete
+	 * @throws IOException
+	 */
+	public static boolean isComplete(
+			RandomAccessFile file)
+					throws IOException {
+		if (file.length() < 12) {
+			return false;
+		}
+		file.seek(4);
+		if (file.readInt() <= VERSION_WITHOUT_END) {
+			return true;
+		}
+		if (file.length() < 16) {
+			return false;
+		}
+		file.seek(file.length() - 4);
+		return file.readInt() == END;
+	}
+
+	private void writeCompany(
+			DataOutputStream out,
+			CompanyModel c)
+					throws IOException {
+		writeString(out, c.getId());
+		writeString(out, c.getTitle());
+		writeString(out, c.getDescription());
+		writeString(out, c.getOrgId());
+		writeDate(out, c.getCreatedAt());
+		writeString(out, c.getCreatedBy());
+		writeDate(out, c.getModifiedAt());
+		writeString(out, c.getModifiedBy());
+	}
+
+	private CompanyModel readCompany(
+			DataInputStream in)
+					throws IOException {
+		CompanyModel _c = new CompanyModel();
+		_c.setId(readString(in));
+		_c.setTitle(readString(in));
+		_c.setDescription(readString(in));
+		_c.setOrgId(readString(in));
+		_c.setCreatedAt(readDate(in));
+		_c.setCreatedBy(readString(in));
+		_c.setModifiedAt(readDate(in));
+		_c.setModifiedBy(readString(in));
+		return _c;
+	}
+
+	private void writeProjects(
+			DataOutputStream out,
+			List<WttProject> projects)
+					throws IOException {
+		out.writeInt(projects.size());
+		for (WttProject _project : projects) {
+			ProjectModel _p = _project.getModel();
+			writeString(out, _p.getId());
+			writeString(out, _p.getTitle());
+			writeString(out, _p.getDescription());
+			writeDate(out, _p.getCreatedAt());
+			writeString(out, _p.getCreatedBy());
+			writeDate(out, _p.getModifiedAt());
+			writeString(out, _p.getModifiedBy());
+			out.writeLong(_project.getVersion());
+			out.writeInt(_project.getResources().size());
+			for (ResourceRefModel _r : _project.getResources()) {
+				writeString(out, _r.getId());
+				writeString(out, _r.getResourceId());
+				writeString(out, _r.getResourceName());
+				writeDate(out, _r.getCreatedAt());
+				writeString(out, _r.getCreatedBy());
+				writeDate(out, _r.getModifiedAt());
+				writeString(out, _r.getModifiedBy());
+			}
+			writeProjects(out, _project.getProjects());
+		}
+	}
+
+	private List<WttProject> readProjects(
+			DataInputStream in)
+					throws IOException {
+		int _count = in.readInt();
+		List<WttProject> _projects = new ArrayList<WttProject>(_count);
+		for (int i = 0; i < _count; i++) {
+			ProjectModel _p = new ProjectModel();
+			_p.setId(readString(in));
+			_p.setTitle(readString(in));
+			_p.setDescription(readString(in));
+			_p.setCreatedAt(readDate(in));
+			_p.setCreatedBy(readString(in));
+			_p.setModifiedAt(readDate(in));
+			_p.setModifiedBy(readString(in));
+			WttProject _project = new WttProject();
+			_project.setModel(_p);
+			_project.setVersion(readModelVersion(in));
+			int _resourceCount = in.readInt();
+			List<ResourceRefModel> _resources = new ArrayList<ResourceRefModel>(_resourceCount);
+			for (int j = 0; j < _resourceCount; j++) {
+				ResourceRefModel _r = new ResourceRefModel();
+				_r.setId(readString(in));
+				_r.setResourceId(readString(in));
+				_r.setResourceName(readString(in));
+				_r.setCreatedAt(readDate(in));
+				_r.setCreatedBy(readString(in));
+				_r.setModifiedAt(readDate(in));
+				_r.setModifiedBy(readString(in));
+				_resources.add(_r);
+			}
+			_project.setResources(_resources);
+			_project.setProjects(readProjects(in));
+			_projects.add(_project);
+		}
+		return _projects;
+	}
+
+	private long readModelVersion(
+			DataInputStream in)
+					throws IOException {
+		return readVersion == VERSION_WITHOUT_MODEL_VERSIONS ? 0 : in.readLong();
+	}
+
+	private void writeString(
+			DataOutputStream out,
+			String s)
+					throws IOException {
+		if (s == null) {
+			out.writeInt(NULL_STRING);
+			return;
+		}
+		Integer _index = writtenStrings.get(s);
+		if (_index != null) {
+			out.writeInt(_index);
+			return;
+		}
+		writtenStrings.put(s, writtenStrings.size());
+		byte[] _bytes = s.getBytes(UTF8);
+		out.writeInt(NEW_STRING);
+		out.writeInt(_bytes.length);
+		out.write(_bytes);
+	}
+
+	private String readString(
+			DataInputStream in)
+					throws IOException {
+		int _tag = in.readInt();
+		if (_tag == NULL_STRING) {
+			return null;
+		}
+		if (_tag == NEW_STRING) {
+			byte[] _bytes = new byte[in.readInt()];
+			in.readFully(_bytes);
+			String _s = new String(_bytes, UTF8);
+			readStrings.add(_s);
+			return _s;
+		}
+		if (_tag < 0 || _tag >= readStrings.size()) {
+			throw new IOException("invalid string reference <" + _tag + "> in binary snapshot.");
+		}
+		return readStrings.get(_tag);
+	}
+
+	private void writeDate(
+			DataOutputStream out,
+			Date d)
+					throws IOException {
+		out.writeLong(d == null ? NULL_DATE : d.getTime());
+	}
+
+	private Date readDate(
+			DataInputStream in)
+					throws IOException {
+		long _time = in.readLong();
+		return _time == NULL_DATE ? null : new Date(_time);
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import org.opentdc.wtt.ProjectTreeNodeModel;
+
+/**
+ * The cached ProjectTreeNodeModel of a company or project.
+ * A tree is only stored if the cache was not invalidated while it was built,
+ * so that a reader can not put back a tree that misses a concurrent change.
+ * The cached trees share their subtrees; they consist of frozen ReadOnlyTreeNodes, so that
+ * FileServiceProvider.readAsTree() can return them without copying.
+ */
+public class CachedTree {
+	private ProjectTreeNodeModel tree = null;
+	private long stamp = 0;
+
+	/**
+	 * @return the cached tree or null if the tree needs to be built
+	 */
+	public synchronized ProjectTreeNodeModel get() {
+		return tree;
+	}
+
+	/**
+	 * @return the stamp to be passed to put() after the tree was built
+	 */
+	public synchronized long getStamp() {
+		return stamp;
+	}
+
+	/**
+	 * Store a tree unless the cache was invalidated since getStamp() was called.
+	 * 
+	 * @param tree
+	 * @param stamp
+	 */
+	public synchronized void put(
+			ProjectTreeNodeModel tree,
+			long stamp) {
+		if (this.stamp == stamp) {
+			this.tree = tree;
+		}
+	}
+
+	public synchronized void invalidate() {
+		tree = null;
+		stamp++;
+	}
+}
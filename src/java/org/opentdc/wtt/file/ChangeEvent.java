@@ -0,0 +1,93 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.util.Date;
+
+import org.opentdc.wtt.file.JournalEntry.EntityType;
+import org.opentdc.wtt.file.JournalEntry.Op;
+
+/**
+ * A mutation in the change feed: which entity of which company was created, updated or deleted.
+ */
+public class ChangeEvent {
+	private final long sequence;
+	private final Op op;
+	private final EntityType type;
+	private final String id;
+	private final String companyId;
+	private final String parentId;
+	private final Date createdAt;
+
+	public ChangeEvent(
+			long sequence,
+			Op op,
+			EntityType type,
+			String id,
+			String companyId,
+			String parentId,
+			Date createdAt) {
+		this.sequence = sequence;
+		this.op = op;
+		this.type = type;
+		this.id = id;
+		this.companyId = companyId;
+		this.parentId = parentId;
+		this.createdAt = createdAt;
+	}
+
+	/**
+	 * @return the sequence number; it is unique and increases with each mutation
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	public Op getOp() {
+		return op;
+	}
+
+	public EntityType getType() {
+		return type;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getCompanyId() {
+		return companyId;
+	}
+
+	/**
+	 * @return the parent project of a project or the project of a resourceRef; null for a top-level project or a company
+	 */
+	public String getParentId() {
+		return parentId;
+	}
+
+	public Date getCreatedAt() {
+		return createdAt;
+	}
+}
@@ -0,0 +1,162 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Bounded in-memory ring of the most recent mutations, so that a client can fetch the changes
+ * since its last sequence number instead of reloading all data.
+ * <p>
+ * The first sequence number of a run is derived from the start time, so that sequence numbers
+ * also increase across restarts: a cursor of a previous run is older than all events of the
+ * current run and is therefore reported as expired. As a run may issue sequence numbers faster
+ * than the clock advances, the sequence numbers are reserved in blocks in a SequenceFile,
+ * and the next run starts above the reserved block if the start time is not beyond it.
+ */
+public class ChangeFeed {
+	private static final long RESERVATION = 100000;		// sequence numbers reserved per write of the SequenceFile
+
+	private final ChangeEvent[] ring;
+	private final SequenceFile sequenceFile;
+	private final long initialSequence;
+	private long lastSequence;		// guarded by this
+	private long firstSequence;		// the oldest sequence number in the ring, guarded by this
+	private long reservedSequence;	// the sequence numbers up to this one are reserved in the sequence file, guarded by this
+
+	/**
+	 * A feed whose sequence numbers are only derived from the start time, e.g. if nothing is persisted.
+	 * 
+	 * @param capacity the number of events kept
+	 */
+	public ChangeFeed(
+			int capacity) {
+		this.ring = new ChangeEvent[Math.max(1, capacity)];
+		this.sequenceFile = null;
+		this.initialSequence = System.currentTimeMillis() * 1000;
+		this.lastSequence = initialSequence;
+		this.firstSequence = lastSequence + 1;
+	}
+
+	/**
+	 * @param capacity the number of events kept
+	 * @param sequenceFile the bound of the sequence numbers of the previous runs; the bound of this run is reserved in it
+	 * @throws IOException
+	 */
+	public ChangeFeed(
+			int capacity,
+			SequenceFile sequenceFile)
+					throws IOException {
+		this.ring = new ChangeEvent[Math.max(1, capacity)];
+		this.sequenceFile = sequenceFile;
+		this.initialSequence = Math.max(System.currentTimeMillis() * 1000, sequenceFile.read() + 1);
+		this.lastSequence = initialSequence;
+		this.firstSequence = lastSequence + 1;
+		reserve(initialSequence);
+	}
+
+	/**
+	 * Append the events of journaled mutations; each one gets the next sequence number.
+	 * 
+	 * @param entries
+	 * @return the sequence number of the last entry
+	 * @throws IOException if the next block of sequence numbers could not be reserved
+	 */
+	public synchronized long append(
+			JournalEntry... entries)
+					throws IOException {
+		if (sequenceFile != null && lastSequence + entries.length > reservedSequence) {
+			reserve(lastSequence + entries.length);
+		}
+		Date _now = new Date();
+		for (JournalEntry _entry : entries) {
+			long _sequence = ++lastSequence;
+			ring[(int) (_sequence % ring.length)] = new ChangeEvent(_sequence, _entry.getOp(), _entry.getType(),
+					_entry.getId(), _entry.getCompanyId(), _entry.getParentId(), _now);
+			firstSequence = Math.max(firstSequence, _sequence - ring.length + 1);
+		}
+		return lastSequence;
+	}
+
+	/**
+	 * Reserve the sequence numbers up to a sequence number and the following block.
+	 * 
+	 * @param sequence
+	 * @throws IOException
+	 */
+	private synchronized void reserve(
+			long sequence)
+					throws IOException {
+		sequenceFile.write(sequence + RESERVATION);
+		reservedSequence = sequence + RESERVATION;
+	}
+
+	/**
+	 * @return the sequence number before the first change of this run; it is greater than all sequence numbers of previous runs
+	 */
+	public long getInitialSequence() {
+		return initialSequence;
+	}
+
+	/**
+	 * @return the sequence number of the latest event; a client starts with it before it loads the data
+	 */
+	public synchronized long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * Return the events after a sequence number, oldest first.
+	 * 
+	 * @param sequence the last sequence number the client has seen
+	 * @param companyId only return the events of this company; null for all companies
+	 * @param size the maximal number of events
+	 * @return the events and the sequence number to continue with
+	 * @throws ChangeFeedExpiredException if events after the sequence number were already dropped from the ring,
+	 * 		or if the sequence number is not from the current run
+	 */
+	public synchronized ChangeSet getChangesSince(
+			long sequence,
+			String companyId,
+			int size)
+					throws ChangeFeedExpiredException {
+		if (sequence < firstSequence - 1 || sequence > lastSequence) {
+			throw new ChangeFeedExpiredException("changes since <" + sequence + "> are no longer available; the oldest available change is <"
+					+ firstSequence + ">.");
+		}
+		List<ChangeEvent> _events = new ArrayList<ChangeEvent>();
+		long _sequence = sequence;
+		while (_sequence < lastSequence && _events.size() < size) {
+			_sequence++;
+			ChangeEvent _event = ring[(int) (_sequence % ring.length)];
+			if (companyId == null || companyId.equals(_event.getCompanyId())) {
+				_events.add(_event);
+			}
+		}
+		return new ChangeSet(_events, _sequence);
+	}
+}
@@ -23,14 +23,28 @@
  */
 package org.opentdc.wtt.file;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.servlet.ServletContext;
@@ -49,12 +63,65 @@ import org.opentdc.wtt.ProjectModel;
 import org.opentdc.wtt.ProjectTreeNodeModel;
 import org.opentdc.wtt.ResourceRefModel;
 import org.opentdc.wtt.ServiceProvider;
+import org.opentdc.wtt.file.JournalEntry.EntityType;
+import org.opentdc.wtt.file.JournalEntry.Op;
 
 public class FileServiceProvider extends AbstractFileServiceProvider<WttCompany> implements ServiceProvider {
 	protected static Map<String, WttCompany> companyIndex = null;		// companyId, WttCompany
 	protected static Map<String, WttProject> projectIndex = null;		// projectId, WttProject
-	protected static Map<String, ResourceRefModel> resourceIndex = null;	// resourceRefId, ResourceRefModel
+	protected static Map<String, WttResourceRef> resourceIndex = null;	// resourceRefId, resourceRef and its project
+	protected static ConcurrentMap<String, Set<WttResourceRef>> resourceRefsByResource = null;	// resourceId, its resourceRefs
+	protected static volatile List<WttCompany> companyOrder = null;	// all companies, sorted by WttCompany.COMPARATOR (copy-on-write)
+	private static final Object companyOrderLock = new Object();
+	protected static WttSearchIndex searchIndex = null;			// query support for the list methods
+	private static final String COMPANY_SCOPE = "companies";
 	private static final Logger logger = Logger.getLogger(FileServiceProvider.class.getName());
+	public static final long ANY_VERSION = -1;		// expected version of an unconditional update
+
+	// servlet context parameters
+	private static final String PERSISTENCE_MODE_PARAM = "wtt.persistenceMode";	// sync (default) | journal | writeBehind
+	private static final String COMPACTION_THRESHOLD_PARAM = "wtt.journal.compactionThreshold";
+	private static final String FLUSH_INTERVAL_PARAM = "wtt.writeBehind.interval";		// millis
+	private static final String FLUSH_THRESHOLD_PARAM = "wtt.writeBehind.maxPending";
+	private static final String GENERATIONS_PARAM = "wtt.snapshot.generations";
+	private static final String ID_GENERATOR_PARAM = "wtt.idGenerator";			// timeOrdered (default) | random
+	private static final String NAME_CACHE_SIZE_PARAM = "wtt.resourceNameCache.size";
+	private static final String NAME_CACHE_TTL_PARAM = "wtt.resourceNameCache.ttl";		// millis
+	private static final String SNAPSHOT_FORMAT_PARAM = "wtt.snapshot.format";		// json (default) | binary
+	private static final String SHARDING_PARAM = "wtt.snapshot.sharding";		// none (default) | company
+	private static final String MAX_RESIDENT_PARAM = "wtt.residentCompanies.max";	// 0 (default): all companies stay loaded
+	private static final String MIN_IDLE_PARAM = "wtt.residentCompanies.minIdle";		// millis
+	private static final String CHANGE_FEED_CAPACITY_PARAM = "wtt.changeFeed.capacity";	// number of changes kept
+	private static final String DATA_FN = "/data.json";
+	private static final String BINARY_DATA_FN = "/data.bin";
+	private static final String SEED_FN = "/seed.json";
+	private static final String JOURNAL_FN = "/journal.json";
+	private static final String SEQUENCE_FN = "/sequence";
+	private static final String SHARD_DIR = "/companies";
+	private static final int DEFAULT_GENERATIONS = 2;
+	private static final int DEFAULT_COMPACTION_THRESHOLD = 1000;
+	private static final long DEFAULT_FLUSH_INTERVAL = 5000;
+	private static final int DEFAULT_FLUSH_THRESHOLD = 1000;
+	private static final int DEFAULT_NAME_CACHE_SIZE = 10000;
+	private static final long DEFAULT_NAME_CACHE_TTL = 60000;
+	private static final long DEFAULT_MIN_IDLE = 10000;
+	private static final int DEFAULT_CHANGE_FEED_CAPACITY = 10000;
+
+	protected static SnapshotWriter snapshotWriter = null;
+	protected static ShardedSnapshotStore shardStore = null;	// null unless each company is stored in its own file
+	protected static final Set<String> dirtyCompanies = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());	// companyIds of unwritten shards
+	protected static WttJournal journal = null;		// null unless persistenceMode is journal
+	protected static WriteBehindFlusher flusher = null;	// null unless persistenceMode is writeBehind
+	private static int compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+	private static final AtomicLong treeCacheHits = new AtomicLong();
+	private static final AtomicLong treeCacheMisses = new AtomicLong();
+	protected static ResourceNameCache resourceNameCache = null;		// resourceId, resource name
+	protected static IdGenerator idGenerator = null;
+	protected static ResidentCompanies residentCompanies = null;	// null unless companies are loaded on demand
+	protected static ChangeFeed changeFeed = null;		// the most recent mutations, for incremental client sync
+	private static final AtomicLong companyLoads = new AtomicLong();
+	private static final AtomicLong companyEvictions = new AtomicLong();
+	private static final WttMetrics metrics = new WttMetrics();
 
 	public FileServiceProvider(
 		ServletContext context,
@@ -65,23 +132,166 @@ public class FileServiceProvider extends AbstractFileServiceProvider<WttCompany>
 			// initialize the indexes
 			companyIndex = new ConcurrentHashMap<String, WttCompany>();
 			projectIndex = new ConcurrentHashMap<String, WttProject>();
-			resourceIndex = new ConcurrentHashMap<String, ResourceRefModel>();
-			
-			List<WttCompany> _companies = importJson();
+			resourceIndex = new ConcurrentHashMap<String, WttResourceRef>();
+			resourceRefsByResource = new ConcurrentHashMap<String, Set<WttResourceRef>>();
+			companyOrder = new ArrayList<WttCompany>();
+			searchIndex = new WttSearchIndex();
+			initResourceNameCache(context);
+			if ("random".equalsIgnoreCase(context.getInitParameter(ID_GENERATOR_PARAM))) {
+				idGenerator = new RandomIdGenerator();
+			} else {
+				idGenerator = new TimeOrderedIdGenerator();
+			}
 			
-			// load the data into the local transient storage recursively
-			for (WttCompany _company : _companies) {
-				companyIndex.put(_company.getModel().getId(), _company);
-				for (WttProject _project : _company.getProjects()) {
-					indexProjectRecursively(_project);
-				}
+			metrics.register();
+			int _changeFeedCapacity = DEFAULT_CHANGE_FEED_CAPACITY;
+			if (context.getInitParameter(CHANGE_FEED_CAPACITY_PARAM) != null) {
+				_changeFeedCapacity = Integer.parseInt(context.getInitParameter(CHANGE_FEED_CAPACITY_PARAM));
+			}
+			if (isPersistent) {
+				// the sequence numbers of the previous runs are persisted, so that their cursors and stamps expire
+				changeFeed = new ChangeFeed(_changeFeedCapacity,
+						new SequenceFile(new File(context.getRealPath("/" + prefix + SEQUENCE_FN))));
+			} else {
+				changeFeed = new ChangeFeed(_changeFeedCapacity);
+			}
+			long _start = System.currentTimeMillis();
+			int _generations = DEFAULT_GENERATIONS;
+			if (context.getInitParameter(GENERATIONS_PARAM) != null) {
+				_generations = Integer.parseInt(context.getInitParameter(GENERATIONS_PARAM));
+			}
+			SnapshotWriter.Format _format = SnapshotWriter.Format.JSON;
+			if ("binary".equalsIgnoreCase(context.getInitParameter(SNAPSHOT_FORMAT_PARAM))) {
+				_format = SnapshotWriter.Format.BINARY;
 			}
+			if ("company".equalsIgnoreCase(context.getInitParameter(SHARDING_PARAM))) {
+				shardStore = new ShardedSnapshotStore(new File(context.getRealPath("/" + prefix + SHARD_DIR)),
+						_generations, _format);
+			}
+			snapshotWriter = new SnapshotWriter(new File(context.getRealPath("/" + prefix
+					+ (_format == SnapshotWriter.Format.BINARY ? BINARY_DATA_FN : DATA_FN))), _generations, _format);
+			initResidentCompanies(context);
+			long _importStart = System.nanoTime();
+			importCompanies(context, prefix);
+			metrics.record("importCompanies", _importStart);
+
+			String _persistenceMode = context.getInitParameter(PERSISTENCE_MODE_PARAM);
+			if ("journal".equalsIgnoreCase(_persistenceMode)) {
+				initJournal(context, prefix);
+			} else if ("writeBehind".equalsIgnoreCase(_persistenceMode)) {
+				initWriteBehind(context);
+			}
+			evictIdleCompanies();
 
 			logger.info("indexed " 
 					+ companyIndex.size() + " Companies, "
 					+ projectIndex.size() + " Projects, "
-					+ resourceIndex.size() + " Resources.");
+					+ resourceIndex.size() + " Resources in "
+					+ (System.currentTimeMillis() - _start) + "ms.");
+		}
+	}
+
+	/**
+	 * Flush all pending mutations, stop the background flusher (if any) and unregister the metrics.
+	 * Called by FileServiceContextListener when the servlet context is destroyed.
+	 */
+	public static void shutdown() {
+		if (flusher != null) {
+			flusher.shutdown();
+			flusher = null;
 		}
+		metrics.unregister();
+	}
+
+	/**
+	 * @return the operation and persistence metrics, also registered as JMX MBean
+	 */
+	public static WttMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the number of companies
+	 */
+	public static int getCompanyCount() {
+		return companyIndex == null ? 0 : companyIndex.size();
+	}
+
+	/**
+	 * @return the number of loaded projects (on all levels)
+	 */
+	public static int getProjectCount() {
+		return projectIndex == null ? 0 : projectIndex.size();
+	}
+
+	/**
+	 * @return the number of loaded resourceRefs
+	 */
+	public static int getResourceRefCount() {
+		return resourceIndex == null ? 0 : resourceIndex.size();
+	}
+
+	/**
+	 * @return the time of the last write-behind flush (epoch millis), 0 if there was none yet
+	 */
+	public static long getLastFlush() {
+		return flusher == null ? 0 : flusher.getLastFlush();
+	}
+
+	/**
+	 * @return the number of mutations that are not yet written by the write-behind flusher
+	 */
+	public static int getPendingMutations() {
+		return flusher == null ? 0 : flusher.getPendingMutations();
+	}
+
+	/**
+	 * @return the number of resource names that were served from the resource name cache
+	 */
+	public static long getResourceNameCacheHits() {
+		return resourceNameCache == null ? 0 : resourceNameCache.getHits();
+	}
+
+	/**
+	 * @return the number of resource names that were looked up in the resources service
+	 */
+	public static long getResourceNameCacheMisses() {
+		return resourceNameCache == null ? 0 : resourceNameCache.getMisses();
+	}
+
+	/**
+	 * @return the number of company and project trees that were served from the tree cache
+	 */
+	public static long getTreeCacheHits() {
+		return treeCacheHits.get();
+	}
+
+	/**
+	 * @return the number of company and project trees that had to be (re)built
+	 */
+	public static long getTreeCacheMisses() {
+		return treeCacheMisses.get();
+	}
+
+	/**
+	 * @return the number of companies whose projects are in memory
+	 */
+	public static int getResidentCompanyCount() {
+		return residentCompanies == null ? companyIndex.size() : residentCompanies.size();
+	}
+
+	/**
+	 * @return the number of companies that were loaded on demand
+	 */
+	public static long getCompanyLoads() {
+		return companyLoads.get();
+	}
+
+	/**
+	 * @return the number of companies whose projects were evicted from memory
+	 */
+	public static long getCompanyEvictions() {
+		return companyEvictions.get();
 	}
 
 	/******************************** company *****************************************/
@@ -92,25 +302,37 @@ public class FileServiceProvider extends AbstractFileServiceProvider<WttCompany>
 	 */
 	@Override
 	public ArrayList<CompanyModel> listCompanies(
-		String query, 
-		String queryType, 
-		int position, 
-		int size
+		final String query, 
+		final String queryType, 
+		final int position, 
+		final int size
 	) {
-		ArrayList<CompanyModel> _companies = new ArrayList<CompanyModel>();
-		for (WttCompany _wttc : companyIndex.values()) {
-			_companies.add(_wttc.getModel());
-		}
-		Collections.sort(_companies, CompanyModel.CompanyComparator);
-		ArrayList<CompanyModel> _selection = new ArrayList<CompanyModel>();
-		for (int i = 0; i < _companies.size(); i++) {
-			if (i >= position && i < (position + size)) {
-				_selection.add(_companies.get(i));
-			}			
-		}
-		logger.info("list(<" + query + ">, <" + queryType + 
-				">, <" + position + ">, <" + size + ">) -> " + _selection.size() + " companies.");
-		return _selection;
+		return metrics.call("listCompanies", new WttMetrics.Call<ArrayList<CompanyModel>>() {
+			@Override
+			public ArrayList<CompanyModel> call() {
+				List<WttCompany> _companies = null;
+				if (WttSearchIndex.isQuery(queryType, query)) {
+					List<WttCompany> _matches = new ArrayList<WttCompany>();
+					for (String _id : searchIndex.search(COMPANY_SCOPE, queryType, query)) {
+						WttCompany _c = companyIndex.get(_id);
+						if (_c != null) {
+							_matches.add(_c);
+						}
+					}
+					Collections.sort(_matches, WttCompany.COMPARATOR);
+					_companies = SortedLists.slice(_matches, position, size);
+				} else {
+					_companies = SortedLists.slice(companyOrder, position, size);
+				}
+				ArrayList<CompanyModel> _selection = new ArrayList<CompanyModel>();
+				for (WttCompany _wttc : _companies) {
+					_selection.add(_wttc.getModel());
+				}
+				logger.info("list(<" + query + ">, <" + queryType + 
+						">, <" + position + ">, <" + size + ">) -> " + _selection.size() + " companies.");
+				return _selection;
+			}
+		});
 	}
 
 	/**
@@ -123,46 +345,54 @@ public class FileServiceProvider extends AbstractFileServiceProvider<WttCompany>
 	 */
 	@Override
 	public CompanyModel createCompany(
-			HttpServletRequest request,
-			CompanyModel company
+			final HttpServletRequest request,
+			final CompanyModel company
 	) throws DuplicateException, ValidationException {
-		logger.info("createCompany(" + PrettyPrinter.prettyPrintAsJSON(company) + ")");
-		String _id = company.getId();
-		if (_id == null || _id == "") {
-			_id = UUID.randomUUID().toString();
-		} else {
-			if (companyIndex.get(_id) != null) {
-				// object with same ID exists already
-				throw new DuplicateException("company <" + _id + 
-						"> exists already.");
-			}
-			else {  // a new ID was set on the client; we do not allow this
-				throw new ValidationException("company <" + _id +
-						"> contains an ID generated on the client. This is not allowed.");
+		return metrics.call("createCompany", new WttMetrics.Call<CompanyModel>() {
+			@Override
+			public CompanyModel call() {
+				String _id = company.getId();
+				if (_id == null || _id == "") {
+					_id = idGenerator.newId();
+				} else {
+					if (companyIndex.get(_id) != null) {
+						// object with same ID exists already
+						throw new DuplicateException("company <" + _id + 
+								"> exists already.");
+					}
+					else {  // a new ID was set on the client; we do not allow this
+						throw new ValidationException("company <" + _id +
+								"> contains an ID generated on the client. This is not allowed.");
+					}
+				}
+				if (company.getTitle() == null || company.getTitle().isEmpty()) {
+					throw new ValidationException("company <" + _id + 
+							"> must contain a valid title.");
+				}
+				if (company.getOrgId() == null || company.getOrgId().isEmpty()) {
+					throw new ValidationException("company <" + _id + 
+							"> must contain a contactId.");
+				}
+				company.setId(_id);
+				Date _date = new Date();
+				company.setCreatedAt(_date);
+				company.setCreatedBy(ServiceUtil.getPrincipal(request));
+				company.setModifiedAt(_date);
+				company.setModifiedBy(ServiceUtil.getPrincipal(request));
+				WttCompany _newCompany = new WttCompany();
+				_newCompany.setModel(company);
+				companyIndex.put(_id, _newCompany);
+				loadCompany(_newCompany);
+				synchronized (companyOrderLock) {
+					companyOrder = SortedLists.insert(companyOrder, _newCompany, WttCompany.COMPARATOR);
+				}
+				searchIndex.put(COMPANY_SCOPE, toDocument(company));
+				logDetail("createCompany() -> " + _id, company);
+				persist(new JournalEntry(Op.CREATE, EntityType.COMPANY, _id, _id, null,
+						WttJournal.toPayload(company)));
+				return company;
 			}
-		}
-		if (company.getTitle() == null || company.getTitle().isEmpty()) {
-			throw new ValidationException("company <" + _id + 
-					"> must contain a valid title.");
-		}
-		if (company.getOrgId() == null || company.getOrgId().isEmpty()) {
-			throw new ValidationException("company <" + _id + 
-					"> must contain a contactId.");
-		}
-		company.setId(_id);
-		Date _date = new Date();
-		company.setCreatedAt(_date);
-		company.setCreatedBy(ServiceUtil.getPrincipal(request));
-		company.setModifiedAt(_date);
-		company.setModifiedBy(ServiceUtil.getPrincipal(request));
-		WttCompany _newCompany = new WttCompany();
-		_newCompany.setModel(company);
-		companyIndex.put(_id, _newCompany);
-		logger.info("createCompany() -> " + PrettyPrinter.prettyPrintAsJSON(company));
-		if (isPersistent) {
-			exportJson(companyIndex.values());
-		}
-		return company;
+		});
 	}
 
 	/**
@@ -176,21 +406,31 @@ public class FileServiceProvider extends AbstractFileServiceProvider<WttCompany>
 	 */
 	@Override
 	public CompanyModel readCompany(
-			String id
+			final String id
 	) throws NotFoundException {
-		return getCompany(id);
+		return metrics.call("readCompany", new WttMetrics.Call<CompanyModel>() {
+			@Override
+			public CompanyModel call() {
+				return getCompany(id);
+			}
+		});
 	}
 	
 	public static CompanyModel getCompany(
-			String id)
+			final String id)
 			throws NotFoundException {
-		WttCompany _company = companyIndex.get(id);
-		if (_company == null) {
-			throw new NotFoundException("company <" + id
-					+ "> was not found.");
-		}
-		logger.info("getCompany(" + id + ") -> " + PrettyPrinter.prettyPrintAsJSON(_company.getModel()));
-		return _company.getModel();
+		return metrics.call("getCompany", new WttMetrics.Call<CompanyModel>() {
+			@Override
+			public CompanyModel call() {
+				WttCompany _company = companyIndex.get(id);
+				if (_company == null) {
+					throw new NotFoundException("company <" + id
+							+ "> was not found.");
+				}
+				logDetail("getCompany(" + id + ")", _company.getModel());
+				return _company.getModel();
+			}
+		});
 	}
 	
 	
@@ -202,8 +442,7 @@ public class FileServiceProvider extends AbstractFileServiceProvider<WttCompany>
 			throw new NotFoundException("company <" + id
 					+ "> was not found.");
 		}
-		logger.info("readWttCompany(" + id + ") -> " + PrettyPrinter.prettyPrintAsJSON(_company));
-		return _company;
+		return loadCompany(_company);
 	}
 
 	/**
@@ -219,91 +458,366 @@ public class FileServiceProvider extends AbstractFileServiceProvider<WttCompany>
 	 */
 	@Override
 	public CompanyModel updateCompany(
-		HttpServletRequest request,
-		String compId,
-		CompanyModel newCompany
+		final HttpServletRequest request,
+		final String compId,
+		final CompanyModel newCompany
 	) throws NotFoundException, ValidationException
 	{
-		WttCompany _c = readWttCompany(compId);
-		CompanyModel _cm = _c.getModel();
-		if (! _cm.getCreatedAt().equals(newCompany.getCreatedAt())) {
-			logger.warning("company<" + compId + ">: ignoring createAt value <" + 
-					newCompany.getCreatedAt().toString() + "> because it was set on the client.");
-		}
-		if (! _cm.getCreatedBy().equalsIgnoreCase(newCompany.getCreatedBy())) {
-			logger.warning("company<" + compId + ">: ignoring createBy value <" +
-					newCompany.getCreatedBy() + "> because it was set on the client.");
-		}
-		if (newCompany.getTitle() == null || newCompany.getTitle().isEmpty()) {
-			throw new ValidationException("company <" + compId + 
-					"> must contain a valid title.");
-		}
-		if (newCompany.getOrgId() == null || newCompany.getOrgId().isEmpty()) {
-			throw new ValidationException("company <" + compId + 
-					"> must contain a contactId.");
-		}
-		_cm.setTitle(newCompany.getTitle());
-		_cm.setDescription(newCompany.getDescription());
-		_cm.setOrgId(newCompany.getOrgId());
-		_cm.setModifiedAt(new Date());
-		_cm.setModifiedBy(ServiceUtil.getPrincipal(request));
-		_c.setModel(_cm);
-		companyIndex.put(compId, _c);
-		logger.info("updateCompany(" + compId + ") -> " + PrettyPrinter.prettyPrintAsJSON(_cm));
-		if (isPersistent) {
-			exportJson(companyIndex.values());
-		}
-		return _cm;
+		return metrics.call("updateCompany", new WttMetrics.Call<CompanyModel>() {
+			@Override
+			public CompanyModel call() {
+				return updateCompany(request, compId, newCompany, ANY_VERSION);
+			}
+		});
+	}
+
+	/**
+	 * Update a company if it was not changed since the client read it.
+	 * The new model replaces the current one (the current model is never modified),
+	 * so that readers always see a consistent model.
+	 * 
+	 * @param request
+	 * @param compId
+	 * @param newCompany
+	 * @param expectedVersion the version the update is based on (see getCompanyVersion), or ANY_VERSION
+	 * @return the new model
+	 * @throws NotFoundException
+	 * @throws ValidationException
+	 * @throws ConflictException if the company was changed in the meantime
+	 */
+	public CompanyModel updateCompany(
+			final HttpServletRequest request,
+			final String compId,
+			final CompanyModel newCompany,
+			final long expectedVersion)
+					throws NotFoundException, ValidationException, ConflictException {
+		return metrics.call("updateCompany", new WttMetrics.Call<CompanyModel>() {
+			@Override
+			public CompanyModel call() {
+				WttCompany _c = readWttCompany(compId);
+				CompanyModel _cm = _c.getModel();
+				if (! _cm.getCreatedAt().equals(newCompany.getCreatedAt())) {
+					logger.warning("company<" + compId + ">: ignoring createAt value <" + 
+							newCompany.getCreatedAt().toString() + "> because it was set on the client.");
+				}
+				if (! _cm.getCreatedBy().equalsIgnoreCase(newCompany.getCreatedBy())) {
+					logger.warning("company<" + compId + ">: ignoring createBy value <" +
+							newCompany.getCreatedBy() + "> because it was set on the client.");
+				}
+				if (newCompany.getTitle() == null || newCompany.getTitle().isEmpty()) {
+					throw new ValidationException("company <" + compId + 
+							"> must contain a valid title.");
+				}
+				if (newCompany.getOrgId() == null || newCompany.getOrgId().isEmpty()) {
+					throw new ValidationException("company <" + compId + 
+							"> must contain a contactId.");
+				}
+				// compare-and-set of the version; the follow-up changes (order, indexes, journal)
+				// are done under the same monitor, so that they are applied in version order
+				synchronized (_c) {
+					checkNotDeleted(_c);
+					checkVersion("company", compId, _c.getVersion(), expectedVersion);
+					_cm = copyOf(_c.getModel());
+					_cm.setTitle(newCompany.getTitle());
+					_cm.setDescription(newCompany.getDescription());
+					_cm.setOrgId(newCompany.getOrgId());
+					_cm.setModifiedAt(new Date());
+					_cm.setModifiedBy(ServiceUtil.getPrincipal(request));
+					_c.setModel(_cm);
+					_c.setVersion(_c.getVersion() + 1);
+					synchronized (companyOrderLock) {
+						companyOrder = SortedLists.reposition(companyOrder, _c, WttCompany.COMPARATOR);
+					}
+					searchIndex.update(toDocument(_cm));
+					logDetail("updateCompany(" + compId + ") -> version " + _c.getVersion(), _cm);
+					invalidateTree(compId, null);
+					persist(new JournalEntry(Op.UPDATE, EntityType.COMPANY, compId, compId, null, _c.getVersion(),
+							WttJournal.toPayload(_cm)));
+				}
+				return _cm;
+			}
+		});
+	}
+
+	/**
+	 * @param compId
+	 * @return the current version of the company, to be passed to updateCompany
+	 * @throws NotFoundException
+	 */
+	public long getCompanyVersion(
+			final String compId)
+					throws NotFoundException {
+		return metrics.call("getCompanyVersion", new WttMetrics.Call<Long>() {
+			@Override
+			public Long call() {
+				return readWttCompany(compId).getVersion();
+			}
+		});
 	}
 
 	@Override
 	public void deleteCompany(
-			String id) 
+			final String id) 
 					throws 	NotFoundException, 
 							InternalServerErrorException {
-		WttCompany _c = readWttCompany(id);
-		removeProjectsFromIndexRecursively(_c.getProjects());
-		if (companyIndex.remove(id) == null) {
-			throw new InternalServerErrorException("company <" + id
-					+ "> can not be removed, because it does not exist in the index");
-		};
-
-		logger.info("deleteCompany(" + id + ")");
-		if (isPersistent) {
-			exportJson(companyIndex.values());
-		}
+		metrics.call("deleteCompany", new WttMetrics.Call<Void>() {
+			@Override
+			public Void call() {
+				WttCompany _c = readWttCompany(id);
+				synchronized (_c) {
+					checkNotDeleted(_c);
+					removeProjectsFromIndexRecursively(_c.getProjects());
+					if (companyIndex.remove(id) == null) {
+						throw new InternalServerErrorException("company <" + id
+								+ "> can not be removed, because it does not exist in the index");
+					};
+					synchronized (companyOrderLock) {
+						companyOrder = SortedLists.remove(companyOrder, _c, WttCompany.COMPARATOR);
+					}
+					searchIndex.remove(id);
+					searchIndex.removeScope(projectScope(id));
+					if (residentCompanies != null) {
+						residentCompanies.remove(id);
+					}
+					persist(new JournalEntry(Op.DELETE, EntityType.COMPANY, id, id, null, null));
+				}
+				logger.info("deleteCompany(" + id + ")");
+				return null;
+			}
+		});
 	}
 	
 	@Override
 	public ProjectTreeNodeModel readAsTree(
-			String id)
+			final String id)
 			throws NotFoundException 
 	{
-		WttCompany _c = readWttCompany(id);
-		ProjectTreeNodeModel _projectTree = new ProjectTreeNodeModel();
-		_projectTree.setId(id);
-		_projectTree.setTitle(_c.getModel().getTitle());
-		for (WttProject _p : _c.getProjects()) {
-			_projectTree.addProject(convertTree(_p));
+		return metrics.call("readAsTree", new WttMetrics.Call<ProjectTreeNodeModel>() {
+			@Override
+			public ProjectTreeNodeModel call() {
+				return readAsTree(id, null, -1, true);
+			}
+		});
+	}
+
+	/**
+	 * Conditional variant of readAsTree(compId, projId, maxDepth, includeResources).
+	 * 
+	 * @param compId the company ID
+	 * @param projId the root project of the subtree, or null for the whole company
+	 * @param maxDepth the number of project levels below the root to include; a negative value means unlimited
+	 * @param includeResources whether the resourceRef ids are included
+	 * @param ifNoneMatch the version stamp of the company the client has (see getCompanyStamp()), or -1
+	 * @return the tree; the node of the company or of the root project
+	 * @throws NotFoundException
+	 * @throws NotModifiedException if the company did not change since ifNoneMatch
+	 */
+	public ProjectTreeNodeModel readAsTree(
+			final String compId,
+			final String projId,
+			final int maxDepth,
+			final boolean includeResources,
+			final long ifNoneMatch)
+					throws NotFoundException, NotModifiedException {
+		return metrics.call("readAsTree", new WttMetrics.Call<ProjectTreeNodeModel>() {
+			@Override
+			public ProjectTreeNodeModel call() {
+				checkModified(compId, ifNoneMatch);
+				return readAsTree(compId, projId, maxDepth, includeResources);
+			}
+		});
+	}
+
+	/**
+	 * Read the project tree of a company or of one of its projects, optionally limited in depth
+	 * and without resourceRefs. Only the full tree (unlimited depth, including resourceRefs) is cached;
+	 * it is shared by all readers and can not be modified (see ReadOnlyTreeNode).
+	 * 
+	 * @param compId the company ID
+	 * @param projId the root project of the subtree, or null for the whole company
+	 * @param maxDepth the number of project levels below the root to include; a negative value means unlimited
+	 * @param includeResources whether the resourceRef ids are included
+	 * @return the tree; the node of the company or of the root project
+	 * @throws NotFoundException
+	 */
+	public ProjectTreeNodeModel readAsTree(
+			final String compId,
+			final String projId,
+			final int maxDepth,
+			final boolean includeResources)
+					throws NotFoundException {
+		return metrics.call("readAsTree", new WttMetrics.Call<ProjectTreeNodeModel>() {
+			@Override
+			public ProjectTreeNodeModel call() {
+				WttCompany _c = readWttCompany(compId);
+				ProjectTreeNodeModel _projectTree = null;
+				if (projId != null) {
+					_projectTree = convertTree(readWttProject(compId, projId), maxDepth, includeResources);
+				} else {
+					boolean _useCache = maxDepth < 0 && includeResources;
+					CachedTree _cache = _c.getTreeCache();
+					_projectTree = _useCache ? lookupTree(_cache) : null;
+					if (_projectTree == null) {
+						long _stamp = _cache.getStamp();
+						_projectTree = newTreeNode(compId, _c.getModel().getTitle(), _useCache);
+						if (maxDepth != 0) {
+							for (WttProject _p : _c.getProjects()) {
+								_projectTree.addProject(convertTree(_p, maxDepth - 1, includeResources));
+							}
+						}
+						if (_useCache) {
+							((ReadOnlyTreeNode) _projectTree).freeze();
+							_cache.put(_projectTree, _stamp);
+						}
+					}
+				}
+				logDetail("readAsTree(" + compId + ", " + projId + ", " + maxDepth + ", " + includeResources + ")", _projectTree);
+				return _projectTree;
+			}
+		});
+	}
+
+	// a project whose tree node was created, but whose children were not visited yet
+	private static class TreeFrame {
+		final WttProject project;
+		final ProjectTreeNodeModel node;
+		final int depth;
+		final long stamp;
+		boolean expanded = false;
+
+		TreeFrame(
+				WttProject project,
+				int depth,
+				boolean includeResources,
+				boolean cached) {
+			this.project = project;
+			this.depth = depth;
+			this.stamp = project.getTreeCache().getStamp();
+			node = newTreeNode(project.getModel().getId(), project.getModel().getTitle(), cached);
+			if (includeResources) {
+				for (ResourceRefModel _resource : project.getResources()) {
+					node.addResource(_resource.getId());
+				}
+			}
 		}
-		logger.info("readAsTree(" + id + ") -> " + PrettyPrinter.prettyPrintAsJSON(_projectTree));
-		return _projectTree;
 	}
-	
-	private ProjectTreeNodeModel convertTree(WttProject p) {
-		ProjectTreeNodeModel _node = new ProjectTreeNodeModel();
-		_node.setId(p.getModel().getId());
-		_node.setTitle(p.getModel().getTitle());
-		for (WttProject _p : p.getProjects()) {
-			_node.addProject(convertTree(_p));
+
+	/**
+	 * Return the subtree of a project. The tree is traversed iteratively with an explicit stack,
+	 * so that the depth of the tree is not limited by the call stack.
+	 * A child node is attached to its parent when it is created and filled afterwards (the nodes are references).
+	 * For a full tree, unchanged subtrees are taken from the tree cache and new subtrees are frozen
+	 * and stored once all of their descendants are complete.
+	 * 
+	 * @param root
+	 * @param maxDepth the number of levels below root to include; a negative value means unlimited
+	 * @param includeResources
+	 * @return the tree node of root
+	 */
+	private ProjectTreeNodeModel convertTree(
+			WttProject root,
+			int maxDepth,
+			boolean includeResources) {
+		boolean _useCache = maxDepth < 0 && includeResources;
+		if (_useCache) {
+			ProjectTreeNodeModel _cached = lookupTree(root.getTreeCache());
+			if (_cached != null) {
+				return _cached;
+			}
+		}
+		TreeFrame _rootFrame = new TreeFrame(root, 0, includeResources, _useCache);
+		Deque<TreeFrame> _stack = new ArrayDeque<TreeFrame>();
+		_stack.push(_rootFrame);
+		while (! _stack.isEmpty()) {
+			TreeFrame _frame = _stack.pop();
+			if (_frame.expanded) {
+				// all descendants are complete
+				if (_useCache) {
+					((ReadOnlyTreeNode) _frame.node).freeze();
+					_frame.project.getTreeCache().put(_frame.node, _frame.stamp);
+				}
+				continue;
+			}
+			_frame.expanded = true;
+			_stack.push(_frame);
+			if (maxDepth >= 0 && _frame.depth >= maxDepth) {
+				continue;
+			}
+			for (WttProject _child : _frame.project.getProjects()) {
+				ProjectTreeNodeModel _childNode = _useCache ? lookupTree(_child.getTreeCache()) : null;
+				if (_childNode == null) {
+					TreeFrame _childFrame = new TreeFrame(_child, _frame.depth + 1, includeResources, _useCache);
+					_childNode = _childFrame.node;
+					_stack.push(_childFrame);
+				}
+				_frame.node.addProject(_childNode);
+			}
 		}
-		for (ResourceRefModel _resource : p.getResources()) {
-			_node.addResource(_resource.getId());
+		return _rootFrame.node;
+	}
+
+	/**
+	 * @param id
+	 * @param title
+	 * @param cached true if the node becomes part of a cached tree; it is frozen once it is complete
+	 * @return a new tree node
+	 */
+	private static ProjectTreeNodeModel newTreeNode(
+			String id,
+			String title,
+			boolean cached) {
+		if (cached) {
+			return new ReadOnlyTreeNode(id, title);
 		}
-		logger.info("convertTree(" + p.getModel().getId() + ") -> " + PrettyPrinter.prettyPrintAsJSON(_node));
+		ProjectTreeNodeModel _node = new ProjectTreeNodeModel();
+		_node.setId(id);
+		_node.setTitle(title);
 		return _node;
 	}
 
+	/**
+	 * Look up a cached tree and count the hit or miss.
+	 * 
+	 * @param cache
+	 * @return the cached tree or null
+	 */
+	private static ProjectTreeNodeModel lookupTree(
+			CachedTree cache) {
+		ProjectTreeNodeModel _tree = cache.get();
+		if (_tree != null) {
+			treeCacheHits.incrementAndGet();
+		} else {
+			treeCacheMisses.incrementAndGet();
+		}
+		return _tree;
+	}
+
+	/**
+	 * Invalidate the cached trees along the path from a changed project up to its company.
+	 * The path is invalidated bottom-up, so that a concurrently built tree of an ancestor
+	 * is discarded if it picked up a stale subtree.
+	 * 
+	 * @param compId
+	 * @param projId the changed project, or null if only the company (or its top-level list) changed
+	 */
+	private static void invalidateTree(
+			String compId,
+			String projId) {
+		String _id = projId;
+		while (_id != null) {
+			WttProject _p = projectIndex.get(_id);
+			if (_p == null) {
+				break;
+			}
+			_p.getTreeCache().invalidate();
+			_id = _p.getParentId();
+		}
+		WttCompany _c = companyIndex.get(compId);
+		if (_c != null) {
+			_c.getTreeCache().invalidate();
+		}
+	}
+
 	/******************************** project *****************************************/
 	/**
 	 * Return the top-level projects of a company without subprojects.
@@ -317,56 +831,117 @@ public class FileServiceProvider extends AbstractFileServiceProvider<WttCompany>
 	 */
 	@Override
 	public ArrayList<ProjectModel> listProjects(
-			String compId,
-			String query, 
-			String queryType, 
-			int position, 
-			int size
+			final String compId,
+			final String query, 
+			final String queryType, 
+			final int position, 
+			final int size
 	) {
-		ArrayList<ProjectModel> _projects = new ArrayList<ProjectModel>();
-		for (WttProject _wttp : readWttCompany(compId).getProjects()) {
-			_projects.add(_wttp.getModel());
-		}
-		Collections.sort(_projects, ProjectModel.ProjectComparator);
-		ArrayList<ProjectModel> _selection = new ArrayList<ProjectModel>();
-		for (int i = 0; i < _projects.size(); i++) {
-			if (i >= position && i < (position + size)) {
-				_selection.add(_projects.get(i));
+		return metrics.call("listProjects", new WttMetrics.Call<ArrayList<ProjectModel>>() {
+			@Override
+			public ArrayList<ProjectModel> call() {
+				ArrayList<ProjectModel> _selection = new ArrayList<ProjectModel>();
+				for (WttProject _wttp : selectProjects(readWttCompany(compId).getProjects(), 
+						projectScope(compId), query, queryType, position, size)) {
+					_selection.add(_wttp.getModel());
+				}
+				logger.info("listProjects(<" + compId + ">, <" + query + ">, <" + queryType + 
+						">, <" + position + ">, <" + size + ">) -> " + _selection.size()
+						+ " values");
+				return _selection;
 			}
-		}
-		logger.info("listProjects(<" + compId + ">, <" + query + ">, <" + queryType + 
-				">, <" + position + ">, <" + size + ">) -> " + _selection.size()
-				+ " values");
-		return _selection;
+		});
+	}
+
+	/**
+	 * Conditional variant of listProjects().
+	 * 
+	 * @param compId
+	 * @param query
+	 * @param queryType
+	 * @param position
+	 * @param size
+	 * @param ifNoneMatch the version stamp of the company the client has (see getCompanyStamp()), or -1
+	 * @return the top-level projects of the company
+	 * @throws NotModifiedException if the company did not change since ifNoneMatch
+	 */
+	public ArrayList<ProjectModel> listProjects(
+			final String compId,
+			final String query,
+			final String queryType,
+			final int position,
+			final int size,
+			final long ifNoneMatch)
+					throws NotModifiedException {
+		return metrics.call("listProjects", new WttMetrics.Call<ArrayList<ProjectModel>>() {
+			@Override
+			public ArrayList<ProjectModel> call() {
+				checkModified(compId, ifNoneMatch);
+				return listProjects(compId, query, queryType, position, size);
+			}
+		});
 	}
 	
 	@Override
 	public ProjectModel createProject(
-		HttpServletRequest request,
-		String compId, 
-		ProjectModel newProject
+		final HttpServletRequest request,
+		final String compId, 
+		final ProjectModel newProject
 	) throws DuplicateException, NotFoundException, ValidationException {
-		WttCompany _company = readWttCompany(compId);
-		WttProject _project = createWttProject(request, newProject);
-		ProjectModel _pm = _project.getModel();
-		projectIndex.put(_pm.getId(), _project);
-		_company.addProject(_project);
-		logger.info("createProject(" + compId + ") -> " + PrettyPrinter.prettyPrintAsJSON(_pm));
-		if (isPersistent) {
-			exportJson(companyIndex.values());
-		}
-		return _pm;
+		return metrics.call("createProject", new WttMetrics.Call<ProjectModel>() {
+			@Override
+			public ProjectModel call() {
+				WttCompany _company = readWttCompany(compId);
+				WttProject _project = createWttProject(request, newProject);
+				ProjectModel _pm = _project.getModel();
+				synchronized (_company) {
+					checkResident(_company);
+					_project.setOwner(compId, null);
+					projectIndex.put(_pm.getId(), _project);
+					_company.addProject(_project);
+					searchIndex.put(projectScope(compId), toDocument(_pm));
+					invalidateTree(compId, null);
+					persist(new JournalEntry(Op.CREATE, EntityType.PROJECT, _pm.getId(), compId, null,
+							WttJournal.toPayload(_pm)));
+				}
+				logDetail("createProject(" + compId + ") -> " + _pm.getId(), _pm);
+				return _pm;
+			}
+		});
 	}
 	
 	private WttProject createWttProject(
 			HttpServletRequest request,
 			ProjectModel project)
 			throws DuplicateException, ValidationException
+	{
+		validateNewProject(project);
+		String _id = idGenerator.newId();
+		project.setId(_id);
+		Date _date = new Date();
+		project.setCreatedAt(_date);
+		project.setCreatedBy(ServiceUtil.getPrincipal(request));
+		project.setModifiedAt(_date);
+		project.setModifiedBy(ServiceUtil.getPrincipal(request));
+
+		WttProject _newWttProject = new WttProject();
+		_newWttProject.setModel(project);
+		return _newWttProject;
+	}
+
+	/**
+	 * Verify that a project can be created; the project is not changed.
+	 * 
+	 * @param project
+	 * @throws DuplicateException
+	 * @throws ValidationException
+	 */
+	private static void validateNewProject(
+			ProjectModel project)
+			throws DuplicateException, ValidationException
 	{
 		String _id = project.getId();
-		if (_id == null || _id == "") {
-			_id = UUID.randomUUID().toString();
-		} else {
+		if (_id != null && _id != "") {
 			if (projectIndex.get(_id) != null) {
 				// project with same ID exists already
 				throw new DuplicateException("project <" + project.getId() + 
@@ -381,38 +956,35 @@ public class FileServiceProvider extends AbstractFileServiceProvider<WttCompany>
 			throw new ValidationException("project <" + project.getId() +
 					"> must have a valid title.");
 		}
-
-		project.setId(_id);
-		Date _date = new Date();
-		project.setCreatedAt(_date);
-		project.setCreatedBy(ServiceUtil.getPrincipal(request));
-		project.setModifiedAt(_date);
-		project.setModifiedBy(ServiceUtil.getPrincipal(request));
-
-		WttProject _newWttProject = new WttProject();
-		_newWttProject.setModel(project);
-		return _newWttProject;
 	}
 
 	@Override
 	public ProjectModel readProject(
-			String compId,
-			String projId)
+			final String compId,
+			final String projId)
 					throws NotFoundException {
-		readWttCompany(compId);
-		ProjectModel _p = readWttProject(projId).getModel();
-		logger.info("readProject(" + projId + ") -> "
-				+ PrettyPrinter.prettyPrintAsJSON(_p));
-		return _p;
+		return metrics.call("readProject", new WttMetrics.Call<ProjectModel>() {
+			@Override
+			public ProjectModel call() {
+				readWttCompany(compId);
+				ProjectModel _p = readWttProject(compId, projId).getModel();
+				logDetail("readProject(" + projId + ")", _p);
+				return _p;
+			}
+		});
 	}
 	
 	public static ProjectModel getProject(
-			String projId)
+			final String projId)
 			throws NotFoundException {
-		ProjectModel _model = readWttProject(projId).getModel();
-		logger.info("getProject(" + projId + ") -> " 
-				+ PrettyPrinter.prettyPrintAsJSON(_model));
-		return _model;
+		return metrics.call("getProject", new WttMetrics.Call<ProjectModel>() {
+			@Override
+			public ProjectModel call() {
+				ProjectModel _model = readWttProject(projId).getModel();
+				logDetail("getProject(" + projId + ")", _model);
+				return _model;
+			}
+		});
 	}
 	
 	
@@ -420,228 +992,686 @@ public class FileServiceProvider extends AbstractFileServiceProvider<WttCompany>
 			String projId)
 				throws NotFoundException {
 		WttProject _p = projectIndex.get(projId);
+		if (_p == null && residentCompanies != null) {
+			String _compId = residentCompanies.getUnloadedCompanyOfProject(projId);
+			WttCompany _c = _compId == null ? null : companyIndex.get(_compId);
+			if (_c != null) {
+				loadCompany(_c);
+				_p = projectIndex.get(projId);
+			}
+		}
 		if (_p == null) {
 			throw new NotFoundException("project <" + projId
 					+ "> was not found.");
 		}
+		if (residentCompanies != null) {
+			WttCompany _c = companyIndex.get(_p.getCompanyId());
+			if (_c != null) {
+				loadCompany(_c);
+			}
+		}
 		return _p;
 	}
 
-	@Override
-	public ProjectModel updateProject(
-			HttpServletRequest request,
+	/**
+	 * Read a project (on any level) and verify that it belongs to the company.
+	 * 
+	 * @param compId
+	 * @param projId
+	 * @return the project
+	 * @throws NotFoundException if the project does not exist or belongs to another company
+	 */
+	private static WttProject readWttProject(
 			String compId,
-			String projId,
-			ProjectModel project
-	) throws NotFoundException, ValidationException {
-		readWttCompany(compId);
-		WttProject _wttProject = readWttProject(projId);
-		ProjectModel _pm = _wttProject.getModel();
-		if (! _pm.getCreatedAt().equals(project.getCreatedAt())) {
-			logger.warning("project<" + projId + ">: ignoring createAt value <" 
-					+ project.getCreatedAt().toString() + "> because it was set on the client.");
-		}
-		if (! _pm.getCreatedBy().equalsIgnoreCase(project.getCreatedBy())) {
-			logger.warning("project<" + projId + ">: ignoring createBy value <"
-					+ project.getCreatedBy() + "> because it was set on the client.");
+			String projId)
+				throws NotFoundException {
+		WttProject _p = readWttProject(projId);
+		if (! _p.getCompanyId().equals(compId)) {
+			throw new NotFoundException("project <" + projId
+					+ "> was not found in company <" + compId + ">.");
+		}
+		return _p;
+	}
+
+	/**
+	 * Read a subproject and verify that it is a direct child of the parent project within the company.
+	 * 
+	 * @param compId
+	 * @param projId the parent project
+	 * @param subprojId
+	 * @return the subproject
+	 * @throws NotFoundException if the subproject does not exist or has another parent
+	 */
+	private static WttProject readWttSubproject(
+			String compId,
+			String projId,
+			String subprojId)
+				throws NotFoundException {
+		WttProject _p = readWttProject(compId, subprojId);
+		if (! projId.equals(_p.getParentId())) {
+			throw new NotFoundException("subproject <" + subprojId
+					+ "> was not found in project <" + projId + ">.");
+		}
+		return _p;
+	}
+
+	/**
+	 * Verify that a company was not deleted since it was read. Called with the monitor of the company held.
+	 * 
+	 * @param company
+	 * @throws NotFoundException if the company was deleted in the meantime
+	 */
+	private static void checkNotDeleted(
+			WttCompany company)
+				throws NotFoundException {
+		String _id = company.getModel().getId();
+		if (companyIndex.get(_id) != company) {
+			throw new NotFoundException("company <" + _id + "> was not found.");
+		}
+	}
+
+	/**
+	 * Prepare a company for a structural change, i.e. adding, removing or moving projects or resourceRefs.
+	 * <p>
+	 * Structural changes of a company are serialized by the monitor of the company, which also excludes
+	 * its deletion and eviction; readers do not lock, as they only see immutable snapshots of the child
+	 * lists. The caller holds the monitor and looks up the projects with readResidentProject(), which never
+	 * loads (and thus never locks) another company. The caller persists its changes with the monitor held,
+	 * so that the journal entries of a company are written in the order of the changes; shard writes only
+	 * take the shard lock of the company (see writeDirtyShards).
+	 * 
+	 * @param company
+	 * @throws NotFoundException if the company was deleted in the meantime
+	 */
+	private static void checkResident(
+			WttCompany company)
+				throws NotFoundException {
+		checkNotDeleted(company);
+		// the company may have been evicted since it was read
+		loadCompany(company, false);
+	}
+
+	/**
+	 * Read a project (on any level) of a company whose monitor is held (see checkResident).
+	 * 
+	 * @param compId
+	 * @param projId
+	 * @return the project
+	 * @throws NotFoundException if the project does not exist or belongs to another company
+	 */
+	private static WttProject readResidentProject(
+			String compId,
+			String projId)
+				throws NotFoundException {
+		WttProject _p = projId == null ? null : projectIndex.get(projId);
+		if (_p == null || ! compId.equals(_p.getCompanyId())) {
+			throw new NotFoundException("project <" + projId
+					+ "> was not found in company <" + compId + ">.");
+		}
+		return _p;
+	}
+
+	/**
+	 * Read a subproject of a company whose monitor is held (see checkResident).
+	 * 
+	 * @param compId
+	 * @param projId the parent project
+	 * @param subprojId
+	 * @return the subproject
+	 * @throws NotFoundException if the subproject does not exist or has another parent
+	 */
+	private static WttProject readResidentSubproject(
+			String compId,
+			String projId,
+			String subprojId)
+				throws NotFoundException {
+		WttProject _p = readResidentProject(compId, subprojId);
+		if (! projId.equals(_p.getParentId())) {
+			throw new NotFoundException("subproject <" + subprojId
+					+ "> was not found in project <" + projId + ">.");
+		}
+		return _p;
+	}
+
+	/**
+	 * Return the ancestors of a project, starting with its top-level project and ending with its parent.
+	 * The path is built from the parent back-pointers in O(depth).
+	 * 
+	 * @param compId
+	 * @param projId
+	 * @return the ancestors; empty for a top-level project
+	 * @throws NotFoundException
+	 */
+	public List<ProjectModel> listAncestors(
+			final String compId,
+			final String projId)
+					throws NotFoundException {
+		return metrics.call("listAncestors", new WttMetrics.Call<List<ProjectModel>>() {
+			@Override
+			public List<ProjectModel> call() {
+				readWttCompany(compId);
+				LinkedList<ProjectModel> _path = new LinkedList<ProjectModel>();
+				WttProject _p = readWttProject(compId, projId);
+				while (_p.getParentId() != null) {
+					_p = readWttProject(_p.getParentId());
+					_path.addFirst(_p.getModel());
+				}
+				logger.info("listAncestors(" + compId + ", " + projId + ") -> " + _path.size() + " values");
+				return _path;
+			}
+		});
+	}
+
+	/**
+	 * Move a project to its new position within its company or parent project after its title was changed.
+	 * Called with the monitor of the company held.
+	 * 
+	 * @param company
+	 * @param project
+	 */
+	private static void repositionProject(
+			WttCompany company,
+			WttProject project) {
+		if (project.getParentId() == null) {
+			company.repositionProject(project);
+		} else {
+			readResidentProject(company.getModel().getId(), project.getParentId()).repositionProject(project);
 		}
+	}
+
+	@Override
+	public ProjectModel updateProject(
+			final HttpServletRequest request,
+			final String compId,
+			final String projId,
+			final ProjectModel project
+	) throws NotFoundException, ValidationException {
+		return metrics.call("updateProject", new WttMetrics.Call<ProjectModel>() {
+			@Override
+			public ProjectModel call() {
+				return updateProject(request, compId, projId, project, ANY_VERSION);
+			}
+		});
+	}
+
+	/**
+	 * Update a project (on any level) if it was not changed since the client read it.
+	 * 
+	 * @param request
+	 * @param compId
+	 * @param projId
+	 * @param project
+	 * @param expectedVersion the version the update is based on (see getProjectVersion), or ANY_VERSION
+	 * @return the new model
+	 * @throws NotFoundException
+	 * @throws ValidationException
+	 * @throws ConflictException if the project was changed in the meantime
+	 */
+	public ProjectModel updateProject(
+			final HttpServletRequest request,
+			final String compId,
+			final String projId,
+			final ProjectModel project,
+			final long expectedVersion)
+					throws NotFoundException, ValidationException, ConflictException {
+		return metrics.call("updateProject", new WttMetrics.Call<ProjectModel>() {
+			@Override
+			public ProjectModel call() {
+				WttCompany _company = readWttCompany(compId);
+				validateUpdatedProject(project);
+				ProjectModel _pm;
+				JournalEntry _entry;
+				synchronized (_company) {
+					checkResident(_company);
+					WttProject _wttProject = readResidentProject(compId, projId);
+					_entry = updateWttProject(request, _company, _wttProject, project, expectedVersion);
+					_pm = _wttProject.getModel();
+					persist(_entry);
+				}
+				logDetail("updateProject(" + compId + ", " + projId + ") -> version " + _entry.getVersion(), _pm);
+				return _pm;
+			}
+		});
+	}
+
+	/**
+	 * @param compId
+	 * @param projId a project on any level
+	 * @return the current version of the project, to be passed to updateProject or updateSubproject
+	 * @throws NotFoundException
+	 */
+	public long getProjectVersion(
+			final String compId,
+			final String projId)
+					throws NotFoundException {
+		return metrics.call("getProjectVersion", new WttMetrics.Call<Long>() {
+			@Override
+			public Long call() {
+				return readWttProject(compId, projId).getVersion();
+			}
+		});
+	}
+
+	private static void validateUpdatedProject(
+			ProjectModel project)
+					throws ValidationException {
 		if (project.getTitle() == null || project.getTitle().length() == 0) {
 			throw new ValidationException("project <" + project.getId() +
 					"> must have a valid title.");
 		}
+	}
+
+	/**
+	 * Replace the model of a project by an updated copy (compare-and-set of the version).
+	 * Called with the monitor of the company held, so that the follow-up changes (order, indexes)
+	 * are applied in version order; the caller persists the entry with the monitor held.
+	 * 
+	 * @param request
+	 * @param company
+	 * @param wttProject
+	 * @param project the new values, validated by validateUpdatedProject()
+	 * @param expectedVersion
+	 * @return the journal entry of the update
+	 * @throws ConflictException
+	 */
+	private JournalEntry updateWttProject(
+			HttpServletRequest request,
+			WttCompany company,
+			WttProject wttProject,
+			ProjectModel project,
+			long expectedVersion)
+					throws ConflictException {
+		String _compId = company.getModel().getId();
+		ProjectModel _pm = wttProject.getModel();
+		String _projId = _pm.getId();
+		if (! _pm.getCreatedAt().equals(project.getCreatedAt())) {
+			logger.warning("project<" + _projId + ">: ignoring createAt value <" 
+					+ project.getCreatedAt().toString() + "> because it was set on the client.");
+		}
+		if (! _pm.getCreatedBy().equalsIgnoreCase(project.getCreatedBy())) {
+			logger.warning("project<" + _projId + ">: ignoring createBy value <"
+					+ project.getCreatedBy() + "> because it was set on the client.");
+		}
+		checkVersion("project", _projId, wttProject.getVersion(), expectedVersion);
+		_pm = copyOf(wttProject.getModel());
 		_pm.setTitle(project.getTitle());
 		_pm.setDescription(project.getDescription());
 		_pm.setModifiedAt(new Date());
 		_pm.setModifiedBy(ServiceUtil.getPrincipal(request));
-		_wttProject.setModel(_pm);
-		projectIndex.put(projId, _wttProject);
-		logger.info("updateProject(" + compId + ", " + projId + ") -> " + PrettyPrinter.prettyPrintAsJSON(_pm));
-		if (isPersistent) {
-			exportJson(companyIndex.values());
-		}
-		return _pm;
+		wttProject.setModel(_pm);
+		wttProject.setVersion(wttProject.getVersion() + 1);
+		repositionProject(company, wttProject);
+		searchIndex.update(toDocument(_pm));
+		invalidateTree(_compId, _projId);
+		return new JournalEntry(Op.UPDATE, EntityType.PROJECT, _projId, _compId, wttProject.getParentId(),
+				wttProject.getVersion(), WttJournal.toPayload(_pm));
 	}
 
 	@Override
 	public void deleteProject(
-		String compId, 
-		String projId
+		final String compId, 
+		final String projId
 	) throws NotFoundException, InternalServerErrorException {
-		WttCompany _company = readWttCompany(compId);
-		WttProject _project = readWttProject(projId);
-		
+		metrics.call("deleteProject", new WttMetrics.Call<Void>() {
+			@Override
+			public Void call() {
+				WttCompany _company = readWttCompany(compId);
+				JournalEntry _entry;
+				synchronized (_company) {
+					checkResident(_company);
+					_entry = removeWttProject(_company, readResidentProject(compId, projId));
+					persist(_entry);
+				}
+				logger.info("deleteProject(" + compId + ", " + projId + ") -> OK");
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Remove a project (on any level) with its subprojects and resourceRefs.
+	 * Called with the monitor of the company held.
+	 * 
+	 * @param company the company of the project
+	 * @param project
+	 * @return the journal entry of the deletion
+	 * @throws InternalServerErrorException
+	 */
+	private JournalEntry removeWttProject(
+			WttCompany company,
+			WttProject project)
+					throws InternalServerErrorException {
+		String _compId = company.getModel().getId();
+		String _projId = project.getModel().getId();
+
 		// 1) remove all subprojects from this project
-		removeProjectsFromIndexRecursively(_project.getProjects());
+		removeProjectsFromIndexRecursively(project.getProjects());
+		removeResourcesFromIndex(project);
+		removeFromSearchIndex(_projId);
 		
 		// 2) remove the project from the index
-		if (projectIndex.remove(projId) == null) {
-			throw new InternalServerErrorException("project <" + projId
+		if (projectIndex.remove(_projId) == null) {
+			throw new InternalServerErrorException("project <" + _projId
 					+ "> can not be removed, because it does not exist in the index.");
 		}
 		
-		// 3) remove the project from its company (if projId is a top-level project)
-		if (_company.removeProject(_project) == false) {
-			// 4) remove the subproject from its parent-project (if projId is a subproject)
-			if (projectIndex.remove(projId) == null) {
-				throw new InternalServerErrorException("project <" + projId
-						+ "> can not be removed, because it is an orphan.");
+		// 3) remove the project from its company (if it is a top-level project)
+		//    or from its parent project (if it is a subproject)
+		String _parentId = project.getParentId();
+		WttProject _parent = _parentId == null ? null : projectIndex.get(_parentId);
+		if (_parent == null ? ! company.removeProject(project) : ! _parent.removeProject(project)) {
+			throw new InternalServerErrorException("project <" + _projId
+					+ "> can not be removed, because it is an orphan.");
+		}
+		invalidateTree(_compId, _parentId);
+		return new JournalEntry(Op.DELETE, EntityType.PROJECT, _projId, _compId, _parentId, null);
+	}
+
+	/**
+	 * Move a project (on any level) with its subprojects and resourceRefs to another parent within its company,
+	 * or promote it to a top-level project. The subtree is relinked as a whole, so that the cost only depends
+	 * on the depth of the old and new parent; all ids stay the same and the move is persisted as one entry.
+	 * 
+	 * @param request
+	 * @param compId
+	 * @param projId the project to move
+	 * @param newParentId the new parent project, or null to make the project a top-level project
+	 * @param expectedVersion the version the move is based on (see getProjectVersion), or ANY_VERSION
+	 * @return the model of the moved project
+	 * @throws NotFoundException if the project or the new parent does not exist in the company
+	 * @throws ValidationException if the new parent is the project itself or one of its descendants
+	 * @throws ConflictException if the project was changed in the meantime
+	 */
+	public ProjectModel moveProject(
+			final HttpServletRequest request,
+			final String compId,
+			final String projId,
+			final String newParentId,
+			final long expectedVersion)
+					throws NotFoundException, ValidationException, ConflictException {
+		return metrics.call("moveProject", new WttMetrics.Call<ProjectModel>() {
+			@Override
+			public ProjectModel call() {
+				WttCompany _company = readWttCompany(compId);
+				ProjectModel _pm;
+				JournalEntry _entry;
+				// the company monitor serializes the moves, so that two concurrent moves can not form a cycle
+				synchronized (_company) {
+					checkResident(_company);
+					WttProject _project = readResidentProject(compId, projId);
+					if (newParentId != null) {
+						// the new parent must not be in the subtree: walk up from the new parent in O(depth)
+						String _id = readResidentProject(compId, newParentId).getModel().getId();
+						while (_id != null) {
+							if (_id.equals(projId)) {
+								throw new ValidationException("project <" + projId
+										+ "> can not be moved into its own subtree <" + newParentId + ">.");
+							}
+							_id = readResidentProject(compId, _id).getParentId();
+						}
+					}
+					checkVersion("project", projId, _project.getVersion(), expectedVersion);
+					if (newParentId == null ? _project.getParentId() == null : newParentId.equals(_project.getParentId())) {
+						logger.info("moveProject(" + compId + ", " + projId + ", " + newParentId + ") -> not moved");
+						return _project.getModel();
+					}
+					_pm = copyOf(_project.getModel());
+					_pm.setModifiedAt(new Date());
+					_pm.setModifiedBy(ServiceUtil.getPrincipal(request));
+					_project.setModel(_pm);
+					_project.setVersion(_project.getVersion() + 1);
+					relinkProject(_company, _project, newParentId);
+					_entry = new JournalEntry(Op.MOVE, EntityType.PROJECT, projId, compId, newParentId,
+							_project.getVersion(), WttJournal.toPayload(_pm));
+					persist(_entry);
+				}
+				logDetail("moveProject(" + compId + ", " + projId + ", " + newParentId + ") -> version " + _entry.getVersion(), _pm);
+				return _pm;
 			}
+		});
+	}
+
+	/**
+	 * Detach a project from its parent (or company) and attach it to a new parent (or the company).
+	 * Only the project itself is touched: its descendants keep their back-pointers, and the trees
+	 * are invalidated along the old and the new path. Called with the monitor of the company held
+	 * (or during replay).
+	 * 
+	 * @param company
+	 * @param project
+	 * @param newParentId the new parent project, or null for a top-level project
+	 * @throws InternalServerErrorException if the project is not linked to its parent
+	 */
+	private static void relinkProject(
+			WttCompany company,
+			WttProject project,
+			String newParentId)
+					throws InternalServerErrorException {
+		String _compId = company.getModel().getId();
+		String _oldParentId = project.getParentId();
+		WttProject _oldParent = _oldParentId == null ? null : projectIndex.get(_oldParentId);
+		WttProject _newParent = newParentId == null ? null : projectIndex.get(newParentId);
+		if (_oldParent == null ? ! company.removeProject(project) : ! _oldParent.removeProject(project)) {
+			throw new InternalServerErrorException("project <" + project.getModel().getId()
+					+ "> can not be moved, because it is an orphan.");
 		}
-			
-		logger.info("deleteProject(" + compId + ", " + projId + ") -> OK");
-		if (isPersistent) {
-			exportJson(companyIndex.values());
+		invalidateTree(_compId, _oldParentId);
+		project.setOwner(_compId, newParentId);
+		if (_newParent == null) {
+			company.addProject(project);
+		} else {
+			_newParent.addProject(project);
 		}
+		searchIndex.put(projectScope(newParentId == null ? _compId : newParentId), toDocument(project.getModel()));
+		invalidateTree(_compId, newParentId);
 	}
 
 	/******************************** subprojects *****************************************/
 	@Override
 	public List<ProjectModel> listSubprojects(
-			String compId, 
-			String projId,
-			String query, 
-			String queryType, 
-			int position, 
-			int size) 
+			final String compId, 
+			final String projId,
+			final String query, 
+			final String queryType, 
+			final int position, 
+			final int size) 
 	{
-		readWttCompany(compId);  	// validate existence of company
-		ArrayList<ProjectModel> _subprojects = new ArrayList<ProjectModel>();
-		for (WttProject _wttp : readWttProject(projId).getProjects()) {
-			_subprojects.add(_wttp.getModel());
-		}
-		Collections.sort(_subprojects, ProjectModel.ProjectComparator);
-		ArrayList<ProjectModel> _selection = new ArrayList<ProjectModel>();
-		for (int i = 0; i < _subprojects.size(); i++) {
-			if (i >= position && i < (position + size)) {
-				_selection.add(_subprojects.get(i));
+		return metrics.call("listSubprojects", new WttMetrics.Call<List<ProjectModel>>() {
+			@Override
+			public List<ProjectModel> call() {
+				readWttCompany(compId);  	// validate existence of company
+				ArrayList<ProjectModel> _selection = new ArrayList<ProjectModel>();
+				for (WttProject _wttp : selectProjects(readWttProject(compId, projId).getProjects(), 
+						projectScope(projId), query, queryType, position, size)) {
+					_selection.add(_wttp.getModel());
+				}
+				logger.info("listProjects(<" + compId + ">, <" + projId + ">, <"+ query + ">, <" + queryType + 
+						">, <" + position + ">, <" + size + ">) -> " + _selection.size() + " values");
+				return _selection;
 			}
-		}
-		logger.info("listProjects(<" + compId + ">, <" + projId + ">, <"+ query + ">, <" + queryType + 
-				">, <" + position + ">, <" + size + ">) -> " + _selection.size() + " values");
-		return _selection;
+		});
 	}
 
 	@Override
 	public ProjectModel createSubproject(
-			HttpServletRequest request,
-			String compId, 
-			String projId,
-			ProjectModel project) 
+			final HttpServletRequest request,
+			final String compId, 
+			final String projId,
+			final ProjectModel project) 
 					throws DuplicateException, NotFoundException, ValidationException
 	{
-		readWttCompany(compId);  	// validate existence of company
-		WttProject _parentProject = readWttProject(projId);
-		WttProject _subProject = createWttProject(request, project);
-		ProjectModel _pm = _subProject.getModel();
-		projectIndex.put(_pm.getId(), _subProject);
-		_parentProject.addProject(_subProject);
-
-		logger.info("createSubproject(" + compId + ", " + projId + ") -> " + PrettyPrinter.prettyPrintAsJSON(_pm));
-		if (isPersistent) {
-			exportJson(companyIndex.values());
-		}
-		return _pm;
+		return metrics.call("createSubproject", new WttMetrics.Call<ProjectModel>() {
+			@Override
+			public ProjectModel call() {
+				WttCompany _company = readWttCompany(compId);
+				WttProject _subProject = createWttProject(request, project);
+				ProjectModel _pm = _subProject.getModel();
+				synchronized (_company) {
+					checkResident(_company);
+					WttProject _parentProject = readResidentProject(compId, projId);
+					_subProject.setOwner(compId, projId);
+					projectIndex.put(_pm.getId(), _subProject);
+					_parentProject.addProject(_subProject);
+					searchIndex.put(projectScope(projId), toDocument(_pm));
+					invalidateTree(compId, projId);
+					persist(new JournalEntry(Op.CREATE, EntityType.PROJECT, _pm.getId(), compId, projId,
+							WttJournal.toPayload(_pm)));
+				}
+				logDetail("createSubproject(" + compId + ", " + projId + ") -> " + _pm.getId(), _pm);
+				return _pm;
+			}
+		});
 	}
 
 	@Override
 	public ProjectModel readSubproject(
-			String compId, 
-			String projId,
-			String subprojId) 
+			final String compId, 
+			final String projId,
+			final String subprojId) 
 					throws NotFoundException 
 	{
-		readWttCompany(compId);  	// validate existence of company
-		readWttProject(projId); 	// validate existence of parent project
-		ProjectModel _p = readWttProject(subprojId).getModel();
-		logger.info("readSubproject(" + subprojId + ") -> "
-				+ PrettyPrinter.prettyPrintAsJSON(_p));
-		return _p;
+		return metrics.call("readSubproject", new WttMetrics.Call<ProjectModel>() {
+			@Override
+			public ProjectModel call() {
+				readWttCompany(compId);  	// validate existence of company
+				ProjectModel _p = readWttSubproject(compId, projId, subprojId).getModel();
+				logDetail("readSubproject(" + subprojId + ")", _p);
+				return _p;
+			}
+		});
 	}
 
 	@Override
 	public ProjectModel updateSubproject(
-			HttpServletRequest request,
-			String compId, 
-			String projId,
-			String subprojId, 
-			ProjectModel subproject) 
+			final HttpServletRequest request,
+			final String compId, 
+			final String projId,
+			final String subprojId, 
+			final ProjectModel subproject) 
 					throws NotFoundException, ValidationException
 	{
-		readWttCompany(compId);  	// validate existence of company
-		readWttProject(projId); 	// validate existence of parent project
-		WttProject _wttSubProject = readWttProject(subprojId);
-		ProjectModel _pm = _wttSubProject.getModel();	
-		if (! _pm.getCreatedAt().equals(subproject.getCreatedAt())) {
-			logger.warning("subproject<" + projId + ">: ignoring createAt value <" + 
-					subproject.getCreatedAt().toString() + "> because it was set on the client.");
-		}
-		if (! _pm.getCreatedBy().equalsIgnoreCase(subproject.getCreatedBy())) {
-			logger.warning("subproject<" + projId + ">: ignoring createBy value <" +
-					subproject.getCreatedBy() + "> because it was set on the client.");
-		}
-		_pm.setTitle(subproject.getTitle());
-		_pm.setDescription(subproject.getDescription());
-		_pm.setModifiedAt(new Date());
-		_pm.setModifiedBy(ServiceUtil.getPrincipal(request));
-		_wttSubProject.setModel(_pm);
-		projectIndex.put(subprojId, _wttSubProject);
-		logger.info("updateSubProject(" + compId + ", " + projId + ", " + subprojId + ") -> " + PrettyPrinter.prettyPrintAsJSON(_pm));
-		if (isPersistent) {
-			exportJson(companyIndex.values());
-		}
-		return _pm;
+		return metrics.call("updateSubproject", new WttMetrics.Call<ProjectModel>() {
+			@Override
+			public ProjectModel call() {
+				return updateSubproject(request, compId, projId, subprojId, subproject, ANY_VERSION);
+			}
+		});
+	}
+
+	/**
+	 * Update a subproject if it was not changed since the client read it.
+	 * 
+	 * @param request
+	 * @param compId
+	 * @param projId
+	 * @param subprojId
+	 * @param subproject
+	 * @param expectedVersion the version the update is based on (see getProjectVersion), or ANY_VERSION
+	 * @return the new model
+	 * @throws NotFoundException
+	 * @throws ValidationException
+	 * @throws ConflictException if the subproject was changed in the meantime
+	 */
+	public ProjectModel updateSubproject(
+			final HttpServletRequest request,
+			final String compId, 
+			final String projId,
+			final String subprojId, 
+			final ProjectModel subproject,
+			final long expectedVersion) 
+					throws NotFoundException, ValidationException, ConflictException
+	{
+		return metrics.call("updateSubproject", new WttMetrics.Call<ProjectModel>() {
+			@Override
+			public ProjectModel call() {
+				WttCompany _company = readWttCompany(compId);
+				validateUpdatedProject(subproject);
+				ProjectModel _pm;
+				JournalEntry _entry;
+				synchronized (_company) {
+					checkResident(_company);
+					WttProject _wttSubProject = readResidentSubproject(compId, projId, subprojId);
+					_entry = updateWttProject(request, _company, _wttSubProject, subproject, expectedVersion);
+					_pm = _wttSubProject.getModel();
+					persist(_entry);
+				}
+				logDetail("updateSubProject(" + compId + ", " + projId + ", " + subprojId + ") -> version "
+						+ _entry.getVersion(), _pm);
+				return _pm;
+			}
+		});
 	}
 
 	@Override
-	public void deleteSubproject(String compId, String projId, String subprojId)
-			throws NotFoundException, InternalServerErrorException { 
-		readWttCompany(compId);
-		WttProject _parentProject = readWttProject(projId);
-		WttProject _subProject = readWttProject(subprojId);
-		
-		// 1) remove all subprojects from this project
-		removeProjectsFromIndexRecursively(_subProject.getProjects());
-		
-		// 2) remove the project from the index
-		if (projectIndex.remove(subprojId) == null) {
-			throw new InternalServerErrorException("subproject <" + subprojId
-					+ "> can not be removed, because it does not exist in the index.");
-		}
-		
-		// 3) remove the subproject from its parent project
-		if (_parentProject.removeProject(_subProject) == false) {
-			throw new InternalServerErrorException("subproject <" + subprojId
-					+ "> can not be removed, because it is an orphan.");
-		}
+	public void deleteSubproject(final String compId, final String projId, final String subprojId)
+			throws NotFoundException, InternalServerErrorException {
+		metrics.call("deleteSubproject", new WttMetrics.Call<Void>() {
+			@Override
+			public Void call() {
+				WttCompany _company = readWttCompany(compId);
+				synchronized (_company) {
+					checkResident(_company);
+					WttProject _parentProject = readResidentProject(compId, projId);
+					WttProject _subProject = readResidentSubproject(compId, projId, subprojId);
+			
+					// 1) remove all subprojects from this project
+					removeProjectsFromIndexRecursively(_subProject.getProjects());
+					removeResourcesFromIndex(_subProject);
+					removeFromSearchIndex(subprojId);
 			
-		logger.info("deleteSubproject(" + compId + ", " + projId + ", " + subprojId + ") -> OK");
-		if (isPersistent) {
-			exportJson(companyIndex.values());
-		}	
+					// 2) remove the project from the index
+					if (projectIndex.remove(subprojId) == null) {
+						throw new InternalServerErrorException("subproject <" + subprojId
+								+ "> can not be removed, because it does not exist in the index.");
+					}
+			
+					// 3) remove the subproject from its parent project
+					if (_parentProject.removeProject(_subProject) == false) {
+						throw new InternalServerErrorException("subproject <" + subprojId
+								+ "> can not be removed, because it is an orphan.");
+					}
+					invalidateTree(compId, projId);
+					persist(new JournalEntry(Op.DELETE, EntityType.PROJECT, subprojId, compId, projId, null));
+				}
+				logger.info("deleteSubproject(" + compId + ", " + projId + ", " + subprojId + ") -> OK");
+				return null;
+			}
+		});
 	}
 
 	/******************************** resourceRef *****************************************/
 	@Override
 	public List<ResourceRefModel> listResourceRefs(
-			String compId,
-			String projId,
-			String query, 
-			String queryType, 
-			int position, 
-			int size
+			final String compId,
+			final String projId,
+			final String query, 
+			final String queryType, 
+			final int position, 
+			final int size
 	) {
-		readWttCompany(compId);		// verify existence of compId
-		List<ResourceRefModel> _resources = readWttProject(projId).getResources();
-		Collections.sort(_resources, ResourceRefModel.ResourceRefComparator);
-		ArrayList<ResourceRefModel> _selection = new ArrayList<ResourceRefModel>();
-		for (int i = 0; i < _resources.size(); i++) {
-			if (i >= position && i < (position + size)) {
-				_selection.add(_resources.get(i));
+		return metrics.call("listResourceRefs", new WttMetrics.Call<List<ResourceRefModel>>() {
+			@Override
+			public List<ResourceRefModel> call() {
+				readWttCompany(compId);		// verify existence of compId
+				List<ResourceRefModel> _resources = readWttProject(compId, projId).getResources();
+				if (WttSearchIndex.isQuery(queryType, query)) {
+					List<ResourceRefModel> _matches = new ArrayList<ResourceRefModel>();
+					for (String _id : searchIndex.search(resourceScope(projId), queryType, query)) {
+						WttResourceRef _r = resourceIndex.get(_id);
+						if (_r != null) {
+							_matches.add(_r.getModel());
+						}
+					}
+					Collections.sort(_matches, WttProject.RESOURCE_COMPARATOR);
+					_resources = _matches;
+				}
+				// the resources are kept sorted, so the live list is sliced and not sorted in place
+				ArrayList<ResourceRefModel> _selection = SortedLists.slice(_resources, position, size);
+				logger.info("listResourceRefs(" + compId + ", " + projId + ", " + query + ", " + 
+						queryType + ", " + position + ", " + size + ") -> " + _selection.size()	+ " values");
+				return _selection;
 			}
-		}		
-		logger.info("listResourceRefs(" + compId + ", " + projId + ", " + query + ", " + 
-				queryType + ", " + position + ", " + size + ") -> " + _selection.size()	+ " values");
-		return _selection;
+		});
 	}
 
 	// this _adds_ (or creates) an existing resourceRef to the resource list in project projId.
@@ -649,26 +1679,53 @@ public class FileServiceProvider extends AbstractFileServiceProvider<WttCompany>
 	// the idea is to get (and administer) a resource in a separate service (e.g. AddressBook)
 	@Override
 	public ResourceRefModel addResourceRef(
-			HttpServletRequest request,
-			String compId,
-			String projId, 
-			ResourceRefModel resourceRef)
+			final HttpServletRequest request,
+			final String compId,
+			final String projId, 
+			final ResourceRefModel resourceRef)
 					throws NotFoundException, DuplicateException, ValidationException {
-		readWttCompany(compId);		// verify existence of compId
-		WttProject _p = readWttProject(projId);
-		// TODO: verify the validity of the referenced resourceId
-		/*
-		String _rid = resourceRef.getResourceId();
-		if (_rid == null || _rid == "") {
-			throw new NotFoundException("a resourceRef with empty or null id is not valid, because its resource can not be found");
-			// TODO: check whether the referenced resource exists -> NotFoundException
-			// TODO: verify firstName and lastName (these attributes are only cached from Resource)
-		}
-		*/
+		return metrics.call("addResourceRef", new WttMetrics.Call<ResourceRefModel>() {
+			@Override
+			public ResourceRefModel call() {
+				WttCompany _company = readWttCompany(compId);
+				// TODO: verify the validity of the referenced resourceId
+				/*
+				String _rid = resourceRef.getResourceId();
+				if (_rid == null || _rid == "") {
+					throw new NotFoundException("a resourceRef with empty or null id is not valid, because its resource can not be found");
+					// TODO: check whether the referenced resource exists -> NotFoundException
+					// TODO: verify firstName and lastName (these attributes are only cached from Resource)
+				}
+				*/
+				validateNewResourceRef(resourceRef);
+				// the name may be loaded from the resources service, which is not called with the monitor held
+				String _resourceName = resourceNameCache.get(resourceRef.getResourceId());
+				JournalEntry _entry;
+				synchronized (_company) {
+					checkResident(_company);
+					WttProject _p = readResidentProject(compId, projId);
+					_entry = indexNewResourceRef(request, compId, _p, resourceRef, _resourceName);
+					_p.addResource(resourceRef);
+					invalidateTree(compId, projId);
+					persist(_entry);
+				}
+				return resourceRef;
+			}
+		});
+	}
+
+	/**
+	 * Verify that a resourceRef can be added; the resourceRef is not changed.
+	 * 
+	 * @param resourceRef
+	 * @throws DuplicateException
+	 * @throws ValidationException
+	 */
+	private static void validateNewResourceRef(
+			ResourceRefModel resourceRef)
+					throws DuplicateException, ValidationException {
 		String _id = resourceRef.getId();
-		if (_id == null || _id == "") {
-			_id = UUID.randomUUID().toString();
-		} else {
+		if (_id != null && _id != "") {
 			if (resourceIndex.get(_id) != null) {
 				// resourceRef with same ID exists already
 				throw new DuplicateException("resourceRef <" + resourceRef.getId() +
@@ -683,9 +1740,27 @@ public class FileServiceProvider extends AbstractFileServiceProvider<WttCompany>
 			throw new ValidationException("resourceRef <" + resourceRef.getId() +
 					"> must have a valid resourceId.");
 		}
-		ResourceModel _resourceModel = getResourceModel(resourceRef.getResourceId());
-		resourceRef.setResourceName(_resourceModel.getName());
-		
+	}
+
+	/**
+	 * Initialize a validated resourceRef and add it to the resourceRef and search indexes.
+	 * The caller adds the resourceRef to the project.
+	 * 
+	 * @param request
+	 * @param compId
+	 * @param project the project the resourceRef is assigned to
+	 * @param resourceRef
+	 * @param resourceName the name of the referenced resource
+	 * @return the journal entry of the new resourceRef
+	 */
+	private JournalEntry indexNewResourceRef(
+			HttpServletRequest request,
+			String compId,
+			WttProject project,
+			ResourceRefModel resourceRef,
+			String resourceName) {
+		String _id = idGenerator.newId();
+		resourceRef.setResourceName(resourceName);
 		resourceRef.setId(_id);
 		Date _date = new Date();
 		resourceRef.setCreatedAt(_date);
@@ -693,52 +1768,1273 @@ public class FileServiceProvider extends AbstractFileServiceProvider<WttCompany>
 		resourceRef.setModifiedAt(_date);
 		resourceRef.setModifiedBy(ServiceUtil.getPrincipal(request));
 
-		resourceIndex.put(_id, resourceRef);
-		_p.addResource(resourceRef);
-		return resourceRef;
+		String _projId = project.getModel().getId();
+		indexResourceRef(new WttResourceRef(resourceRef, project));
+		searchIndex.put(resourceScope(_projId), toDocument(resourceRef));
+		return new JournalEntry(Op.CREATE, EntityType.RESOURCEREF, _id, compId, _projId,
+				WttJournal.toPayload(resourceRef));
 	}
 	
-	private ResourceModel getResourceModel(
+	private static ResourceModel getResourceModel(
 			String resourceId) {
 		return org.opentdc.resources.file.FileServiceProvider.getResourceModel(resourceId);
 	}
+
+	private static void initResourceNameCache(
+			ServletContext context) {
+		int _size = DEFAULT_NAME_CACHE_SIZE;
+		long _ttl = DEFAULT_NAME_CACHE_TTL;
+		if (context.getInitParameter(NAME_CACHE_SIZE_PARAM) != null) {
+			_size = Integer.parseInt(context.getInitParameter(NAME_CACHE_SIZE_PARAM));
+		}
+		if (context.getInitParameter(NAME_CACHE_TTL_PARAM) != null) {
+			_ttl = Long.parseLong(context.getInitParameter(NAME_CACHE_TTL_PARAM));
+		}
+		resourceNameCache = new ResourceNameCache(new ResourceNameCache.Loader() {
+			@Override
+			public String load(String resourceId) {
+				return getResourceModel(resourceId).getName();
+			}
+		}, _size, _ttl);
+	}
+
+	/**
+	 * Invalidation hook for the resources service: drop the cached name of a renamed or deleted resource.
+	 * 
+	 * @param resourceId
+	 */
+	public static void invalidateResourceName(
+			final String resourceId) {
+		metrics.call("invalidateResourceName", new WttMetrics.Call<Void>() {
+			@Override
+			public Void call() {
+				if (resourceNameCache != null) {
+					resourceNameCache.invalidate(resourceId);
+				}
+				return null;
+			}
+		});
+	}
 		
 	@Override
 	public void removeResourceRef(
-			String compId,
-			String projId, 
-			String resourceId)
+			final String compId,
+			final String projId, 
+			final String resourceId)
 					throws NotFoundException, InternalServerErrorException {
-		readWttCompany(compId);		// verify existence of compId
-		WttProject _p = readWttProject(projId);
-		if (! _p.removeResource(resourceId)) {
-			throw new NotFoundException("resource <" + resourceId + "> was not found in project <" + projId + ">.");
-		}
-		if (resourceIndex.remove(resourceId) == null) {
-			throw new InternalServerErrorException("resource <" + resourceId
-					+ "> can not be removed, because it was not in the index.");
-		}
-		if (isPersistent) {
-			exportJson(companyIndex.values());
+		metrics.call("removeResourceRef", new WttMetrics.Call<Void>() {
+			@Override
+			public Void call() {
+				WttCompany _company = readWttCompany(compId);
+				ResourceRefModel _r;
+				synchronized (_company) {
+					checkResident(_company);
+					WttProject _p = readResidentProject(compId, projId);
+					_r = _p.getResource(resourceId);
+					if (_r == null || ! _p.removeResource(_r)) {
+						throw new NotFoundException("resource <" + resourceId + "> was not found in project <" + projId + ">.");
+					}
+					if (unindexResourceRef(_r.getId()) == null) {
+						throw new InternalServerErrorException("resource <" + resourceId
+								+ "> can not be removed, because it was not in the index.");
+					}
+					searchIndex.remove(_r.getId());
+					invalidateTree(compId, projId);
+					persist(new JournalEntry(Op.DELETE, EntityType.RESOURCEREF, _r.getId(), compId, projId, null));
+				}
+				logger.info("removeResourceRef(" + projId + ", " + resourceId + ") -> resource removed.");			
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Return the projects a resource is assigned to (e.g. for staffing reports),
+	 * using the reverse index instead of walking all companies.
+	 * 
+	 * @param resourceId
+	 * @return the projects, sorted by WttProject.COMPARATOR
+	 */
+	public List<ProjectModel> listProjectsByResource(
+			final String resourceId) {
+		return metrics.call("listProjectsByResource", new WttMetrics.Call<List<ProjectModel>>() {
+			@Override
+			public List<ProjectModel> call() {
+				loadCompaniesOfResource(resourceId);
+				List<WttProject> _projects = new ArrayList<WttProject>();
+				Set<WttResourceRef> _refs = resourceRefsByResource.get(resourceId);
+				if (_refs != null) {
+					Set<WttProject> _seen = Collections.newSetFromMap(new IdentityHashMap<WttProject, Boolean>());
+					for (WttResourceRef _ref : _refs) {
+						if (_seen.add(_ref.getProject())) {
+							_projects.add(_ref.getProject());
+						}
+					}
+				}
+				Collections.sort(_projects, WttProject.COMPARATOR);
+				List<ProjectModel> _selection = new ArrayList<ProjectModel>(_projects.size());
+				for (WttProject _p : _projects) {
+					_selection.add(_p.getModel());
+				}
+				logger.info("listProjectsByResource(" + resourceId + ") -> " + _selection.size() + " values");
+				evictIdleCompanies();
+				return _selection;
+			}
+		});
+	}
+
+	/**
+	 * Return all resourceRefs that reference a resource.
+	 * 
+	 * @param resourceId
+	 * @return the resourceRefs, sorted by WttProject.RESOURCE_COMPARATOR
+	 */
+	public List<ResourceRefModel> listResourceRefsByResource(
+			final String resourceId) {
+		return metrics.call("listResourceRefsByResource", new WttMetrics.Call<List<ResourceRefModel>>() {
+			@Override
+			public List<ResourceRefModel> call() {
+				loadCompaniesOfResource(resourceId);
+				List<ResourceRefModel> _selection = new ArrayList<ResourceRefModel>();
+				Set<WttResourceRef> _refs = resourceRefsByResource.get(resourceId);
+				if (_refs != null) {
+					for (WttResourceRef _ref : _refs) {
+						_selection.add(_ref.getModel());
+					}
+				}
+				Collections.sort(_selection, WttProject.RESOURCE_COMPARATOR);
+				logger.info("listResourceRefsByResource(" + resourceId + ") -> " + _selection.size() + " values");
+				evictIdleCompanies();
+				return _selection;
+			}
+		});
+	}
+
+	/**
+	 * Propagate the new name of a renamed resource to all resourceRefs that reference it,
+	 * in O(number of resourceRefs) by the reverse index. The cached name is invalidated.
+	 * The resourceRefs of each company are replaced by renamed copies under the monitor of the company,
+	 * and the changes of each company are persisted at once.
+	 * 
+	 * @param resourceId
+	 * @param resourceName the new name
+	 * @return the number of updated resourceRefs
+	 */
+	public int renameResource(
+			final String resourceId,
+			final String resourceName) {
+		return metrics.call("renameResource", new WttMetrics.Call<Integer>() {
+			@Override
+			public Integer call() {
+				loadCompaniesOfResource(resourceId);
+				invalidateResourceName(resourceId);
+				Set<String> _companyIds = new LinkedHashSet<String>();
+				for (WttResourceRef _ref : getResourceRefsOfResource(resourceId)) {
+					_companyIds.add(_ref.getProject().getCompanyId());
+				}
+				int _count = 0;
+				for (String _compId : _companyIds) {
+					WttCompany _company = companyIndex.get(_compId);
+					if (_company == null) {
+						continue;
+					}
+					synchronized (_company) {
+						try {
+							checkResident(_company);
+						} catch (NotFoundException _ex) {
+							// the company was deleted in the meantime
+							continue;
+						}
+						// read again under the monitor, the resourceRefs may have changed or been reloaded in the meantime
+						List<JournalEntry> _entries = new ArrayList<JournalEntry>();
+						for (WttResourceRef _ref : getResourceRefsOfResource(resourceId)) {
+							WttProject _p = _ref.getProject();
+							if (_compId.equals(_p.getCompanyId()) && resourceIndex.get(_ref.getModel().getId()) == _ref) {
+								ResourceRefModel _r = renameResourceRef(_ref, resourceName);
+								_entries.add(new JournalEntry(Op.UPDATE, EntityType.RESOURCEREF, _r.getId(), _compId,
+										_p.getModel().getId(), WttJournal.toPayload(_r)));
+							}
+						}
+						_count += _entries.size();
+						persist(_entries.toArray(new JournalEntry[_entries.size()]));
+					}
+				}
+				logger.info("renameResource(" + resourceId + ") -> " + _count + " resourceRefs updated");
+				evictIdleCompanies();
+				return _count;
+			}
+		});
+	}
+
+	private static List<WttResourceRef> getResourceRefsOfResource(
+			String resourceId) {
+		Set<WttResourceRef> _refs = resourceRefsByResource.get(resourceId);
+		return _refs == null ? new ArrayList<WttResourceRef>() : new ArrayList<WttResourceRef>(_refs);
+	}
+
+	/**
+	 * Replace a resourceRef by a copy with a new resource name at its new sorted position in its project.
+	 * The model is not modified, because readers and the snapshot writer may hold it.
+	 * Called with the monitor of the company held.
+	 * 
+	 * @param entry the indexed resourceRef
+	 * @param resourceName
+	 * @return the renamed copy
+	 */
+	private static ResourceRefModel renameResourceRef(
+			WttResourceRef entry,
+			String resourceName) {
+		ResourceRefModel _old = entry.getModel();
+		ResourceRefModel _r = new ResourceRefModel();
+		_r.setId(_old.getId());
+		_r.setResourceId(_old.getResourceId());
+		_r.setResourceName(resourceName);
+		_r.setCreatedAt(_old.getCreatedAt());
+		_r.setCreatedBy(_old.getCreatedBy());
+		_r.setModifiedAt(_old.getModifiedAt());
+		_r.setModifiedBy(_old.getModifiedBy());
+		WttProject _p = entry.getProject();
+		_p.replaceResource(_old, _r);
+		// the new entry replaces the old one in the resourceRef index, then the old one leaves the reverse index
+		indexResourceRef(new WttResourceRef(_r, _p));
+		Set<WttResourceRef> _refs = resourceRefsByResource.get(_r.getResourceId());
+		if (_refs != null) {
+			_refs.remove(entry);
+		}
+		searchIndex.update(toDocument(_r));
+		return _r;
+	}
+
+	/******************************** batch operations *****************************************/
+	/**
+	 * Create new projects including their subprojects and resourceRefs, e.g. for an import.
+	 * All projects and resourceRefs are validated before the first one is created,
+	 * and the changes are persisted at once.
+	 * 
+	 * @param request
+	 * @param compId the company ID
+	 * @param projId the parent project of the new projects, or null to create top-level projects
+	 * @param subtrees the new projects
+	 * @return the new top-level (or direct sub-) projects
+	 * @throws DuplicateException
+	 * @throws NotFoundException
+	 * @throws ValidationException
+	 */
+	public List<ProjectModel> createProjectTree(
+			final HttpServletRequest request,
+			final String compId,
+			final String projId,
+			final List<ProjectSubtree> subtrees)
+					throws DuplicateException, NotFoundException, ValidationException {
+		return metrics.call("createProjectTree", new WttMetrics.Call<List<ProjectModel>>() {
+			@Override
+			public List<ProjectModel> call() {
+				WttCompany _company = readWttCompany(compId);
+				if (projId != null) {
+					readWttProject(compId, projId);		// fail fast; looked up again below
+				}
+
+				// 1) collect the subtrees (parents before children) and validate them
+				List<ProjectSubtree> _subtrees = new ArrayList<ProjectSubtree>();
+				Map<ProjectSubtree, ProjectSubtree> _parents = new IdentityHashMap<ProjectSubtree, ProjectSubtree>();
+				Deque<ProjectSubtree> _stack = new ArrayDeque<ProjectSubtree>(subtrees);
+				while (! _stack.isEmpty()) {
+					ProjectSubtree _subtree = _stack.pop();
+					if (_subtree.getProject() == null) {
+						throw new ValidationException("a project subtree must contain a project.");
+					}
+					validateNewProject(_subtree.getProject());
+					for (ResourceRefModel _r : _subtree.getResources()) {
+						validateNewResourceRef(_r);
+					}
+					_subtrees.add(_subtree);
+					for (ProjectSubtree _child : _subtree.getSubprojects()) {
+						_parents.put(_child, _subtree);
+						_stack.push(_child);
+					}
+				}
+				List<String> _resourceIds = new ArrayList<String>();
+				for (ProjectSubtree _subtree : _subtrees) {
+					for (ResourceRefModel _r : _subtree.getResources()) {
+						_resourceIds.add(_r.getResourceId());
+					}
+				}
+				Map<String, String> _resourceNames = resourceNameCache.getAll(_resourceIds);
+
+				List<JournalEntry> _entries = new ArrayList<JournalEntry>();
+				List<ProjectModel> _result = new ArrayList<ProjectModel>();
+				synchronized (_company) {
+					checkResident(_company);
+					WttProject _parentProject = projId == null ? null : readResidentProject(compId, projId);
+
+					// 2) create and index the projects and resourceRefs
+					Map<ProjectSubtree, WttProject> _projects = new IdentityHashMap<ProjectSubtree, WttProject>();
+					List<WttProject> _topProjects = new ArrayList<WttProject>();
+					for (ProjectSubtree _subtree : _subtrees) {
+						WttProject _project = createWttProject(request, _subtree.getProject());
+						ProjectModel _pm = _project.getModel();
+						ProjectSubtree _parent = _parents.get(_subtree);
+						String _parentId = _parent == null ? projId : _projects.get(_parent).getModel().getId();
+						_project.setOwner(compId, _parentId);
+						projectIndex.put(_pm.getId(), _project);
+						searchIndex.put(projectScope(_parentId == null ? compId : _parentId), toDocument(_pm));
+						_entries.add(new JournalEntry(Op.CREATE, EntityType.PROJECT, _pm.getId(), compId, _parentId,
+								WttJournal.toPayload(_pm)));
+						for (ResourceRefModel _r : _subtree.getResources()) {
+							_entries.add(indexNewResourceRef(request, compId, _project, _r, _resourceNames.get(_r.getResourceId())));
+						}
+						_project.setResources(_subtree.getResources());
+						_projects.put(_subtree, _project);
+						if (_parent == null) {
+							_topProjects.add(_project);
+							_result.add(_pm);
+						}
+					}
+
+					// 3) link the new projects (each list is sorted once)
+					for (ProjectSubtree _subtree : _subtrees) {
+						List<WttProject> _children = new ArrayList<WttProject>();
+						for (ProjectSubtree _child : _subtree.getSubprojects()) {
+							_children.add(_projects.get(_child));
+						}
+						_projects.get(_subtree).setProjects(_children);
+					}
+					if (_parentProject == null) {
+						_company.addProjects(_topProjects);
+					} else {
+						_parentProject.addProjects(_topProjects);
+					}
+					invalidateTree(compId, projId);
+					persist(_entries.toArray(new JournalEntry[_entries.size()]));
+				}
+				logger.info("createProjectTree(" + compId + ", " + projId + ") -> " + _subtrees.size() + " projects, "
+						+ _resourceIds.size() + " resourceRefs");
+				return _result;
+			}
+		});
+	}
+
+	/**
+	 * Add several resourceRefs to a project. All resourceRefs are validated before the first one is added,
+	 * and the changes are persisted at once.
+	 * 
+	 * @param request
+	 * @param compId
+	 * @param projId
+	 * @param resourceRefs
+	 * @return the new resourceRefs
+	 * @throws NotFoundException
+	 * @throws DuplicateException
+	 * @throws ValidationException
+	 */
+	public List<ResourceRefModel> addResourceRefs(
+			final HttpServletRequest request,
+			final String compId,
+			final String projId,
+			final List<ResourceRefModel> resourceRefs)
+					throws NotFoundException, DuplicateException, ValidationException {
+		return metrics.call("addResourceRefs", new WttMetrics.Call<List<ResourceRefModel>>() {
+			@Override
+			public List<ResourceRefModel> call() {
+				WttCompany _company = readWttCompany(compId);
+				for (ResourceRefModel _r : resourceRefs) {
+					validateNewResourceRef(_r);
+				}
+				List<String> _resourceIds = new ArrayList<String>(resourceRefs.size());
+				for (ResourceRefModel _r : resourceRefs) {
+					_resourceIds.add(_r.getResourceId());
+				}
+				Map<String, String> _resourceNames = resourceNameCache.getAll(_resourceIds);
+				JournalEntry[] _entries = new JournalEntry[resourceRefs.size()];
+				synchronized (_company) {
+					checkResident(_company);
+					WttProject _p = readResidentProject(compId, projId);
+					for (int i = 0; i < resourceRefs.size(); i++) {
+						ResourceRefModel _r = resourceRefs.get(i);
+						_entries[i] = indexNewResourceRef(request, compId, _p, _r, _resourceNames.get(_r.getResourceId()));
+					}
+					_p.addResources(resourceRefs);
+					invalidateTree(compId, projId);
+					persist(_entries);
+				}
+				logger.info("addResourceRefs(" + compId + ", " + projId + ") -> " + resourceRefs.size() + " resourceRefs");
+				return resourceRefs;
+			}
+		});
+	}
+
+	/**
+	 * Delete several projects (on any level) of a company. All projects are verified before
+	 * the first one is removed, and the changes are persisted at once.
+	 * Projects whose ancestor is deleted as well are removed together with the ancestor.
+	 * 
+	 * @param compId
+	 * @param projIds
+	 * @throws NotFoundException
+	 * @throws InternalServerErrorException
+	 */
+	public void deleteProjects(
+			final String compId,
+			final List<String> projIds)
+					throws NotFoundException, InternalServerErrorException {
+		metrics.call("deleteProjects", new WttMetrics.Call<Void>() {
+			@Override
+			public Void call() {
+				WttCompany _company = readWttCompany(compId);
+				List<JournalEntry> _entries = new ArrayList<JournalEntry>();
+				synchronized (_company) {
+					checkResident(_company);
+					Map<String, WttProject> _projects = new LinkedHashMap<String, WttProject>();
+					for (String _id : projIds) {
+						_projects.put(_id, readResidentProject(compId, _id));
+					}
+					// the roots are selected before the first removal, as the removal unlinks the descendants
+					List<WttProject> _roots = new ArrayList<WttProject>();
+					for (WttProject _project : _projects.values()) {
+						if (! hasAncestorIn(_project, _projects.keySet())) {
+							_roots.add(_project);
+						}
+					}
+					for (WttProject _project : _roots) {
+						_entries.add(removeWttProject(_company, _project));
+					}
+					persist(_entries.toArray(new JournalEntry[_entries.size()]));
+				}
+				logger.info("deleteProjects(" + compId + ") -> " + _entries.size() + " projects removed");
+				return null;
+			}
+		});
+	}
+
+	private static boolean hasAncestorIn(
+			WttProject project,
+			Set<String> projIds) {
+		String _id = project.getParentId();
+		while (_id != null) {
+			if (projIds.contains(_id)) {
+				return true;
+			}
+			_id = readResidentProject(project.getCompanyId(), _id).getParentId();
+		}
+		return false;
+	}
+
+	/******************************** change feed *****************************************/
+	/**
+	 * Return the changes after a sequence number, so that a client only fetches the changed entities.
+	 * A client starts with getChangeSequence() before it loads the data; it must reload all data
+	 * if its sequence number has expired.
+	 * 
+	 * @param compId only return the changes of this company; null for all companies
+	 * @param sequence the sequence number of the last change the client has seen
+	 * @param size the maximal number of changes
+	 * @return the changes and the sequence number to continue with
+	 * @throws ChangeFeedExpiredException if the changes since the sequence number are no longer available
+	 */
+	public ChangeSet listChanges(
+			final String compId,
+			final long sequence,
+			final int size)
+					throws ChangeFeedExpiredException {
+		return metrics.call("listChanges", new WttMetrics.Call<ChangeSet>() {
+			@Override
+			public ChangeSet call() {
+				ChangeSet _changes = changeFeed.getChangesSince(sequence, compId, size);
+				logger.info("listChanges(" + compId + ", " + sequence + ", " + size + ") -> "
+						+ _changes.getChanges().size() + " changes up to <" + _changes.getSequence() + ">.");
+				return _changes;
+			}
+		});
+	}
+
+	/**
+	 * @return the sequence number of the latest change
+	 */
+	public static long getChangeSequence() {
+		return changeFeed == null ? 0 : changeFeed.getLastSequence();
+	}
+
+	/**
+	 * Return the version stamp of a company, its projects and resourceRefs (e.g. as ETag):
+	 * the sequence number of its latest change, or of the start of this run if it did not change since.
+	 * A client reads the stamp before it reads the data, and passes it to the conditional reads.
+	 * 
+	 * @param compId
+	 * @return the version stamp
+	 * @throws NotFoundException
+	 */
+	public long getCompanyStamp(
+			final String compId)
+					throws NotFoundException {
+		return metrics.call("getCompanyStamp", new WttMetrics.Call<Long>() {
+			@Override
+			public Long call() {
+				WttCompany _company = companyIndex.get(compId);
+				if (_company == null) {
+					throw new NotFoundException("company <" + compId
+							+ "> was not found.");
+				}
+				return companyStamp(_company);
+			}
+		});
+	}
+
+	private static long companyStamp(
+			WttCompany company) {
+		return Math.max(company.getChangeSequence(), changeFeed.getInitialSequence());
+	}
+
+	/**
+	 * Fail fast if the company did not change since the client's version stamp,
+	 * before anything is loaded or built.
+	 * 
+	 * @param compId
+	 * @param ifNoneMatch the version stamp the client has; a negative value to read unconditionally
+	 * @throws NotFoundException
+	 * @throws NotModifiedException
+	 */
+	private void checkModified(
+			String compId,
+			long ifNoneMatch)
+					throws NotFoundException, NotModifiedException {
+		if (ifNoneMatch >= 0 && getCompanyStamp(compId) == ifNoneMatch) {
+			throw new NotModifiedException("company <" + compId + "> was not modified since <" + ifNoneMatch + ">.");
+		}
+	}
+
+	/******************************** utility methods *****************************************/
+	/**
+	 * Select a page of projects, filtered by the search index if a query is given.
+	 * 
+	 * @param projects the sorted (sub)projects of a company or project
+	 * @param scope the search index scope of these projects
+	 * @param query
+	 * @param queryType
+	 * @param position
+	 * @param size
+	 * @return the selected projects
+	 */
+	private List<WttProject> selectProjects(
+			List<WttProject> projects,
+			String scope,
+			String query,
+			String queryType,
+			int position,
+			int size) {
+		if (! WttSearchIndex.isQuery(queryType, query)) {
+			return SortedLists.slice(projects, position, size);
+		}
+		List<WttProject> _matches = new ArrayList<WttProject>();
+		for (String _id : searchIndex.search(scope, queryType, query)) {
+			WttProject _p = projectIndex.get(_id);
+			if (_p != null) {
+				_matches.add(_p);
+			}
+		}
+		Collections.sort(_matches, WttProject.COMPARATOR);
+		return SortedLists.slice(_matches, position, size);
+	}
+
+	/**
+	 * @param parentId the id of a company (top-level projects) or project (subprojects)
+	 * @return the search index scope of the projects of the parent
+	 */
+	private static String projectScope(
+			String parentId) {
+		return "projects:" + parentId;
+	}
+
+	/**
+	 * @param projId
+	 * @return the search index scope of the resourceRefs of a project
+	 */
+	private static String resourceScope(
+			String projId) {
+		return "resourceRefs:" + projId;
+	}
+
+	private static void checkVersion(
+			String entityType,
+			String id,
+			long currentVersion,
+			long expectedVersion)
+					throws ConflictException {
+		if (expectedVersion != ANY_VERSION && expectedVersion != currentVersion) {
+			throw new ConflictException(entityType + " <" + id + "> was changed (version " + currentVersion
+					+ "), the update is based on version " + expectedVersion + ".");
+		}
+	}
+
+	private static CompanyModel copyOf(
+			CompanyModel c) {
+		CompanyModel _c = new CompanyModel();
+		_c.setId(c.getId());
+		_c.setTitle(c.getTitle());
+		_c.setDescription(c.getDescription());
+		_c.setOrgId(c.getOrgId());
+		_c.setCreatedAt(c.getCreatedAt());
+		_c.setCreatedBy(c.getCreatedBy());
+		_c.setModifiedAt(c.getModifiedAt());
+		_c.setModifiedBy(c.getModifiedBy());
+		return _c;
+	}
+
+	private static ProjectModel copyOf(
+			ProjectModel p) {
+		ProjectModel _p = new ProjectModel();
+		_p.setId(p.getId());
+		_p.setTitle(p.getTitle());
+		_p.setDescription(p.getDescription());
+		_p.setCreatedAt(p.getCreatedAt());
+		_p.setCreatedBy(p.getCreatedBy());
+		_p.setModifiedAt(p.getModifiedAt());
+		_p.setModifiedBy(p.getModifiedBy());
+		return _p;
+	}
+
+	private static WttSearchIndex.Document toDocument(
+			CompanyModel c) {
+		return new WttSearchIndex.Document(c.getId(), c.getTitle(), c.getDescription(), c.getModifiedAt())
+			.attribute(WttSearchIndex.ORG_ID, c.getOrgId())
+			.attribute(WttSearchIndex.CREATED_BY, c.getCreatedBy());
+	}
+
+	private static WttSearchIndex.Document toDocument(
+			ProjectModel p) {
+		return new WttSearchIndex.Document(p.getId(), p.getTitle(), p.getDescription(), p.getModifiedAt())
+			.attribute(WttSearchIndex.CREATED_BY, p.getCreatedBy());
+	}
+
+	private static WttSearchIndex.Document toDocument(
+			ResourceRefModel r) {
+		return new WttSearchIndex.Document(r.getId(), r.getResourceName(), null, r.getModifiedAt())
+			.attribute(WttSearchIndex.RESOURCE_ID, r.getResourceId())
+			.attribute(WttSearchIndex.CREATED_BY, r.getCreatedBy());
+	}
+
+	/**
+	 * Remove a project, its subprojects and resourceRefs from the search index.
+	 * The descendants of the project are removed by removeProjectsFromIndexRecursively.
+	 * 
+	 * @param projId
+	 */
+	private static void removeFromSearchIndex(
+			String projId) {
+		searchIndex.remove(projId);
+		searchIndex.removeScope(projectScope(projId));
+		searchIndex.removeScope(resourceScope(projId));
+	}
+
+	/**
+	 * Remove the resourceRefs of a deleted project from the resourceRef index.
+	 * 
+	 * @param project
+	 */
+	private static void removeResourcesFromIndex(
+			WttProject project) {
+		for (ResourceRefModel _r : project.getResources()) {
+			unindexResourceRef(_r.getId());
+		}
+	}
+
+	/**
+	 * Add a resourceRef to the resourceRef index and to the reverse index of its resource.
+	 * 
+	 * @param entry
+	 */
+	private static void indexResourceRef(
+			WttResourceRef entry) {
+		resourceIndex.put(entry.getModel().getId(), entry);
+		String _resourceId = entry.getModel().getResourceId();
+		if (_resourceId == null) {
+			return;
+		}
+		while (true) {
+			Set<WttResourceRef> _refs = resourceRefsByResource.get(_resourceId);
+			if (_refs == null) {
+				Set<WttResourceRef> _newRefs = Collections.newSetFromMap(new ConcurrentHashMap<WttResourceRef, Boolean>());
+				_refs = resourceRefsByResource.putIfAbsent(_resourceId, _newRefs);
+				if (_refs == null) {
+					_refs = _newRefs;
+				}
+			}
+			_refs.add(entry);
+			// retry if the set was removed as empty by unindexResourceRef in the meantime
+			if (resourceRefsByResource.get(_resourceId) == _refs) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Remove a resourceRef from the resourceRef index and from the reverse index of its resource.
+	 * 
+	 * @param id the resourceRef id
+	 * @return the removed entry or null if it was not indexed
+	 */
+	private static WttResourceRef unindexResourceRef(
+			String id) {
+		WttResourceRef _entry = resourceIndex.remove(id);
+		if (_entry != null && _entry.getModel().getResourceId() != null) {
+			String _resourceId = _entry.getModel().getResourceId();
+			Set<WttResourceRef> _refs = resourceRefsByResource.get(_resourceId);
+			if (_refs != null) {
+				_refs.remove(_entry);
+				if (_refs.isEmpty()) {
+					resourceRefsByResource.remove(_resourceId, _refs);
+				}
+			}
+		}
+		return _entry;
+	}
+
+	/**
+	 * Log a short message (ids and counts) at INFO. The JSON representation of the
+	 * detail object is only built if FINE is enabled.
+	 * 
+	 * @param message
+	 * @param detail
+	 */
+	private static void logDetail(
+			String message,
+			Object detail) {
+		logger.info(message);
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine(message + " -> " + PrettyPrinter.prettyPrintAsJSON(detail));
+		}
+	}
+
+	/******************************** resident companies *****************************************/
+	/**
+	 * Load the companies on demand if wtt.residentCompanies.max is set.
+	 * This requires sharded snapshots, because a company is loaded from and evicted to its own shard.
+	 * 
+	 * @param context
+	 */
+	private static void initResidentCompanies(
+			ServletContext context) {
+		String _max = context.getInitParameter(MAX_RESIDENT_PARAM);
+		if (_max == null || Integer.parseInt(_max) <= 0) {
+			return;
+		}
+		if (shardStore == null || ! isPersistent) {
+			logger.warning(MAX_RESIDENT_PARAM + " is ignored, because it requires persistent sharded snapshots ("
+					+ SHARDING_PARAM + "=company).");
+			return;
+		}
+		long _minIdle = DEFAULT_MIN_IDLE;
+		if (context.getInitParameter(MIN_IDLE_PARAM) != null) {
+			_minIdle = Long.parseLong(context.getInitParameter(MIN_IDLE_PARAM));
+		}
+		residentCompanies = new ResidentCompanies(Integer.parseInt(_max), _minIdle, shardStore);
+		logger.info("loading companies on demand: at most " + _max + " companies stay loaded.");
+	}
+
+	/**
+	 * Make sure that the projects and resourceRefs of a company are in memory and record the access.
+	 * Loading a company may evict the least recently used idle companies.
+	 * 
+	 * @param company
+	 * @return the company
+	 */
+	private static WttCompany loadCompany(
+			WttCompany company) {
+		return loadCompany(company, true);
+	}
+
+	/**
+	 * @param company
+	 * @param evict false to defer the eviction, e.g. while several companies are loaded for one request
+	 * @return the company
+	 */
+	private static WttCompany loadCompany(
+			WttCompany company,
+			boolean evict) {
+		if (residentCompanies == null) {
+			return company;
+		}
+		if (! company.isLoaded()) {
+			synchronized (company) {
+				if (! company.isLoaded()) {
+					String _id = company.getModel().getId();
+					WttCompany _stored = null;
+					try {
+						_stored = shardStore.read(_id);
+					} catch (IOException _ex) {
+						throw new InternalServerErrorException("shard of company <" + _id
+								+ "> could not be read: " + _ex.getMessage());
+					}
+					company.setProjects(_stored == null ? new ArrayList<WttProject>() : _stored.getProjects());
+					for (WttProject _project : company.getProjects()) {
+						indexProjectRecursively(_id, null, _project);
+					}
+					residentCompanies.loaded(company);
+					company.getTreeCache().invalidate();
+					company.setLoaded(true);
+					companyLoads.incrementAndGet();
+				}
+			}
+		}
+		if (residentCompanies.touch(company) && evict) {
+			evictIdleCompanies();
+		}
+		return company;
+	}
+
+	/**
+	 * Load all companies that contain resourceRefs to a resource, e.g. before the resource is renamed.
+	 * The eviction is deferred, the caller must call evictIdleCompanies() when it is done.
+	 * 
+	 * @param resourceId
+	 */
+	private static void loadCompaniesOfResource(
+			String resourceId) {
+		if (residentCompanies == null) {
+			return;
+		}
+		for (String _companyId : residentCompanies.getUnloadedCompaniesOfResource(resourceId)) {
+			WttCompany _company = companyIndex.get(_companyId);
+			if (_company != null) {
+				loadCompany(_company, false);
+			}
+		}
+	}
+
+	/**
+	 * Evict the projects and resourceRefs of the least recently used companies beyond the budget
+	 * that were idle for at least wtt.residentCompanies.minIdle. A changed company is written
+	 * to its shard before it is evicted; if this fails, the company stays loaded.
+	 */
+	private static void evictIdleCompanies() {
+		if (residentCompanies == null) {
+			return;
+		}
+		for (WttCompany _company : residentCompanies.selectEvictions()) {
+			String _id = _company.getModel().getId();
+			synchronized (_company) {
+				if (! _company.isLoaded() || companyIndex.get(_id) != _company) {
+					continue;
+				}
+				// the shard lock excludes a concurrent shard write, which would otherwise find the company
+				// unloaded after it took its dirty mark
+				synchronized (_company.getShardLock()) {
+					if (dirtyCompanies.remove(_id)) {
+						try {
+							long _start = System.nanoTime();
+							metrics.recordWrite(_start, shardStore.write(_company));
+						} catch (IOException _ex) {
+							dirtyCompanies.add(_id);
+							residentCompanies.touch(_company);
+							logger.log(Level.WARNING, "company <" + _id + "> is not evicted, because its shard could not be written.", _ex);
+							continue;
+						}
+					}
+					residentCompanies.unloaded(_company);
+					removeProjectsFromIndexRecursively(_company.getProjects());
+					searchIndex.removeScope(projectScope(_id));
+					_company.setProjects(new ArrayList<WttProject>());
+					_company.getTreeCache().invalidate();
+					_company.setLoaded(false);
+					companyEvictions.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/******************************** persistence *****************************************/
+	/**
+	 * Persist a mutation, publish it in the change feed and advance the version stamp of the company. In sync mode, the whole data set (or, if sharded, the shards of the changed companies) is rewritten.
+	 * In journal mode, the entries are appended to the journal and a new snapshot
+	 * is only written when the journal exceeds the compaction threshold.
+	 * In writeBehind mode, the mutation is only counted and the background flusher
+	 * writes the whole data set later on.
+	 * 
+	 * @param entries the mutations that were applied to the indexes
+	 */
+	private void persist(
+			JournalEntry... entries) {
+		long _sequence;
+		try {
+			_sequence = changeFeed.append(entries);
+		} catch (IOException _ex) {
+			throw new InternalServerErrorException("sequence numbers of the change feed could not be reserved: "
+					+ _ex.getMessage());
+		}
+		for (JournalEntry _entry : entries) {
+			WttCompany _company = _entry.getCompanyId() == null ? null : companyIndex.get(_entry.getCompanyId());
+			if (_company != null) {
+				_company.advanceChangeSequence(_sequence);
+			}
+		}
+		if (! isPersistent || entries.length == 0) {
+			return;
+		}
+		if (shardStore != null) {
+			for (JournalEntry _entry : entries) {
+				if (_entry.getCompanyId() != null) {
+					dirtyCompanies.add(_entry.getCompanyId());
+				}
+			}
+		}
+		if (flusher != null) {
+			for (int i = 0; i < entries.length; i++) {
+				flusher.markDirty();
+			}
+			return;
+		}
+		if (journal == null) {
+			writeSnapshot();
+			return;
+		}
+		try {
+			long _start = System.nanoTime();
+			metrics.recordWrite(_start, journal.append(Arrays.asList(entries)));
+		} catch (IOException _ex) {
+			throw new InternalServerErrorException("journal <" + journal.getFile().getName()
+					+ "> could not be written: " + _ex.getMessage());
+		}
+		if (journal.size() >= compactionThreshold) {
+			compact();
+		}
+	}
+
+	/**
+	 * Atomically replace the data file with a snapshot of all companies.
+	 * If the companies are sharded, only the shards of the companies that changed since the last write are replaced.
+	 */
+	private static void writeSnapshot() {
+		if (shardStore != null) {
+			writeDirtyShards();
+			return;
+		}
+		try {
+			long _start = System.nanoTime();
+			metrics.recordWrite(_start, snapshotWriter.write(companyIndex.values()));
+		} catch (IOException _ex) {
+			throw new InternalServerErrorException("snapshot <" + snapshotWriter.getFile().getName()
+					+ "> could not be written: " + _ex.getMessage());
+		}
+	}
+
+	/**
+	 * Write (or delete) the shard of each company that changed since its shard was last written.
+	 * A company is marked clean before its shard is written, so that a concurrent mutation marks it dirty again.
+	 * An evicted company is skipped, because it was written before its eviction.
+	 */
+	private static void writeDirtyShards() {
+		for (String _companyId : new ArrayList<String>(dirtyCompanies)) {
+			WttCompany _company = companyIndex.get(_companyId);
+			try {
+				if (_company == null) {
+					if (dirtyCompanies.remove(_companyId)) {
+						shardStore.delete(_companyId);
+					}
+					continue;
+				}
+				// the shard is locked against the eviction of the company, which also writes a dirty company;
+				// only the shard lock is taken, as persist() is called with entity monitors held
+				synchronized (_company.getShardLock()) {
+					if (dirtyCompanies.remove(_companyId) && _company.isLoaded()) {
+						long _start = System.nanoTime();
+						metrics.recordWrite(_start, shardStore.write(_company));
+					}
+				}
+			} catch (IOException _ex) {
+				dirtyCompanies.add(_companyId);
+				throw new InternalServerErrorException("shard of company <" + _companyId
+						+ "> could not be written: " + _ex.getMessage());
+			}
+		}
+	}
+
+
+	/**
+	 * Write a new snapshot of all companies and truncate the journal.
+	 * Replay is idempotent, therefore mutations that are journaled after the
+	 * snapshot was taken (but before truncation) do no harm.
+	 */
+	private void compact() {
+		synchronized (journal) {
+			writeSnapshot();
+			try {
+				journal.truncate();
+			} catch (IOException _ex) {
+				throw new InternalServerErrorException("journal <" + journal.getFile().getName()
+						+ "> could not be truncated: " + _ex.getMessage());
+			}
+		}
+		logger.info("compacted journal into a new snapshot of " + companyIndex.size() + " companies.");
+	}
+
+	/**
+	 * Start the background flusher that coalesces mutations into periodic writes.
+	 * 
+	 * @param context
+	 */
+	private void initWriteBehind(
+			ServletContext context) {
+		long _interval = DEFAULT_FLUSH_INTERVAL;
+		int _maxPending = DEFAULT_FLUSH_THRESHOLD;
+		if (context.getInitParameter(FLUSH_INTERVAL_PARAM) != null) {
+			_interval = Long.parseLong(context.getInitParameter(FLUSH_INTERVAL_PARAM));
+		}
+		if (context.getInitParameter(FLUSH_THRESHOLD_PARAM) != null) {
+			_maxPending = Integer.parseInt(context.getInitParameter(FLUSH_THRESHOLD_PARAM));
+		}
+		flusher = new WriteBehindFlusher(new Runnable() {
+			@Override
+			public void run() {
+				writeSnapshot();
+			}
+		}, _interval, _maxPending);
+		logger.info("write-behind persistence: flushing every " + _interval + "ms or after "
+				+ _maxPending + " mutations.");
+	}
+
+	/**
+	 * Open the journal, replay it on top of the imported snapshot and compact it.
+	 * 
+	 * @param context
+	 * @param prefix
+	 * @throws IOException
+	 */
+	private void initJournal(
+			ServletContext context,
+			String prefix)
+					throws IOException {
+		String _threshold = context.getInitParameter(COMPACTION_THRESHOLD_PARAM);
+		compactionThreshold = _threshold == null ? DEFAULT_COMPACTION_THRESHOLD : Integer.parseInt(_threshold);
+		journal = new WttJournal(new File(context.getRealPath("/" + prefix + JOURNAL_FN)));
+		List<JournalEntry> _entries = journal.read();
+		for (JournalEntry _entry : _entries) {
+			replay(_entry);
+			if (shardStore != null && _entry.getCompanyId() != null) {
+				dirtyCompanies.add(_entry.getCompanyId());
+			}
+		}
+		logger.info("replayed " + _entries.size() + " journal entries.");
+		if (! _entries.isEmpty() && isPersistent) {
+			compact();
+		}
+	}
+
+	/**
+	 * Apply a journaled mutation to the indexes. Replay is idempotent: creating an
+	 * existing entity overwrites it and deleting a missing entity is ignored.
+	 * 
+	 * @param entry
+	 */
+	private void replay(
+			JournalEntry entry) {
+		WttCompany _company = companyIndex.get(entry.getCompanyId());
+		if (_company != null) {
+			loadCompany(_company);
+		}
+		switch (entry.getType()) {
+		case COMPANY:
+			if (entry.getOp() == Op.DELETE) {
+				if (_company != null) {
+					removeProjectsFromIndexRecursively(_company.getProjects());
+					companyIndex.remove(entry.getId());
+					companyOrder = SortedLists.remove(companyOrder, _company, WttCompany.COMPARATOR);
+					searchIndex.remove(entry.getId());
+					searchIndex.removeScope(projectScope(entry.getId()));
+					if (residentCompanies != null) {
+						residentCompanies.remove(entry.getId());
+					}
+				}
+			} else if (_company == null) {
+				_company = new WttCompany();
+				_company.setModel(WttJournal.fromPayload(entry.getPayload(), CompanyModel.class));
+				_company.setVersion(entry.getVersion());
+				companyIndex.put(entry.getId(), _company);
+				loadCompany(_company);
+				companyOrder = SortedLists.insert(companyOrder, _company, WttCompany.COMPARATOR);
+				searchIndex.put(COMPANY_SCOPE, toDocument(_company.getModel()));
+			} else if (entry.getVersion() == 0 || entry.getVersion() >= _company.getVersion()) {
+				// an update with a lower version is already contained in the snapshot
+				_company.setModel(WttJournal.fromPayload(entry.getPayload(), CompanyModel.class));
+				_company.setVersion(Math.max(_company.getVersion(), entry.getVersion()));
+				companyOrder = SortedLists.reposition(companyOrder, _company, WttCompany.COMPARATOR);
+				searchIndex.update(toDocument(_company.getModel()));
+			}
+			break;
+		case PROJECT:
+			WttProject _project = projectIndex.get(entry.getId());
+			// an existing project knows its parent; the entry is only needed to attach a new one
+			String _parentId = _project != null ? _project.getParentId() : entry.getParentId();
+			WttProject _parent = _parentId == null ? null : projectIndex.get(_parentId);
+			if (entry.getOp() == Op.DELETE) {
+				if (_project != null) {
+					removeProjectsFromIndexRecursively(_project.getProjects());
+					removeResourcesFromIndex(_project);
+					projectIndex.remove(entry.getId());
+					removeFromSearchIndex(entry.getId());
+					if (_parent != null) {
+						_parent.removeProject(_project);
+					} else if (_company != null) {
+						_company.removeProject(_project);
+					}
+				}
+			} else if (entry.getOp() == Op.MOVE) {
+				if (_project != null && entry.getVersion() >= _project.getVersion()) {
+					_project.setModel(WttJournal.fromPayload(entry.getPayload(), ProjectModel.class));
+					_project.setVersion(entry.getVersion());
+					if (entry.getParentId() != null && projectIndex.get(entry.getParentId()) == null) {
+						// the new parent was deleted later, together with the moved project
+						removeProjectsFromIndexRecursively(Collections.singletonList(_project));
+						if (_parent != null) {
+							_parent.removeProject(_project);
+						} else if (_company != null) {
+							_company.removeProject(_project);
+						}
+					} else if (_company != null && (entry.getParentId() == null
+							? _parentId != null : ! entry.getParentId().equals(_parentId))) {
+						relinkProject(_company, _project, entry.getParentId());
+					}
+				}
+			} else if (_project == null) {
+				_project = new WttProject();
+				_project.setModel(WttJournal.fromPayload(entry.getPayload(), ProjectModel.class));
+				_project.setVersion(entry.getVersion());
+				_project.setOwner(entry.getCompanyId(), entry.getParentId());
+				projectIndex.put(entry.getId(), _project);
+				if (_parent != null) {
+					_parent.addProject(_project);
+				} else if (_company != null) {
+					_company.addProject(_project);
+				}
+				searchIndex.put(projectScope(entry.getParentId() == null ? entry.getCompanyId() : entry.getParentId()),
+						toDocument(_project.getModel()));
+			} else if (entry.getVersion() == 0 || entry.getVersion() >= _project.getVersion()) {
+				_project.setModel(WttJournal.fromPayload(entry.getPayload(), ProjectModel.class));
+				_project.setVersion(Math.max(_project.getVersion(), entry.getVersion()));
+				searchIndex.update(toDocument(_project.getModel()));
+				if (_parent != null) {
+					_parent.repositionProject(_project);
+				} else if (_company != null) {
+					_company.repositionProject(_project);
+				}
+			}
+			break;
+		case RESOURCEREF:
+			WttProject _owner = projectIndex.get(entry.getParentId());
+			if (entry.getOp() == Op.DELETE) {
+				WttResourceRef _entry = unindexResourceRef(entry.getId());
+				searchIndex.remove(entry.getId());
+				if (_entry != null) {
+					_entry.getProject().removeResource(_entry.getModel());
+				}
+			} else if (resourceIndex.get(entry.getId()) == null && _owner != null) {
+				ResourceRefModel _ref = WttJournal.fromPayload(entry.getPayload(), ResourceRefModel.class);
+				indexResourceRef(new WttResourceRef(_ref, _owner));
+				_owner.addResource(_ref);
+				searchIndex.put(resourceScope(entry.getParentId()), toDocument(_ref));
+			} else if (entry.getOp() == Op.UPDATE && resourceIndex.get(entry.getId()) != null) {
+				// the only update of a resourceRef is the propagation of a resource name
+				renameResourceRef(resourceIndex.get(entry.getId()),
+						WttJournal.fromPayload(entry.getPayload(), ResourceRefModel.class).getResourceName());
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Stream the most recent snapshot (JSON or binary) and index each company on a fork-join pool as soon as it is parsed.
+	 * Companies are independent of each other, so their projects and resources can be indexed in parallel.
+	 * If the companies are sharded, the shards are parsed in parallel as well; a data set without shards
+	 * is read from the single data file and split into shards.
+	 * 
+	 * @param context
+	 * @param prefix
+	 * @throws IOException
+	 */
+	private void importCompanies(
+			ServletContext context,
+			String prefix)
+					throws IOException {
+		final ForkJoinPool _pool = new ForkJoinPool();
+		final List<ForkJoinTask<?>> _tasks = new ArrayList<ForkJoinTask<?>>();
+		SnapshotReader _reader = new SnapshotReader(
+				new File(context.getRealPath("/" + prefix + SEED_FN)),
+				new File(context.getRealPath("/" + prefix + DATA_FN)),
+				new File(context.getRealPath("/" + prefix + BINARY_DATA_FN)));
+		final boolean _fromShards = shardStore != null && shardStore.exists();
+		try {
+			SnapshotReader.CompanyHandler _handler = new SnapshotReader.CompanyHandler() {
+				@Override
+				public void handle(final WttCompany company) {
+					companyIndex.put(company.getModel().getId(), company);
+					companyOrder.add(company);
+					searchIndex.put(COMPANY_SCOPE, toDocument(company.getModel()));
+					if (residentCompanies != null && _fromShards && residentCompanies.isFull()) {
+						// only the company directory is kept; the projects are loaded from the shard on demand
+						residentCompanies.unloaded(company);
+						company.setProjects(new ArrayList<WttProject>());
+						company.setLoaded(false);
+						return;
+					}
+					if (residentCompanies != null) {
+						residentCompanies.touch(company);
+						if (! _fromShards) {
+							company.setLastAccess(0);		// may be evicted as soon as it is split into shards
+						}
+					}
+					_tasks.add(_pool.submit(new RecursiveAction() {
+						@Override
+						protected void compute() {
+							company.sortProjects();
+							for (WttProject _project : company.getProjects()) {
+								indexProjectRecursively(company.getModel().getId(), null, _project);
+							}
+						}
+					}));
+				}
+			};
+			if (_fromShards) {
+				shardStore.readAll(_handler);
+			} else {
+				_reader.read(_handler);
+			}
+			for (ForkJoinTask<?> _task : _tasks) {
+				_task.join();
+			}
+			companyOrder = SortedLists.sort(companyOrder, WttCompany.COMPARATOR);
+		} finally {
+			_pool.shutdown();
+		}
+		if (shardStore != null && ! _fromShards && isPersistent && ! companyIndex.isEmpty()) {
+			shardStore.writeAll(companyIndex.values());
+			logger.info("split " + companyIndex.size() + " companies into shards in <"
+					+ shardStore.getDirectory().getName() + ">.");
 		}
-		logger.info("removeResourceRef(" + projId + ", " + resourceId + ") -> resource removed.");			
 	}
 
-	/******************************** utility methods *****************************************/
 	/**
 	 * Recursively add all subprojects to the index.
 	 * 
+	 * @param companyId
+	 *            the id of the company the project belongs to
+	 * @param parentId
+	 *            the id of the parent project, or null for a top-level project
 	 * @param project
 	 *            the new entry
 	 */
-	private void indexProjectRecursively(
+	private static void indexProjectRecursively(
+			String companyId,
+			String parentId,
 			WttProject project) {
-		projectIndex.put(project.getModel().getId(), project);
+		String _id = project.getModel().getId();
+		project.setOwner(companyId, parentId);
+		projectIndex.put(_id, project);
+		searchIndex.put(projectScope(parentId == null ? companyId : parentId), toDocument(project.getModel()));
+		project.sort();
 		for (WttProject _childProject : project.getProjects()) {
-			indexProjectRecursively(_childProject);
+			indexProjectRecursively(companyId, _id, _childProject);
 		}
 		for (ResourceRefModel _r : project.getResources()) {
-			resourceIndex.put(_r.getId(), _r);
+			indexResourceRef(new WttResourceRef(_r, project));
+			searchIndex.put(resourceScope(_id), toDocument(_r));
 		}
 	}
 
@@ -747,11 +3043,13 @@ public class FileServiceProvider extends AbstractFileServiceProvider<WttCompany>
 	 * 
 	 * @param childProjects
 	 */
-	private void removeProjectsFromIndexRecursively(
+	private static void removeProjectsFromIndexRecursively(
 			List<WttProject> childProjects) {
 		if (childProjects != null) {
 		for (WttProject _project : childProjects) {
 			removeProjectsFromIndexRecursively(_project.getProjects());
+			removeResourcesFromIndex(_project);
+			removeFromSearchIndex(_project.getModel().getId());
 			if ((projectIndex.remove(_project.getModel().getId())) == null) {
 				throw new InternalServerErrorException("project <" + _project.getModel().getId()
 						+ "> can not be removed, because it does not exist in the index.");
@@ -0,0 +1,101 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import com.google.gson.JsonElement;
+
+/**
+ * A single mutation of the wtt data, as recorded in the journal.
+ * The payload contains the new state of the entity (null for deletions).
+ */
+public class JournalEntry {
+	public enum Op { CREATE, UPDATE, DELETE, MOVE }		// MOVE: a project with its subtree was attached to parentId
+	public enum EntityType { COMPANY, PROJECT, RESOURCEREF }
+
+	private Op op;
+	private EntityType type;
+	private String id;
+	private String companyId;
+	private String parentId;		// parent project (null for companies and top-level projects)
+	private long version;			// version of a company or project after an update (0 otherwise)
+	private JsonElement payload;
+
+	public JournalEntry() {
+	}
+
+	public JournalEntry(
+			Op op,
+			EntityType type,
+			String id,
+			String companyId,
+			String parentId,
+			JsonElement payload) {
+		this(op, type, id, companyId, parentId, 0, payload);
+	}
+
+	public JournalEntry(
+			Op op,
+			EntityType type,
+			String id,
+			String companyId,
+			String parentId,
+			long version,
+			JsonElement payload) {
+		this.op = op;
+		this.type = type;
+		this.id = id;
+		this.companyId = companyId;
+		this.parentId = parentId;
+		this.version = version;
+		this.payload = payload;
+	}
+
+	public Op getOp() {
+		return op;
+	}
+
+	public EntityType getType() {
+		return type;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getCompanyId() {
+		return companyId;
+	}
+
+	public String getParentId() {
+		return parentId;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public JsonElement getPayload() {
+		return payload;
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with logarithmic buckets (in the style of HdrHistogram).
+ * Each power of two is divided into 16 linear sub-buckets, so a percentile is accurate to about 6%.
+ * Recording costs a few atomic increments. The values read while other threads are recording
+ * are not an atomic snapshot, which is good enough for monitoring.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;		// up to Long.MAX_VALUE
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param nanos a latency in nanoseconds; negative values are counted as 0
+	 */
+	public void record(
+			long nanos) {
+		long _value = Math.max(0, nanos);
+		counts.incrementAndGet(index(_value));
+		count.incrementAndGet();
+		sum.addAndGet(_value);
+		long _max = max.get();
+		while (_value > _max && ! max.compareAndSet(_max, _value)) {
+			_max = max.get();
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return the mean latency in nanoseconds, 0 if nothing was recorded
+	 */
+	public long getMean() {
+		long _count = count.get();
+		return _count == 0 ? 0 : sum.get() / _count;
+	}
+
+	/**
+	 * @return the maximal latency in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile e.g. 99.9
+	 * @return the upper bound (in nanoseconds) of the bucket that contains the percentile, 0 if nothing was recorded
+	 */
+	public long getPercentile(
+			double percentile) {
+		long[] _counts = new long[BUCKETS];
+		long _total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			_counts[i] = counts.get(i);
+			_total += _counts[i];
+		}
+		if (_total == 0) {
+			return 0;
+		}
+		long _rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * _total));
+		long _seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			_seen += _counts[i];
+			if (_seen >= _rank) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Values below 16 have a bucket each; above, a bucket covers 1/16 of a power of two.
+	 */
+	static int index(
+			long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int _exponent = 63 - Long.numberOfLeadingZeros(value);
+		int _subBucket = (int) (value >>> (_exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (_exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + _subBucket;
+	}
+
+	static long upperBound(
+			int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int _exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long _width = 1L << (_exponent - SUB_BUCKET_BITS);
+		long _lowerBound = (1L << _exponent) | ((index % SUB_BUCKETS) * _width);
+		return _lowerBound + _width - 1;
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Count, errors and latency percentiles (in microseconds) of one operation,
+ * exposed as a composite value by WttMetricsMXBean.
+ */
+public class OperationStatistics {
+	private final String name;
+	private final long count;
+	private final long errors;
+	private final long meanMicros;
+	private final long p50Micros;
+	private final long p90Micros;
+	private final long p99Micros;
+	private final long p999Micros;
+	private final long maxMicros;
+
+	@ConstructorProperties({ "name", "count", "errors", "meanMicros", "p50Micros", "p90Micros", "p99Micros", "p999Micros", "maxMicros" })
+	public OperationStatistics(
+			String name,
+			long count,
+			long errors,
+			long meanMicros,
+			long p50Micros,
+			long p90Micros,
+			long p99Micros,
+			long p999Micros,
+			long maxMicros) {
+		this.name = name;
+		this.count = count;
+		this.errors = errors;
+		this.meanMicros = meanMicros;
+		this.p50Micros = p50Micros;
+		this.p90Micros = p90Micros;
+		this.p99Micros = p99Micros;
+		this.p999Micros = p999Micros;
+		this.maxMicros = maxMicros;
+	}
+
+	/**
+	 * @param name
+	 * @param latency
+	 * @param errors
+	 * @return the current statistics of the histogram
+	 */
+	public static OperationStatistics of(
+			String name,
+			LatencyHistogram latency,
+			long errors) {
+		return new OperationStatistics(name, latency.getCount(), errors,
+				micros(latency.getMean()),
+				micros(latency.getPercentile(50)),
+				micros(latency.getPercentile(90)),
+				micros(latency.getPercentile(99)),
+				micros(latency.getPercentile(99.9)),
+				micros(latency.getMax()));
+	}
+
+	private static long micros(
+			long nanos) {
+		return nanos / 1000;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getErrors() {
+		return errors;
+	}
+
+	public long getMeanMicros() {
+		return meanMicros;
+	}
+
+	public long getP50Micros() {
+		return p50Micros;
+	}
+
+	public long getP90Micros() {
+		return p90Micros;
+	}
+
+	public long getP99Micros() {
+		return p99Micros;
+	}
+
+	public long getP999Micros() {
+		return p999Micros;
+	}
+
+	public long getMaxMicros() {
+		return maxMicros;
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opentdc.wtt.ProjectModel;
+import org.opentdc.wtt.ResourceRefModel;
+
+/**
+ * A new project together with its new subprojects and resourceRefs,
+ * the input of FileServiceProvider.createProjectTree().
+ */
+public class ProjectSubtree {
+	private ProjectModel project;
+	private List<ProjectSubtree> subprojects = new ArrayList<ProjectSubtree>();
+	private List<ResourceRefModel> resources = new ArrayList<ResourceRefModel>();
+
+	public ProjectSubtree() {
+	}
+
+	public ProjectSubtree(ProjectModel project) {
+		this.project = project;
+	}
+
+	public ProjectModel getProject() {
+		return project;
+	}
+
+	public void setProject(ProjectModel project) {
+		this.project = project;
+	}
+
+	public List<ProjectSubtree> getSubprojects() {
+		return subprojects;
+	}
+
+	public ProjectSubtree addSubproject(ProjectSubtree subproject) {
+		subprojects.add(subproject);
+		return this;
+	}
+
+	public List<ResourceRefModel> getResources() {
+		return resources;
+	}
+
+	public ProjectSubtree addResource(ResourceRefModel resource) {
+		resources.add(resource);
+		return this;
+	}
+}
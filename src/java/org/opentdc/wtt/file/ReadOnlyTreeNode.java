@@ -0,0 +1,184 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.opentdc.wtt.ProjectTreeNodeModel;
+
+/**
+ * A node of a cached project tree. The node is filled while the tree is built and frozen
+ * once all of its descendants are complete; afterwards the node and its lists throw
+ * UnsupportedOperationException on any modification, so that the cached trees can be
+ * shared by all readers without copying them.
+ * The list operations added in Java 8 (removeIf, replaceAll, sort) are not intercepted,
+ * as this class is compiled for Java 7.
+ */
+public class ReadOnlyTreeNode extends ProjectTreeNodeModel {
+	private final FreezableList<ProjectTreeNodeModel> projects = new FreezableList<ProjectTreeNodeModel>();
+	private final FreezableList<String> resources = new FreezableList<String>();
+	private boolean frozen = false;		// published together with the node, see CachedTree
+
+	public ReadOnlyTreeNode(
+			String id,
+			String title) {
+		super.setId(id);
+		super.setTitle(title);
+		super.setProjects(projects);
+		super.setResources(resources);
+	}
+
+	/**
+	 * @return true if the node can not be modified anymore
+	 */
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	/**
+	 * Make the node and its lists unmodifiable; called once the children of the node are complete.
+	 */
+	void freeze() {
+		frozen = true;
+		projects.freeze();
+		resources.freeze();
+	}
+
+	@Override
+	public void setId(String id) {
+		checkNotFrozen(frozen);
+		super.setId(id);
+	}
+
+	@Override
+	public void setTitle(String title) {
+		checkNotFrozen(frozen);
+		super.setTitle(title);
+	}
+
+	@Override
+	public void setProjects(ArrayList<ProjectTreeNodeModel> projects) {
+		throw new UnsupportedOperationException("the projects of a cached tree node can not be replaced");
+	}
+
+	@Override
+	public void setResources(ArrayList<String> resources) {
+		throw new UnsupportedOperationException("the resources of a cached tree node can not be replaced");
+	}
+
+	private static void checkNotFrozen(
+			boolean frozen) {
+		if (frozen) {
+			throw new UnsupportedOperationException("a cached tree node can not be modified");
+		}
+	}
+
+	/**
+	 * An ArrayList that can be made unmodifiable; the iterators and sublists modify the list
+	 * through the overridden methods or are unmodifiable views.
+	 */
+	private static class FreezableList<E> extends ArrayList<E> {
+		private static final long serialVersionUID = 1L;
+		private boolean frozen = false;
+
+		void freeze() {
+			frozen = true;
+		}
+
+		@Override
+		public boolean add(E e) {
+			checkNotFrozen(frozen);
+			return super.add(e);
+		}
+
+		@Override
+		public void add(int index, E element) {
+			checkNotFrozen(frozen);
+			super.add(index, element);
+		}
+
+		@Override
+		public boolean addAll(Collection<? extends E> c) {
+			checkNotFrozen(frozen);
+			return super.addAll(c);
+		}
+
+		@Override
+		public boolean addAll(int index, Collection<? extends E> c) {
+			checkNotFrozen(frozen);
+			return super.addAll(index, c);
+		}
+
+		@Override
+		public E set(int index, E element) {
+			checkNotFrozen(frozen);
+			return super.set(index, element);
+		}
+
+		@Override
+		public E remove(int index) {
+			checkNotFrozen(frozen);
+			return super.remove(index);
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			checkNotFrozen(frozen);
+			return super.remove(o);
+		}
+
+		@Override
+		public boolean removeAll(Collection<?> c) {
+			checkNotFrozen(frozen);
+			return super.removeAll(c);
+		}
+
+		@Override
+		public boolean retainAll(Collection<?> c) {
+			checkNotFrozen(frozen);
+			return super.retainAll(c);
+		}
+
+		@Override
+		public void clear() {
+			checkNotFrozen(frozen);
+			super.clear();
+		}
+
+		@Override
+		protected void removeRange(int fromIndex, int toIndex) {
+			checkNotFrozen(frozen);
+			super.removeRange(fromIndex, toIndex);
+		}
+
+		@Override
+		public List<E> subList(int fromIndex, int toIndex) {
+			List<E> _subList = super.subList(fromIndex, toIndex);
+			return frozen ? Collections.unmodifiableList(_subList) : _subList;
+		}
+	}
+}
@@ -0,0 +1,269 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of the companies whose projects and resourceRefs are loaded (resident),
+ * in least recently used order, and of the companies that are not loaded.
+ * A company beyond the budget is only chosen for eviction after it was idle for a while,
+ * so that a company is not evicted while a request is working on it.
+ * <p>
+ * The ids of the projects and resources of the unloaded companies are not kept in memory:
+ * a lookup of a project or resource without its company (e.g. getProject(), renameResource())
+ * reads the id indexes of the unloaded companies' shards (see ShardIdIndex), of which only the
+ * most recently used ones are cached. The memory therefore is bounded by the resident companies,
+ * the company directory and MAX_CACHED_ID_INDEXES id indexes. Such lookups read one small file per
+ * unloaded company in the worst case; the operations on a known company do not need them.
+ */
+public class ResidentCompanies {
+	private static final Logger logger = Logger.getLogger(ResidentCompanies.class.getName());
+	static final int MAX_CACHED_ID_INDEXES = 64;
+
+	private final int maxResident;
+	private final long minIdleMillis;
+	private final ShardedSnapshotStore store;
+	// access order: the eldest entry is the least recently used company
+	private final LinkedHashMap<String, WttCompany> resident = new LinkedHashMap<String, WttCompany>(16, 0.75f, true);
+	private final ConcurrentMap<String, WttCompany> unloaded = new ConcurrentHashMap<String, WttCompany>();	// companyId, company
+	// access order, bounded; the id indexes of the most recently searched unloaded companies
+	private final LinkedHashMap<String, ShardIdIndex> idIndexes = new LinkedHashMap<String, ShardIdIndex>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ShardIdIndex> eldest) {
+			return size() > MAX_CACHED_ID_INDEXES;
+		}
+	};
+
+	/**
+	 * @param maxResident the maximal number of loaded companies
+	 * @param minIdleMillis the time a company must not have been accessed before it may be evicted
+	 * @param store the shards the companies are loaded from
+	 */
+	public ResidentCompanies(
+			int maxResident,
+			long minIdleMillis,
+			ShardedSnapshotStore store) {
+		this.maxResident = maxResident;
+		this.minIdleMillis = minIdleMillis;
+		this.store = store;
+	}
+
+	/**
+	 * Record an access to a loaded company.
+	 * 
+	 * @param company
+	 * @return true if the company was not counted as resident before
+	 */
+	public boolean touch(
+			WttCompany company) {
+		company.setLastAccess(System.currentTimeMillis());
+		synchronized (resident) {
+			return resident.put(company.getModel().getId(), company) == null;
+		}
+	}
+
+	/**
+	 * @return true if no more companies may be loaded without evicting one
+	 */
+	public boolean isFull() {
+		synchronized (resident) {
+			return resident.size() >= maxResident;
+		}
+	}
+
+	/**
+	 * Forget a deleted company.
+	 * 
+	 * @param companyId
+	 */
+	public void remove(
+			String companyId) {
+		synchronized (resident) {
+			resident.remove(companyId);
+		}
+		unloaded.remove(companyId);
+		synchronized (idIndexes) {
+			idIndexes.remove(companyId);
+		}
+	}
+
+	/**
+	 * Select the least recently used companies beyond the budget that were idle long enough.
+	 * The selected companies are no longer counted as resident; the caller must either evict or touch them.
+	 * 
+	 * @return the companies to evict
+	 */
+	public List<WttCompany> selectEvictions() {
+		long _idleSince = System.currentTimeMillis() - minIdleMillis;
+		List<WttCompany> _victims = new ArrayList<WttCompany>();
+		synchronized (resident) {
+			Iterator<WttCompany> _it = resident.values().iterator();
+			while (resident.size() > maxResident && _it.hasNext()) {
+				WttCompany _company = _it.next();
+				if (_company.getLastAccess() <= _idleSince) {
+					_it.remove();
+					_victims.add(_company);
+				}
+			}
+		}
+		return _victims;
+	}
+
+	/**
+	 * Remember a company that is about to be unloaded and store the id index of its shard.
+	 * Called with the shard lock of the company held; the shard of the company must be up to date.
+	 * 
+	 * @param company
+	 */
+	public void unloaded(
+			WttCompany company) {
+		String _companyId = company.getModel().getId();
+		try {
+			ShardIdIndex _index = store.writeIdIndex(company);
+			synchronized (idIndexes) {
+				idIndexes.put(_companyId, _index);
+			}
+		} catch (IOException _ex) {
+			// the id index is derived from the shard when it is needed
+			logger.log(Level.WARNING, "id index of company <" + _companyId + "> could not be written.", _ex);
+		}
+		unloaded.put(_companyId, company);
+	}
+
+	/**
+	 * Forget a company that was loaded again.
+	 * 
+	 * @param company the loaded company
+	 */
+	public void loaded(
+			WttCompany company) {
+		String _companyId = company.getModel().getId();
+		unloaded.remove(_companyId);
+		synchronized (idIndexes) {
+			idIndexes.remove(_companyId);
+		}
+	}
+
+	/**
+	 * @param projectId
+	 * @return the id of the unloaded company that contains the project, or null
+	 */
+	public String getUnloadedCompanyOfProject(
+			String projectId) {
+		for (WttCompany _company : unloaded.values()) {
+			ShardIdIndex _index = getIdIndex(_company);
+			if (_index != null && _index.containsProject(projectId)) {
+				return _company.getModel().getId();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param resourceId
+	 * @return the ids of the unloaded companies with resourceRefs to the resource
+	 */
+	public List<String> getUnloadedCompaniesOfResource(
+			String resourceId) {
+		List<String> _companies = new ArrayList<String>();
+		for (WttCompany _company : unloaded.values()) {
+			ShardIdIndex _index = getIdIndex(_company);
+			if (_index != null && _index.containsResource(resourceId)) {
+				_companies.add(_company.getModel().getId());
+			}
+		}
+		return _companies;
+	}
+
+	/**
+	 * @return the number of companies that are not loaded
+	 */
+	public int getUnloadedCount() {
+		return unloaded.size();
+	}
+
+	/**
+	 * @return the number of cached id indexes
+	 */
+	public int getCachedIdIndexCount() {
+		synchronized (idIndexes) {
+			return idIndexes.size();
+		}
+	}
+
+	/**
+	 * @param company an unloaded company
+	 * @return the id index of the company's shard, or null if the company was loaded in the meantime
+	 * 		or its shard can not be read
+	 */
+	private ShardIdIndex getIdIndex(
+			WttCompany company) {
+		String _companyId = company.getModel().getId();
+		synchronized (idIndexes) {
+			ShardIdIndex _index = idIndexes.get(_companyId);
+			if (_index != null) {
+				return _index;
+			}
+		}
+		// the shard lock excludes a concurrent write of the shard, which would make the index outdated
+		synchronized (company.getShardLock()) {
+			if (company.isLoaded()) {
+				return null;
+			}
+			try {
+				ShardIdIndex _index = store.readIdIndex(_companyId);
+				synchronized (idIndexes) {
+					if (unloaded.containsKey(_companyId)) {
+						idIndexes.put(_companyId, _index);
+					}
+				}
+				return _index;
+			} catch (IOException _ex) {
+				logger.log(Level.WARNING, "id index of company <" + _companyId + "> could not be read.", _ex);
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of loaded companies
+	 */
+	public int size() {
+		synchronized (resident) {
+			return resident.size();
+		}
+	}
+}
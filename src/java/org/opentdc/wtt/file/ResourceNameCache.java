@@ -0,0 +1,223 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of resource names, so that assigning resources to projects does not
+ * look up the resource in the resources service each time.
+ * Entries expire after a time-to-live; if the cache is full, the least recently used entry is evicted.
+ * The resources service should call invalidate() when a resource is renamed or deleted.
+ */
+public class ResourceNameCache {
+	/**
+	 * Looks up the name of a resource, e.g. in the resources service.
+	 */
+	public interface Loader {
+		String load(String resourceId);
+	}
+
+	private static class CachedName {
+		final String name;
+		final long expiresAt;
+
+		CachedName(String name, long expiresAt) {
+			this.name = name;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final Loader loader;
+	private final long ttlMillis;
+	private final LinkedHashMap<String, CachedName> entries;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private long invalidations = 0;		// guarded by entries; a name loaded before an invalidation is not cached
+
+	/**
+	 * @param loader
+	 * @param maxSize the maximal number of cached names
+	 * @param ttlMillis the time after which a name is looked up again; Long.MAX_VALUE for names that never expire
+	 */
+	public ResourceNameCache(
+			Loader loader,
+			final int maxSize,
+			long ttlMillis) {
+		this.loader = loader;
+		this.ttlMillis = ttlMillis;
+		// access order: the eldest entry is the least recently used one
+		this.entries = new LinkedHashMap<String, CachedName>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedName> eldest) {
+				if (size() > maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @param resourceId
+	 * @return the name of the resource; it is loaded if it is not cached or expired
+	 */
+	public String get(
+			String resourceId) {
+		long _invalidations;
+		synchronized (entries) {
+			String _name = lookup(resourceId, System.currentTimeMillis());
+			if (_name != null) {
+				return _name;
+			}
+			_invalidations = invalidations;
+		}
+		// the loader is called without holding the lock
+		String _name = loader.load(resourceId);
+		put(resourceId, _name, _invalidations);
+		return _name;
+	}
+
+	/**
+	 * Return the names of several resources; each distinct resource that is not cached is loaded once.
+	 * 
+	 * @param resourceIds
+	 * @return resourceId -> name
+	 */
+	public Map<String, String> getAll(
+			Collection<String> resourceIds) {
+		Map<String, String> _names = new HashMap<String, String>();
+		Set<String> _missing = new LinkedHashSet<String>();
+		long _now = System.currentTimeMillis();
+		long _invalidations;
+		synchronized (entries) {
+			_invalidations = invalidations;
+			for (String _id : new LinkedHashSet<String>(resourceIds)) {
+				String _name = lookup(_id, _now);
+				if (_name != null) {
+					_names.put(_id, _name);
+				} else {
+					_missing.add(_id);
+				}
+			}
+		}
+		for (String _id : _missing) {
+			String _name = loader.load(_id);
+			put(_id, _name, _invalidations);
+			_names.put(_id, _name);
+		}
+		return _names;
+	}
+
+	/**
+	 * Remove a resource from the cache, e.g. after it was renamed or deleted.
+	 * 
+	 * @param resourceId
+	 */
+	public void invalidate(
+			String resourceId) {
+		synchronized (entries) {
+			entries.remove(resourceId);
+			invalidations++;
+		}
+	}
+
+	public void invalidateAll() {
+		synchronized (entries) {
+			entries.clear();
+			invalidations++;
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return hits / (hits + misses), 0 if there were no lookups yet
+	 */
+	public double getHitRate() {
+		long _hits = hits.get();
+		long _total = _hits + misses.get();
+		return _total == 0 ? 0 : (double) _hits / _total;
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	// called with the lock held
+	private String lookup(
+			String resourceId,
+			long now) {
+		CachedName _entry = entries.get(resourceId);
+		if (_entry != null && _entry.expiresAt > now) {
+			hits.incrementAndGet();
+			return _entry.name;
+		}
+		if (_entry != null) {
+			entries.remove(resourceId);
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	private void put(
+			String resourceId,
+			String name,
+			long invalidations) {
+		if (name == null) {
+			return;
+		}
+		synchronized (entries) {
+			if (this.invalidations != invalidations) {
+				return;
+			}
+			long _now = System.currentTimeMillis();
+			// saturated, so that a very long time-to-live does not overflow into the past
+			long _expiresAt = ttlMillis > Long.MAX_VALUE - _now ? Long.MAX_VALUE : _now + ttlMillis;
+			entries.put(resourceId, new CachedName(name, _expiresAt));
+		}
+	}
+}
@@ -0,0 +1,98 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Durable upper bound of the sequence numbers issued by the ChangeFeed, so that a new run starts
+ * above all sequence numbers of the previous runs. The file is replaced atomically, like a snapshot.
+ */
+public class SequenceFile {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+
+	/**
+	 * @param file the file of the bound; it is created on the first write
+	 */
+	public SequenceFile(
+			File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the stored bound, 0 if it was never written
+	 * @throws IOException
+	 */
+	public long read()
+			throws IOException {
+		if (! file.exists()) {
+			return 0;
+		}
+		String _content = new String(Files.readAllBytes(file.toPath()), UTF8).trim();
+		try {
+			return Long.parseLong(_content);
+		} catch (NumberFormatException _ex) {
+			throw new IOException("sequence file <" + file.getName() + "> is corrupt: <" + _content + ">");
+		}
+	}
+
+	/**
+	 * Replace the stored bound; it is forced to disk before the file is replaced.
+	 * 
+	 * @param sequence
+	 * @throws IOException
+	 */
+	public void write(
+			long sequence)
+					throws IOException {
+		Path _target = file.toPath();
+		Path _tmp = Files.createTempFile(_target.toAbsolutePath().getParent(), file.getName(), ".tmp");
+		try {
+			FileChannel _channel = FileChannel.open(_tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				_channel.write(ByteBuffer.wrap(Long.toString(sequence).getBytes(UTF8)));
+				_channel.force(true);
+			} finally {
+				_channel.close();
+			}
+			Files.move(_tmp, _target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(_tmp);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.opentdc.wtt.ResourceRefModel;
+
+/**
+ * The ids contained in the shard of a company: the ids of its projects and of the resources
+ * its resourceRefs refer to. The index of an evicted company is kept in a small file next to its shard,
+ * so that a project or resource can be traced to its company without keeping the ids in memory.
+ * The ids are kept as sorted arrays and looked up by binary search.
+ * <pre>
+ * p &lt;projectId&gt;
+ * r &lt;resourceId&gt;
+ * </pre>
+ */
+public class ShardIdIndex {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String PROJECT = "p ";
+	private static final String RESOURCE = "r ";
+
+	private final String[] projectIds;
+	private final String[] resourceIds;
+
+	private ShardIdIndex(
+			Iterable<String> projectIds,
+			Iterable<String> resourceIds) {
+		this.projectIds = toSortedArray(projectIds);
+		this.resourceIds = toSortedArray(resourceIds);
+	}
+
+	/**
+	 * @param company a loaded company
+	 * @return the index of the projects and resources of the company
+	 */
+	public static ShardIdIndex of(
+			WttCompany company) {
+		List<String> _projectIds = new ArrayList<String>();
+		List<String> _resourceIds = new ArrayList<String>();
+		Deque<WttProject> _stack = new ArrayDeque<WttProject>(company.getProjects());
+		while (! _stack.isEmpty()) {
+			WttProject _project = _stack.pop();
+			_projectIds.add(_project.getModel().getId());
+			for (ResourceRefModel _r : _project.getResources()) {
+				if (_r.getResourceId() != null) {
+					_resourceIds.add(_r.getResourceId());
+				}
+			}
+			_stack.addAll(_project.getProjects());
+		}
+		return new ShardIdIndex(_projectIds, _resourceIds);
+	}
+
+	/**
+	 * @param file
+	 * @return the index stored in the file
+	 * @throws IOException
+	 */
+	public static ShardIdIndex read(
+			File file)
+					throws IOException {
+		List<String> _projectIds = new ArrayList<String>();
+		List<String> _resourceIds = new ArrayList<String>();
+		for (String _line : Files.readAllLines(file.toPath(), UTF8)) {
+			if (_line.startsWith(PROJECT)) {
+				_projectIds.add(_line.substring(PROJECT.length()));
+			} else if (_line.startsWith(RESOURCE)) {
+				_resourceIds.add(_line.substring(RESOURCE.length()));
+			} else if (! _line.isEmpty()) {
+				throw new IOException("id index <" + file.getName() + "> is corrupt: <" + _line + ">");
+			}
+		}
+		return new ShardIdIndex(_projectIds, _resourceIds);
+	}
+
+	/**
+	 * Replace the file with this index; it is forced to disk before the file is replaced.
+	 * 
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(
+			File file)
+					throws IOException {
+		StringBuilder _sb = new StringBuilder();
+		for (String _id : projectIds) {
+			_sb.append(PROJECT).append(_id).append('\n');
+		}
+		for (String _id : resourceIds) {
+			_sb.append(RESOURCE).append(_id).append('\n');
+		}
+		Path _target = file.toPath();
+		Path _tmp = Files.createTempFile(_target.toAbsolutePath().getParent(), file.getName(), ".tmp");
+		try {
+			FileChannel _channel = FileChannel.open(_tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				_channel.write(ByteBuffer.wrap(_sb.toString().getBytes(UTF8)));
+				_channel.force(true);
+			} finally {
+				_channel.close();
+			}
+			Files.move(_tmp, _target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			Files.deleteIfExists(_tmp);
+		}
+	}
+
+	public boolean containsProject(
+			String projectId) {
+		return projectId != null && Arrays.binarySearch(projectIds, projectId) >= 0;
+	}
+
+	public boolean containsResource(
+			String resourceId) {
+		return resourceId != null && Arrays.binarySearch(resourceIds, resourceId) >= 0;
+	}
+
+	/**
+	 * @return the number of ids in the index
+	 */
+	public int size() {
+		return projectIds.length + resourceIds.length;
+	}
+
+	// distinct ids, sorted for the binary search
+	private static String[] toSortedArray(
+			Iterable<String> ids) {
+		TreeSet<String> _ids = new TreeSet<String>();
+		for (String _id : ids) {
+			_ids.add(_id);
+		}
+		return _ids.toArray(new String[_ids.size()]);
+	}
+}
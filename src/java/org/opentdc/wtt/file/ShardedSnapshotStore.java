@@ -0,0 +1,330 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Stores each company in its own snapshot file (a shard) in one directory,
+ * so that a change of a company only rewrites the file of that company.
+ * Each shard is written crash-safe by its own SnapshotWriter (including the previous generations).
+ * The id index of a shard (see ShardIdIndex) is derived from the shard when it is needed and deleted
+ * whenever the shard is written, so that an existing id index always matches its shard.
+ * <pre>
+ * &lt;directory&gt;/&lt;companyId&gt;.json  or  &lt;directory&gt;/&lt;companyId&gt;.bin
+ * &lt;directory&gt;/&lt;companyId&gt;.ids
+ * </pre>
+ */
+public class ShardedSnapshotStore {
+	private static final Logger logger = Logger.getLogger(ShardedSnapshotStore.class.getName());
+	private static final String JSON_EXT = ".json";
+	private static final String BINARY_EXT = ".bin";
+	private static final String IDS_EXT = ".ids";
+
+	private final File directory;
+	private final int generations;
+	private final SnapshotWriter.Format format;
+	private final ConcurrentMap<String, SnapshotWriter> writers = new ConcurrentHashMap<String, SnapshotWriter>();
+
+	/**
+	 * @param directory the directory of the shards; it is created if needed
+	 * @param generations the number of previous versions to keep per shard
+	 * @param format the format of new shards
+	 */
+	public ShardedSnapshotStore(
+			File directory,
+			int generations,
+			SnapshotWriter.Format format) {
+		this.directory = directory;
+		this.generations = generations;
+		this.format = format;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return true if the directory contains at least one shard
+	 */
+	public boolean exists() {
+		return ! listShards().isEmpty();
+	}
+
+	/**
+	 * Write the shard of a company.
+	 * 
+	 * @param company
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public long write(
+			WttCompany company)
+					throws IOException {
+		String _companyId = company.getModel().getId();
+		if (! directory.isDirectory()) {
+			Files.createDirectories(directory.toPath());
+		}
+		Files.deleteIfExists(file(_companyId, IDS_EXT).toPath());
+		long _bytes = writer(_companyId).write(Collections.singletonList(company));
+		// a shard in the other format (after the format was changed) is outdated now
+		Files.deleteIfExists(file(_companyId, format == SnapshotWriter.Format.BINARY ? JSON_EXT : BINARY_EXT).toPath());
+		return _bytes;
+	}
+
+	/**
+	 * Write the shards of all companies.
+	 * 
+	 * @param companies
+	 * @throws IOException
+	 */
+	public void writeAll(
+			Collection<WttCompany> companies)
+					throws IOException {
+		for (WttCompany _company : companies) {
+			write(_company);
+		}
+	}
+
+	/**
+	 * Delete the shard of a deleted company, including its previous generations.
+	 * 
+	 * @param companyId
+	 * @throws IOException
+	 */
+	public void delete(
+			String companyId)
+					throws IOException {
+		writers.remove(companyId);
+		Files.deleteIfExists(file(companyId, IDS_EXT).toPath());
+		for (String _ext : new String[] { JSON_EXT, BINARY_EXT }) {
+			File _file = file(companyId, _ext);
+			Files.deleteIfExists(_file.toPath());
+			for (int i = 1; i <= generations; i++) {
+				Files.deleteIfExists(new File(_file.getPath() + "." + i).toPath());
+			}
+		}
+	}
+
+	/**
+	 * Read the shard of a company, or its newest complete previous generation if the shard is truncated.
+	 * 
+	 * @param companyId
+	 * @return the company, or null if it has no shard
+	 * @throws IOException
+	 */
+	public WttCompany read(
+			String companyId)
+					throws IOException {
+		File _file = null;
+		for (String _ext : new String[] { JSON_EXT, BINARY_EXT }) {
+			File _candidate = file(companyId, _ext);
+			if (_candidate.length() > 0 && (_file == null || _file.lastModified() < _candidate.lastModified())) {
+				_file = _candidate;
+			}
+		}
+		if (_file == null) {
+			return null;
+		}
+		File _complete = SnapshotReader.lastComplete(_file);
+		if (_complete != null) {
+			_file = _complete;
+		}
+		final List<WttCompany> _companies = new ArrayList<WttCompany>(1);
+		new SnapshotReader(null).read(_file, new SnapshotReader.CompanyHandler() {
+			@Override
+			public void handle(WttCompany company) {
+				_companies.add(company);
+			}
+		});
+		return _companies.isEmpty() ? null : _companies.get(0);
+	}
+
+	/**
+	 * Read the id index of a company's shard; it is derived from the shard and stored if it does not exist.
+	 * The caller must exclude concurrent writes of the shard (see WttCompany.getShardLock()).
+	 * 
+	 * @param companyId
+	 * @return the id index; empty if the company has no shard
+	 * @throws IOException
+	 */
+	public ShardIdIndex readIdIndex(
+			String companyId)
+					throws IOException {
+		File _file = file(companyId, IDS_EXT);
+		if (_file.exists()) {
+			try {
+				return ShardIdIndex.read(_file);
+			} catch (IOException _ex) {
+				logger.warning("id index <" + _file.getName() + "> is derived again: " + _ex.getMessage());
+			}
+		}
+		WttCompany _company = read(companyId);
+		if (_company == null) {
+			return ShardIdIndex.of(new WttCompany());
+		}
+		ShardIdIndex _index = ShardIdIndex.of(_company);
+		_index.write(_file);
+		return _index;
+	}
+
+	/**
+	 * Store the id index of a company whose shard is up to date, e.g. when the company is evicted,
+	 * unless it exists already.
+	 * The caller must exclude concurrent writes of the shard (see WttCompany.getShardLock()).
+	 * 
+	 * @param company a loaded company
+	 * @return the id index
+	 * @throws IOException
+	 */
+	public ShardIdIndex writeIdIndex(
+			WttCompany company)
+					throws IOException {
+		File _file = file(company.getModel().getId(), IDS_EXT);
+		ShardIdIndex _index = ShardIdIndex.of(company);
+		if (! _file.exists()) {
+			_index.write(_file);
+		}
+		return _index;
+	}
+
+	/**
+	 * Read all shards in parallel. The handler is called for one company at a time.
+	 * 
+	 * @param handler
+	 * @return the number of companies read
+	 * @throws IOException
+	 */
+	public int readAll(
+			final SnapshotReader.CompanyHandler handler)
+					throws IOException {
+		final SnapshotReader.CompanyHandler _handler = new SnapshotReader.CompanyHandler() {
+			@Override
+			public synchronized void handle(WttCompany company) {
+				handler.handle(company);
+			}
+		};
+		List<File> _shards = listShards();
+		ExecutorService _executor = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(_shards.size(), Runtime.getRuntime().availableProcessors())));
+		try {
+			List<Future<Integer>> _results = new ArrayList<Future<Integer>>();
+			for (final File _shard : _shards) {
+				_results.add(_executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws IOException {
+						File _complete = SnapshotReader.lastComplete(_shard);
+						return new SnapshotReader(null).read(_complete == null ? _shard : _complete, _handler);
+					}
+				}));
+			}
+			int _count = 0;
+			for (Future<Integer> _result : _results) {
+				_count += _result.get();
+			}
+			logger.info("read " + _count + " companies from " + _shards.size() + " shards in <" + directory.getName() + ">.");
+			return _count;
+		} catch (InterruptedException _ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("reading the shards was interrupted.");
+		} catch (ExecutionException _ex) {
+			if (_ex.getCause() instanceof IOException) {
+				throw (IOException) _ex.getCause();
+			}
+			throw new IOException("a shard could not be read: " + _ex.getCause(), _ex.getCause());
+		} finally {
+			_executor.shutdown();
+		}
+	}
+
+	/**
+	 * @return the current shard file of each company; if a company has a shard in both formats, the newer one
+	 */
+	private List<File> listShards() {
+		Map<String, File> _shards = new HashMap<String, File>();
+		File[] _files = directory.listFiles();
+		if (_files == null) {
+			return new ArrayList<File>();
+		}
+		for (File _file : _files) {
+			String _name = _file.getName();
+			String _companyId = null;
+			if (_name.endsWith(JSON_EXT)) {
+				_companyId = _name.substring(0, _name.length() - JSON_EXT.length());
+			} else if (_name.endsWith(BINARY_EXT)) {
+				_companyId = _name.substring(0, _name.length() - BINARY_EXT.length());
+			}
+			if (_companyId != null && _file.length() > 0) {
+				File _other = _shards.get(_companyId);
+				if (_other == null || _other.lastModified() < _file.lastModified()) {
+					_shards.put(_companyId, _file);
+				}
+			}
+		}
+		return new ArrayList<File>(_shards.values());
+	}
+
+	private SnapshotWriter writer(
+			String companyId) {
+		SnapshotWriter _writer = writers.get(companyId);
+		if (_writer == null) {
+			SnapshotWriter _newWriter = new SnapshotWriter(
+					file(companyId, format == SnapshotWriter.Format.BINARY ? BINARY_EXT : JSON_EXT), generations, format);
+			_writer = writers.putIfAbsent(companyId, _newWriter);
+			if (_writer == null) {
+				_writer = _newWriter;
+			}
+		}
+		return _writer;
+	}
+
+	private File file(
+			String companyId,
+			String ext) {
+		try {
+			// company ids are generated UUIDs, the encoding only protects against unexpected characters
+			return new File(directory, URLEncoder.encode(companyId, "UTF-8") + ext);
+		} catch (UnsupportedEncodingException _ex) {
+			throw new IllegalStateException(_ex);
+		}
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts wtt snapshots between the JSON and the binary format.
+ * The format of the source file is detected from its content.
+ * <pre>
+ * java org.opentdc.wtt.file.SnapshotConverter json|binary &lt;source&gt; &lt;target&gt;
+ * </pre>
+ */
+public class SnapshotConverter {
+
+	/**
+	 * Convert a snapshot file into the given format.
+	 *
+	 * @param source the snapshot to read (JSON or binary)
+	 * @param target the snapshot to write
+	 * @param format the format of the target
+	 * @return the number of companies converted
+	 * @throws IOException
+	 */
+	public static int convert(
+			File source,
+			File target,
+			SnapshotWriter.Format format)
+					throws IOException {
+		final List<WttCompany> _companies = new ArrayList<WttCompany>();
+		new SnapshotReader(null).read(source, new SnapshotReader.CompanyHandler() {
+			@Override
+			public void handle(WttCompany company) {
+				_companies.add(company);
+			}
+		});
+		new SnapshotWriter(target, 0, format).write(_companies);
+		return _companies.size();
+	}
+
+	public static void main(
+			String[] args)
+					throws IOException {
+		if (args.length != 3) {
+			System.err.println("usage: SnapshotConverter json|binary <source> <target>");
+			System.exit(1);
+		}
+		SnapshotWriter.Format _format = SnapshotWriter.Format.valueOf(args[0].toUpperCase());
+		int _count = convert(new File(args[1]), new File(args[2]), _format);
+		System.out.println("converted " + _count + " companies from <" + args[1] + "> to <" + args[2] + ">.");
+	}
+}
@@ -0,0 +1,230 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+
+/**
+ * Streaming snapshot import: the companies are handed over one by one while the
+ * file is parsed, so that they can be indexed before the whole file is read.
+ * JSON and binary snapshots (see BinarySnapshotCodec) are recognized by their content.
+ * If the most recent snapshot is truncated, the newest complete previous generation is read instead.
+ */
+public class SnapshotReader {
+	private static final Logger logger = Logger.getLogger(SnapshotReader.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int TAIL_SIZE = 64;
+
+	/**
+	 * Receives each company as soon as it is parsed.
+	 */
+	public interface CompanyHandler {
+		void handle(WttCompany company);
+	}
+
+	private final Gson gson = new Gson();
+	private final File[] dataFiles;
+	private final File seedFile;
+
+	/**
+	 * @param seedFile the initial data, read if there is no data file yet
+	 * @param dataFiles the data files (e.g. in JSON and binary format); the most recent one is read
+	 */
+	public SnapshotReader(
+			File seedFile,
+			File... dataFiles) {
+		this.seedFile = seedFile;
+		this.dataFiles = dataFiles;
+	}
+
+	/**
+	 * Parse the most recent data file (or the seed file if there is no data file) 
+	 * and pass each company to the handler. If the data file is truncated, its newest complete
+	 * previous generation is parsed instead.
+	 *
+	 * @param handler
+	 * @return the number of companies read
+	 * @throws IOException
+	 */
+	public int read(
+			CompanyHandler handler)
+					throws IOException {
+		File _file = null;
+		for (File _dataFile : dataFiles) {
+			if (_dataFile.exists() && (_file == null || _dataFile.lastModified() > _file.lastModified())) {
+				_file = _dataFile;
+			}
+		}
+		if (_file == null) {
+			_file = seedFile;
+		} else {
+			File _complete = lastComplete(_file);
+			if (_complete != null) {
+				_file = _complete;
+			}
+		}
+		if (_file == null || ! _file.exists()) {
+			logger.warning("neither a data file nor a seed file exists; starting with empty data.");
+			return 0;
+		}
+		int _count = read(_file, handler);
+		logger.info("read " + _count + " companies from <" + _file.getName() + ">.");
+		return _count;
+	}
+
+	/**
+	 * Parse a snapshot file in either format and pass each company to the handler.
+	 *
+	 * @param file
+	 * @param handler
+	 * @return the number of companies read
+	 * @throws IOException
+	 */
+	public int read(
+			File file,
+			CompanyHandler handler)
+					throws IOException {
+		if (file.length() == 0) {
+			return 0;
+		}
+		InputStream _in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+		try {
+			if (isBinary(_in)) {
+				return new BinarySnapshotCodec().read(new DataInputStream(_in), handler);
+			}
+			int _count = 0;
+			JsonReader _reader = new JsonReader(new BufferedReader(new InputStreamReader(_in, UTF8)));
+			_reader.beginArray();
+			while (_reader.hasNext()) {
+				WttCompany _company = gson.fromJson(_reader, WttCompany.class);
+				handler.handle(_company);
+				_count++;
+			}
+			_reader.endArray();
+			return _count;
+		} finally {
+			_in.close();
+		}
+	}
+
+	/**
+	 * Return the newest complete generation of a snapshot file: the file itself or, if it is truncated
+	 * (e.g. after the file system lost the end of it), the most recent complete one of file.1 ... file.K
+	 * (see SnapshotWriter).
+	 *
+	 * @param file
+	 * @return the file or one of its previous generations; null if none of them is complete
+	 * @throws IOException
+	 */
+	public static File lastComplete(
+			File file)
+					throws IOException {
+		File _candidate = file;
+		for (int i = 1; _candidate.exists(); i++) {
+			if (isComplete(_candidate)) {
+				if (_candidate != file) {
+					logger.warning("<" + file.getName() + "> is truncated; reading the previous generation <"
+							+ _candidate.getName() + ">.");
+				}
+				return _candidate;
+			}
+			_candidate = new File(file.getPath() + "." + i);
+		}
+		return null;
+	}
+
+	/**
+	 * Check whether a snapshot was written completely, without parsing it:
+	 * a JSON snapshot must end with the closing bracket of its array, a binary snapshot with its end marker.
+	 *
+	 * @param file
+	 * @return false if the file is empty or truncated
+	 * @throws IOException
+	 */
+	public static boolean isComplete(
+			File file)
+					throws IOException {
+		RandomAccessFile _file = new RandomAccessFile(file, "r");
+		try {
+			long _length = _file.length();
+			if (_length < 4) {
+				return _length > 0 && lastNonBlank(_file) == ']';
+			}
+			if (_file.readInt() == BinarySnapshotCodec.MAGIC) {
+				return BinarySnapshotCodec.isComplete(_file);
+			}
+			return lastNonBlank(_file) == ']';
+		} finally {
+			_file.close();
+		}
+	}
+
+	private static int lastNonBlank(
+			RandomAccessFile file)
+					throws IOException {
+		long _length = file.length();
+		byte[] _tail = new byte[(int) Math.min(_length, TAIL_SIZE)];
+		file.seek(_length - _tail.length);
+		file.readFully(_tail);
+		for (int i = _tail.length - 1; i >= 0; i--) {
+			if (! Character.isWhitespace(_tail[i])) {
+				return _tail[i];
+			}
+		}
+		return -1;
+	}
+
+	private boolean isBinary(
+			InputStream in)
+					throws IOException {
+		in.mark(4);
+		try {
+			int _magic = 0;
+			for (int i = 0; i < 4; i++) {
+				int _b = in.read();
+				if (_b < 0) {
+					return false;
+				}
+				_magic = (_magic << 8) | _b;
+			}
+			return _magic == BinarySnapshotCodec.MAGIC;
+		} finally {
+			in.reset();
+		}
+	}
+}
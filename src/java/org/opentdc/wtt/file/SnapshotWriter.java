@@ -0,0 +1,185 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Crash-safe snapshot writes: the companies are streamed into a temporary sibling
+ * of the data file, forced to disk and then atomically renamed over the data file;
+ * the directory is forced as well, so that the rename survives a crash.
+ * The previous generations are kept as data.json.1 ... data.json.K.
+ * Snapshots are written either as JSON or in the compact format of BinarySnapshotCodec.
+ */
+public class SnapshotWriter {
+	public enum Format { JSON, BINARY }
+
+	private static final Logger logger = Logger.getLogger(SnapshotWriter.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+	private final File file;
+	private final int generations;
+	private final Format format;
+
+	/**
+	 * @param file the data file
+	 * @param generations the number of previous versions of the data file to keep
+	 * @param format the format of the snapshot
+	 */
+	public SnapshotWriter(
+			File file,
+			int generations,
+			Format format) {
+		this.file = file;
+		this.generations = generations;
+		this.format = format;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Write a new snapshot. The data file is either replaced completely or not at all.
+	 *
+	 * @param companies
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public synchronized long write(
+			Collection<WttCompany> companies)
+					throws IOException {
+		Path _target = file.toPath();
+		Path _tmp = Files.createTempFile(_target.toAbsolutePath().getParent(), file.getName(), ".tmp");
+		long _bytes = 0;
+		try {
+			FileChannel _channel = FileChannel.open(_tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				if (format == Format.BINARY) {
+					DataOutputStream _out = new DataOutputStream(
+							new BufferedOutputStream(Channels.newOutputStream(_channel), BUFFER_SIZE));
+					new BinarySnapshotCodec().write(_out, companies);
+					_out.flush();
+				} else {
+					Writer _writer = new BufferedWriter(Channels.newWriter(_channel, UTF8.newEncoder(), -1), BUFFER_SIZE);
+					JsonWriter _jsonWriter = gson.newJsonWriter(_writer);
+					_jsonWriter.beginArray();
+					for (WttCompany _company : companies) {
+						gson.toJson(_company, WttCompany.class, _jsonWriter);
+					}
+					_jsonWriter.endArray();
+					_jsonWriter.flush();
+				}
+				_channel.force(true);
+				_bytes = _channel.size();
+			} finally {
+				_channel.close();
+			}
+			rotate();
+			Files.move(_tmp, _target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			forceDirectory(_target.toAbsolutePath().getParent());
+		} finally {
+			Files.deleteIfExists(_tmp);
+		}
+		logger.fine("wrote snapshot <" + file.getName() + "> with " + _bytes + " bytes.");
+		return _bytes;
+	}
+
+	/**
+	 * Shift the previous generations by one and keep the current data file as generation 1.
+	 * The current data file stays in place until it is replaced by the rename.
+	 *
+	 * @throws IOException
+	 */
+	private void rotate()
+			throws IOException {
+		Path _target = file.toPath();
+		if (generations <= 0 || ! Files.exists(_target)) {
+			return;
+		}
+		for (int i = generations - 1; i >= 1; i--) {
+			Path _older = generation(i);
+			if (Files.exists(_older)) {
+				Files.move(_older, generation(i + 1), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		Path _first = generation(1);
+		Files.deleteIfExists(_first);
+		try {
+			Files.createLink(_first, _target);
+		} catch (UnsupportedOperationException _ex) {
+			Files.copy(_target, _first);
+		} catch (FileSystemException _ex) {
+			Files.copy(_target, _first);
+		}
+	}
+
+	/**
+	 * Force the directory entries (the rename and the rotated generations) to disk.
+	 * Some platforms (e.g. Windows) can not open a directory; there the rename is left to the file system.
+	 *
+	 * @param directory
+	 */
+	private static void forceDirectory(
+			Path directory) {
+		try {
+			FileChannel _channel = FileChannel.open(directory, StandardOpenOption.READ);
+			try {
+				_channel.force(true);
+			} finally {
+				_channel.close();
+			}
+		} catch (IOException _ex) {
+			logger.fine("directory <" + directory + "> could not be forced: " + _ex.getMessage());
+		} catch (UnsupportedOperationException _ex) {
+			logger.fine("directory <" + directory + "> could not be forced: " + _ex.getMessage());
+		}
+	}
+
+	private Path generation(
+			int i) {
+		return new File(file.getPath() + "." + i).toPath();
+	}
+}
@@ -0,0 +1,196 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Operations on lists that are kept sorted by a comparator, so that a page
+ * can be answered with a slice instead of sorting the whole list on each read.
+ * The comparators must be total (i.e. break ties by id), so that an element
+ * can be found by binary search.
+ * <p>
+ * The lists are copy-on-write snapshots: the mutating operations leave the given
+ * list untouched and return a new unmodifiable list, so that readers can iterate
+ * a list without locking while it is being replaced by a writer.
+ */
+public class SortedLists {
+
+	/**
+	 * Insert an element at its sorted position.
+	 *
+	 * @param list a sorted list
+	 * @param element
+	 * @param comparator
+	 * @return a new list containing the element
+	 */
+	public static <E> List<E> insert(
+			List<E> list,
+			E element,
+			Comparator<? super E> comparator) {
+		int _index = Collections.binarySearch(list, element, comparator);
+		List<E> _list = new ArrayList<E>(list.size() + 1);
+		_list.addAll(list);
+		_list.add(_index < 0 ? -_index - 1 : _index, element);
+		return Collections.unmodifiableList(_list);
+	}
+
+	/**
+	 * Insert several elements at once; the list is copied and sorted only once.
+	 *
+	 * @param list a sorted list
+	 * @param elements
+	 * @param comparator
+	 * @return a new list containing the elements
+	 */
+	public static <E> List<E> insertAll(
+			List<E> list,
+			Collection<? extends E> elements,
+			Comparator<? super E> comparator) {
+		List<E> _list = new ArrayList<E>(list.size() + elements.size());
+		_list.addAll(list);
+		_list.addAll(elements);
+		Collections.sort(_list, comparator);
+		return Collections.unmodifiableList(_list);
+	}
+
+	/**
+	 * Remove an element (by identity) from a sorted list.
+	 * Falls back to a linear scan if the sort key of the element changed since it was inserted.
+	 *
+	 * @param list a sorted list
+	 * @param element
+	 * @param comparator
+	 * @return a new list without the element, or the given list if it does not contain the element
+	 */
+	public static <E> List<E> remove(
+			List<E> list,
+			E element,
+			Comparator<? super E> comparator) {
+		int _index = Collections.binarySearch(list, element, comparator);
+		if (_index < 0 || list.get(_index) != element) {
+			_index = indexOf(list, element);
+		}
+		if (_index < 0) {
+			return list;
+		}
+		List<E> _list = new ArrayList<E>(list);
+		_list.remove(_index);
+		return Collections.unmodifiableList(_list);
+	}
+
+	/**
+	 * Move an element to its new sorted position after its sort key was changed.
+	 *
+	 * @param list a sorted list
+	 * @param element
+	 * @param comparator
+	 * @return a new list, or the given list if it does not contain the element
+	 */
+	public static <E> List<E> reposition(
+			List<E> list,
+			E element,
+			Comparator<? super E> comparator) {
+		int _index = indexOf(list, element);
+		if (_index < 0) {
+			return list;
+		}
+		List<E> _list = new ArrayList<E>(list);
+		_list.remove(_index);
+		return insert(_list, element, comparator);
+	}
+
+	/**
+	 * Replace an element by another one, e.g. an updated copy, at the sorted position of the new element.
+	 *
+	 * @param list a sorted list
+	 * @param element the element to be replaced
+	 * @param replacement
+	 * @param comparator
+	 * @return a new list, or the given list if it does not contain the element
+	 */
+	public static <E> List<E> replace(
+			List<E> list,
+			E element,
+			E replacement,
+			Comparator<? super E> comparator) {
+		int _index = indexOf(list, element);
+		if (_index < 0) {
+			return list;
+		}
+		List<E> _list = new ArrayList<E>(list);
+		_list.remove(_index);
+		return insert(_list, replacement, comparator);
+	}
+
+	/**
+	 * Sort a list, e.g. after it was read from a file.
+	 *
+	 * @param list
+	 * @param comparator
+	 * @return a new sorted list
+	 */
+	public static <E> List<E> sort(
+			List<E> list,
+			Comparator<? super E> comparator) {
+		List<E> _list = new ArrayList<E>(list);
+		Collections.sort(_list, comparator);
+		return Collections.unmodifiableList(_list);
+	}
+
+	/**
+	 * Return the elements [position, position + size) of a list.
+	 *
+	 * @param list
+	 * @param position
+	 * @param size
+	 * @return a new list containing the selected elements
+	 */
+	public static <E> ArrayList<E> slice(
+			List<E> list,
+			int position,
+			int size) {
+		int _from = Math.max(0, position);
+		int _to = (int) Math.min((long) list.size(), (long) _from + Math.max(0, size));
+		if (_from >= _to) {
+			return new ArrayList<E>();
+		}
+		return new ArrayList<E>(list.subList(_from, _to));
+	}
+
+	private static <E> int indexOf(
+			List<E> list,
+			E element) {
+		for (int i = 0; i < list.size(); i++) {
+			if (list.get(i) == element) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
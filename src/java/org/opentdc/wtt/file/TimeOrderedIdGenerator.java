@@ -0,0 +1,61 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Time-ordered version 7 UUIDs (48 bit unix millis, 12 bit sequence, 62 random bits).
+ * The ids have the same string format as random UUIDs, but sort by creation time,
+ * which keeps new entries close together in sorted structures and snapshots.
+ * <p>
+ * The timestamp and the sequence are taken together from an AtomicLong with compare-and-set,
+ * so that the ids of this generator are strictly increasing even within one millisecond
+ * (the timestamp runs ahead if more than 4096 ids are generated per millisecond);
+ * the random bits come from a per-thread random generator. No locks are taken.
+ */
+public class TimeOrderedIdGenerator implements IdGenerator {
+	private static final int SEQUENCE_BITS = 12;
+	// (unix millis << SEQUENCE_BITS) | sequence of the last generated id
+	private final AtomicLong last = new AtomicLong();
+
+	@Override
+	public String newId() {
+		long _next;
+		while (true) {
+			long _last = last.get();
+			_next = Math.max(System.currentTimeMillis() << SEQUENCE_BITS, _last + 1);
+			if (last.compareAndSet(_last, _next)) {
+				break;
+			}
+		}
+		long _millis = _next >>> SEQUENCE_BITS;
+		long _sequence = _next & ((1L << SEQUENCE_BITS) - 1);
+		long _msb = (_millis << 16) | 0x7000L | _sequence;
+		long _lsb = (ThreadLocalRandom.current().nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+		return new UUID(_msb, _lsb).toString();
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces mutations into periodic flushes on a single background thread.
+ * A flush happens at most once per interval, or as soon as maxPending mutations
+ * have been marked dirty, whatever comes first.
+ */
+public class WriteBehindFlusher {
+	private static final Logger logger = Logger.getLogger(WriteBehindFlusher.class.getName());
+
+	private final Runnable flushAction;
+	private final int maxPending;
+	private final ScheduledExecutorService executor;
+	private final AtomicInteger pending = new AtomicInteger(0);
+	private final AtomicBoolean flushRequested = new AtomicBoolean(false);
+	private volatile long lastFlush = 0;
+
+	/**
+	 * @param flushAction writes the current state; called on the flusher thread only
+	 * @param intervalMillis maximum time a mutation stays unflushed
+	 * @param maxPending number of pending mutations that triggers an immediate flush
+	 */
+	public WriteBehindFlusher(
+			Runnable flushAction,
+			long intervalMillis,
+			int maxPending) {
+		this.flushAction = flushAction;
+		this.maxPending = maxPending;
+		this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread _t = new Thread(r, "wtt-write-behind");
+				_t.setDaemon(true);
+				return _t;
+			}
+		});
+		this.executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Register a mutation that needs to be flushed.
+	 */
+	public void markDirty() {
+		if (pending.incrementAndGet() >= maxPending && flushRequested.compareAndSet(false, true)) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					flushRequested.set(false);
+					flush();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Write the current state if there are pending mutations.
+	 * If the write fails, the mutations stay pending and are retried with the next flush.
+	 */
+	public synchronized void flush() {
+		int _count = pending.getAndSet(0);
+		if (_count == 0) {
+			return;
+		}
+		try {
+			flushAction.run();
+			lastFlush = System.currentTimeMillis();
+			logger.fine("flushed " + _count + " mutations.");
+		} catch (RuntimeException _ex) {
+			pending.addAndGet(_count);
+			logger.log(Level.SEVERE, "flushing " + _count + " mutations failed", _ex);
+		}
+	}
+
+	/**
+	 * Stop the background thread and flush all pending mutations.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		try {
+			executor.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException _ex) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	/**
+	 * @return the time of the last successful flush (epoch millis), 0 if there was none yet
+	 */
+	public long getLastFlush() {
+		return lastFlush;
+	}
+
+	/**
+	 * @return the number of mutations that were not yet flushed
+	 */
+	public int getPendingMutations() {
+		return pending.get();
+	}
+}
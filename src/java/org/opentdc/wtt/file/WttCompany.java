@@ -23,17 +23,42 @@
  */
 package org.opentdc.wtt.file;
 
-import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.opentdc.wtt.CompanyModel;
 
 public class WttCompany {
-	private CompanyModel model;
-	private ArrayList<WttProject> projects;
+	// sort order of the companies; ties are broken by id
+	public static final Comparator<WttCompany> COMPARATOR = new Comparator<WttCompany>() {
+		@Override
+		public int compare(WttCompany c1, WttCompany c2) {
+			int _result = CompanyModel.CompanyComparator.compare(c1.getModel(), c2.getModel());
+			return _result != 0 ? _result : c1.getModel().getId().compareTo(c2.getModel().getId());
+		}
+	};
+
+	// the project list is an immutable snapshot that is replaced on each change (copy-on-write),
+	// so that readers can iterate it without locking; writers synchronize on this company
+	// the model is replaced (not modified) on each update, and the version is incremented;
+	// updates synchronize on this company
+	private volatile CompanyModel model;
+	private volatile long version = 0;
+	private volatile List<WttProject> projects;
+	private final transient CachedTree treeCache = new CachedTree();
+	// false while the projects are evicted from memory (only the model is resident)
+	private transient volatile boolean loaded = true;
+	private transient volatile long lastAccess = 0;
+	// guards the shard file of this company; it is always taken last, i.e. no entity monitor is taken while it is held
+	private final transient Object shardLock = new Object();
+	// sequence number of the latest change of the company or its subtree (see ChangeFeed)
+	private final transient AtomicLong changeSequence = new AtomicLong();
 
 	public WttCompany() {
-		projects = new ArrayList<WttProject>();
+		projects = Collections.emptyList();
 	}
 	
 	public CompanyModel getModel() {
@@ -43,20 +68,131 @@ public class WttCompany {
 	public void setModel(CompanyModel companyModel) {
 		this.model = companyModel;
 	}
+
+	/**
+	 * @return the version of the model; it is incremented on each update
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	/**
+	 * @return the cached project tree of this company
+	 */
+	public CachedTree getTreeCache() {
+		return treeCache;
+	}
 	
+	/**
+	 * @return the sequence number of the latest change of this company, its projects or resourceRefs;
+	 * 		0 if it did not change in this run
+	 */
+	public long getChangeSequence() {
+		return changeSequence.get();
+	}
+
+	/**
+	 * Record a change; the sequence number never decreases, even if concurrent changes are recorded out of order.
+	 * 
+	 * @param sequence
+	 */
+	public void advanceChangeSequence(long sequence) {
+		long _current = changeSequence.get();
+		while (sequence > _current && ! changeSequence.compareAndSet(_current, sequence)) {
+			_current = changeSequence.get();
+		}
+	}
+
+	/**
+	 * @return false if the projects of this company are not in memory
+	 */
+	public boolean isLoaded() {
+		return loaded;
+	}
+
+	public void setLoaded(boolean loaded) {
+		this.loaded = loaded;
+	}
+
+	/**
+	 * @return the lock of the shard file, see FileServiceProvider.writeDirtyShards()
+	 */
+	public Object getShardLock() {
+		return shardLock;
+	}
+
+	/**
+	 * @return the time of the last access, in millis
+	 */
+	public long getLastAccess() {
+		return lastAccess;
+	}
+
+	public void setLastAccess(long lastAccess) {
+		this.lastAccess = lastAccess;
+	}
+
+	/**
+	 * @return an immutable snapshot of the top-level projects, sorted by WttProject.COMPARATOR
+	 */
 	public List<WttProject> getProjects() {
 		return projects;
 	}
 	
-	public void setProjects(ArrayList<WttProject> projects) {
-		this.projects = projects;
+	public synchronized void setProjects(List<WttProject> projects) {
+		this.projects = SortedLists.sort(projects, WttProject.COMPARATOR);
 	}
 	
-	public void addProject(WttProject p) {
-		this.projects.add(p);
+	/**
+	 * Add a top-level project at its sorted position.
+	 * 
+	 * @param p
+	 */
+	public synchronized void addProject(WttProject p) {
+		projects = SortedLists.insert(projects, p, WttProject.COMPARATOR);
 	}
 	
-	public boolean removeProject(WttProject p) {
-		return this.projects.remove(p);
+	/**
+	 * Add several top-level projects, e.g. a batch of new projects.
+	 * 
+	 * @param p
+	 */
+	public synchronized void addProjects(Collection<WttProject> p) {
+		projects = SortedLists.insertAll(projects, p, WttProject.COMPARATOR);
+	}
+	
+	public synchronized boolean removeProject(WttProject p) {
+		List<WttProject> _projects = SortedLists.remove(projects, p, WttProject.COMPARATOR);
+		if (_projects == projects) {
+			return false;
+		}
+		projects = _projects;
+		return true;
+	}
+
+	/**
+	 * Move a top-level project to its new position after its title was changed.
+	 * 
+	 * @param p
+	 * @return false if p is not a top-level project of this company
+	 */
+	public synchronized boolean repositionProject(WttProject p) {
+		List<WttProject> _projects = SortedLists.reposition(projects, p, WttProject.COMPARATOR);
+		if (_projects == projects) {
+			return false;
+		}
+		projects = _projects;
+		return true;
+	}
+
+	/**
+	 * Establish the sort order of the projects, e.g. after they were read from a file.
+	 */
+	public synchronized void sortProjects() {
+		projects = SortedLists.sort(projects, WttProject.COMPARATOR);
 	}
 }
@@ -0,0 +1,199 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+
+/**
+ * Append-only journal of JournalEntries, one compact JSON record per line.
+ * The journal is replayed on top of the last snapshot at startup and truncated
+ * whenever a new snapshot has been written (compaction).
+ */
+public class WttJournal {
+	private static final Logger logger = Logger.getLogger(WttJournal.class.getName());
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Gson gson = new GsonBuilder()
+		.registerTypeAdapter(Date.class, new DateAdapter())
+		.create();
+
+	private final File file;
+	private int size = 0;
+
+	public WttJournal(
+			File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the number of entries appended since the last truncation
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Append the entries to the journal and force them to disk.
+	 * All entries are written with a single write.
+	 *
+	 * @param entries
+	 * @return the number of bytes written
+	 * @throws IOException
+	 */
+	public synchronized long append(
+			List<JournalEntry> entries)
+					throws IOException {
+		StringBuilder _sb = new StringBuilder();
+		for (JournalEntry _entry : entries) {
+			_sb.append(gson.toJson(_entry)).append('\n');
+		}
+		long _bytes = 0;
+		FileOutputStream _fos = new FileOutputStream(file, true);
+		try {
+			FileChannel _channel = _fos.getChannel();
+			long _before = _channel.size();
+			Writer _writer = Channels.newWriter(_channel, UTF8.newEncoder(), -1);
+			_writer.write(_sb.toString());
+			_writer.flush();
+			_channel.force(false);
+			_bytes = _channel.size() - _before;
+		} finally {
+			_fos.close();
+		}
+		size += entries.size();
+		return _bytes;
+	}
+
+	/**
+	 * Read all entries of the journal in the order they were appended.
+	 * A trailing record that was only partially written (e.g. because of a crash) is ignored.
+	 *
+	 * @return the list of entries (empty if there is no journal)
+	 * @throws IOException
+	 */
+	public synchronized List<JournalEntry> read()
+			throws IOException {
+		List<JournalEntry> _entries = new ArrayList<JournalEntry>();
+		if (! file.exists()) {
+			return _entries;
+		}
+		BufferedReader _reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+		try {
+			String _line;
+			int _lineNr = 0;
+			while ((_line = _reader.readLine()) != null) {
+				_lineNr++;
+				if (_line.trim().isEmpty()) {
+					continue;
+				}
+				try {
+					_entries.add(gson.fromJson(_line, JournalEntry.class));
+				} catch (JsonParseException _ex) {
+					logger.warning("journal <" + file.getName() + ">: ignoring incomplete record in line " + _lineNr);
+					break;
+				}
+			}
+		} finally {
+			_reader.close();
+		}
+		size = _entries.size();
+		return _entries;
+	}
+
+	/**
+	 * Discard all entries, e.g. after a new snapshot was written.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void truncate()
+			throws IOException {
+		FileOutputStream _fos = new FileOutputStream(file, false);
+		try {
+			_fos.getChannel().force(true);
+		} finally {
+			_fos.close();
+		}
+		size = 0;
+	}
+
+	public static JsonElement toPayload(
+			Object model) {
+		return model == null ? null : gson.toJsonTree(model);
+	}
+
+	public static <T> T fromPayload(
+			JsonElement payload,
+			Class<T> clazz) {
+		return gson.fromJson(payload, clazz);
+	}
+
+	/**
+	 * Dates are journaled as epoch millis, so that no precision is lost.
+	 */
+	private static class DateAdapter implements JsonSerializer<Date>, JsonDeserializer<Date> {
+		@Override
+		public JsonElement serialize(
+				Date src,
+				Type typeOfSrc,
+				JsonSerializationContext context) {
+			return new JsonPrimitive(src.getTime());
+		}
+
+		@Override
+		public Date deserialize(
+				JsonElement json,
+				Type typeOfT,
+				JsonDeserializationContext context)
+						throws JsonParseException {
+			return new Date(json.getAsLong());
+		}
+	}
+}
@@ -0,0 +1,256 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Records the latency of each operation and of each write, and exposes them
+ * together with the index sizes and cache counters of FileServiceProvider via JMX.
+ */
+public class WttMetrics implements WttMetricsMXBean {
+	public static final String OBJECT_NAME = "org.opentdc.wtt.file:type=WttMetrics";
+	private static final Logger logger = Logger.getLogger(WttMetrics.class.getName());
+
+	/**
+	 * The body of an operation that is instrumented by call().
+	 */
+	public interface Call<T> {
+		T call();
+	}
+
+	private static class Operation {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong errors = new AtomicLong();
+	}
+
+	private final ConcurrentMap<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+	// the operation the current thread is in, so that an operation that calls another one is recorded once
+	private final ThreadLocal<String> current = new ThreadLocal<String>();
+	private final LatencyHistogram persistLatency = new LatencyHistogram();
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	/**
+	 * Run an operation and record its latency, and count it as failed if it throws (except NotModifiedException).
+	 * An operation that is called by another operation (e.g. an overload that delegates to another one)
+	 * is counted as part of the outer operation.
+	 * 
+	 * @param name the operation, e.g. the method name
+	 * @param call
+	 * @return the result of the call
+	 */
+	public <T> T call(
+			String name,
+			Call<T> call) {
+		if (current.get() != null) {
+			return call.call();
+		}
+		long _start = System.nanoTime();
+		current.set(name);
+		try {
+			return call.call();
+		} catch (NotModifiedException _ex) {
+			// a conditional read of an unchanged company succeeded
+			throw _ex;
+		} catch (RuntimeException _ex) {
+			failed(name);
+			throw _ex;
+		} finally {
+			current.remove();
+			record(name, _start);
+		}
+	}
+
+	/**
+	 * Record a completed (or failed) operation.
+	 * 
+	 * @param name the operation, e.g. the method name
+	 * @param startNanos the System.nanoTime() when the operation started
+	 */
+	public void record(
+			String name,
+			long startNanos) {
+		operation(name).latency.record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Count a failed operation; its latency is recorded by record().
+	 * 
+	 * @param name
+	 */
+	public void failed(
+			String name) {
+		operation(name).errors.incrementAndGet();
+	}
+
+	/**
+	 * Record a write of a snapshot, shard or journal.
+	 * 
+	 * @param startNanos the System.nanoTime() when the write started
+	 * @param bytes the number of bytes written
+	 */
+	public void recordWrite(
+			long startNanos,
+			long bytes) {
+		persistLatency.record(System.nanoTime() - startNanos);
+		bytesWritten.addAndGet(bytes);
+	}
+
+	/**
+	 * Register this MBean in the platform MBean server, unless it is registered already.
+	 */
+	public void register() {
+		try {
+			MBeanServer _server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName _name = new ObjectName(OBJECT_NAME);
+			if (! _server.isRegistered(_name)) {
+				_server.registerMBean(this, _name);
+			}
+		} catch (JMException _ex) {
+			logger.log(Level.WARNING, "metrics could not be registered as <" + OBJECT_NAME + ">.", _ex);
+		}
+	}
+
+	public void unregister() {
+		try {
+			MBeanServer _server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName _name = new ObjectName(OBJECT_NAME);
+			if (_server.isRegistered(_name)) {
+				_server.unregisterMBean(_name);
+			}
+		} catch (JMException _ex) {
+			logger.log(Level.WARNING, "metrics could not be unregistered.", _ex);
+		}
+	}
+
+	private Operation operation(
+			String name) {
+		Operation _operation = operations.get(name);
+		if (_operation == null) {
+			Operation _newOperation = new Operation();
+			_operation = operations.putIfAbsent(name, _newOperation);
+			if (_operation == null) {
+				_operation = _newOperation;
+			}
+		}
+		return _operation;
+	}
+
+	@Override
+	public int getCompanyCount() {
+		return FileServiceProvider.getCompanyCount();
+	}
+
+	@Override
+	public int getProjectCount() {
+		return FileServiceProvider.getProjectCount();
+	}
+
+	@Override
+	public int getResourceRefCount() {
+		return FileServiceProvider.getResourceRefCount();
+	}
+
+	@Override
+	public int getResidentCompanyCount() {
+		return FileServiceProvider.getResidentCompanyCount();
+	}
+
+	@Override
+	public Map<String, OperationStatistics> getOperations() {
+		Map<String, OperationStatistics> _statistics = new TreeMap<String, OperationStatistics>();
+		for (Map.Entry<String, Operation> _entry : operations.entrySet()) {
+			Operation _operation = _entry.getValue();
+			_statistics.put(_entry.getKey(),
+					OperationStatistics.of(_entry.getKey(), _operation.latency, _operation.errors.get()));
+		}
+		return _statistics;
+	}
+
+	@Override
+	public OperationStatistics getPersistStatistics() {
+		return OperationStatistics.of("persist", persistLatency, 0);
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	@Override
+	public int getPendingMutations() {
+		return FileServiceProvider.getPendingMutations();
+	}
+
+	@Override
+	public long getLastFlush() {
+		return FileServiceProvider.getLastFlush();
+	}
+
+	@Override
+	public long getChangeSequence() {
+		return FileServiceProvider.getChangeSequence();
+	}
+
+	@Override
+	public long getTreeCacheHits() {
+		return FileServiceProvider.getTreeCacheHits();
+	}
+
+	@Override
+	public long getTreeCacheMisses() {
+		return FileServiceProvider.getTreeCacheMisses();
+	}
+
+	@Override
+	public long getResourceNameCacheHits() {
+		return FileServiceProvider.getResourceNameCacheHits();
+	}
+
+	@Override
+	public long getResourceNameCacheMisses() {
+		return FileServiceProvider.getResourceNameCacheMisses();
+	}
+
+	@Override
+	public long getCompanyLoads() {
+		return FileServiceProvider.getCompanyLoads();
+	}
+
+	@Override
+	public long getCompanyEvictions() {
+		return FileServiceProvider.getCompanyEvictions();
+	}
+}
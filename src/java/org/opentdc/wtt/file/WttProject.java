@@ -1,18 +1,51 @@
 package org.opentdc.wtt.file;
-import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.opentdc.wtt.ProjectModel;
 import org.opentdc.wtt.ResourceRefModel;
 
 public class WttProject {
-	ProjectModel model;
-	ArrayList<WttProject> projects;
-	ArrayList<ResourceRefModel> resources;
+	// sort order of (sub)projects and resourceRefs; ties are broken by id
+	public static final Comparator<WttProject> COMPARATOR = new Comparator<WttProject>() {
+		@Override
+		public int compare(WttProject p1, WttProject p2) {
+			int _result = ProjectModel.ProjectComparator.compare(p1.getModel(), p2.getModel());
+			return _result != 0 ? _result : p1.getModel().getId().compareTo(p2.getModel().getId());
+		}
+	};
+	public static final Comparator<ResourceRefModel> RESOURCE_COMPARATOR = new Comparator<ResourceRefModel>() {
+		@Override
+		public int compare(ResourceRefModel r1, ResourceRefModel r2) {
+			int _result = ResourceRefModel.ResourceRefComparator.compare(r1, r2);
+			return _result != 0 ? _result : r1.getId().compareTo(r2.getId());
+		}
+	};
+
+	// the model is replaced (not modified) on each update, and the version is incremented;
+	// updates synchronize on this project
+	volatile ProjectModel model;
+	volatile long version = 0;
+	// the child lists are immutable snapshots that are replaced on each change (copy-on-write),
+	// so that readers can iterate them without locking; writers synchronize on this project
+	volatile List<WttProject> projects;
+	volatile List<ResourceRefModel> resources;
+	// the resourceRefs keyed by their lower-cased id; not serialized, rebuilt by sort() and setResources()
+	transient volatile Map<String, ResourceRefModel> resourcesById;
+	// back-pointers set when the project is indexed; not serialized, the tree structure is implied by the nesting
+	transient volatile String companyId;
+	transient volatile String parentId;		// null for a top-level project
+	final transient CachedTree treeCache = new CachedTree();
 
 	public WttProject() {
-		projects = new ArrayList<WttProject>();
-		resources = new ArrayList<ResourceRefModel>();
+		projects = Collections.emptyList();
+		resources = Collections.emptyList();
+		resourcesById = new ConcurrentHashMap<String, ResourceRefModel>();
 	}
 
 	public ProjectModel getModel() {
@@ -23,44 +56,175 @@ public class WttProject {
 		this.model = projectModel;
 	}
 
+	/**
+	 * @return the version of the model; it is incremented on each update
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	/**
+	 * @return the id of the company this project belongs to
+	 */
+	public String getCompanyId() {
+		return companyId;
+	}
+
+	/**
+	 * @return the id of the parent project, or null if this is a top-level project
+	 */
+	public String getParentId() {
+		return parentId;
+	}
+
+	public void setOwner(String companyId, String parentId) {
+		this.companyId = companyId;
+		this.parentId = parentId;
+	}
+
+	/**
+	 * @return the cached subtree of this project
+	 */
+	public CachedTree getTreeCache() {
+		return treeCache;
+	}
+
+	/**
+	 * @return an immutable snapshot of the subprojects, sorted by COMPARATOR
+	 */
 	public List<WttProject> getProjects() {
 		return projects;
 	}
 
-	public void setProjects(ArrayList<WttProject> projects) {
-		this.projects = projects;
+	public synchronized void setProjects(List<WttProject> projects) {
+		this.projects = SortedLists.sort(projects, COMPARATOR);
 	}
 	
-	public void addProject(WttProject p) {
-		this.projects.add(p);
+	public synchronized void addProject(WttProject p) {
+		projects = SortedLists.insert(projects, p, COMPARATOR);
 	}
 	
-	public boolean removeProject(WttProject p) {
-		return this.projects.remove(p);
+	public synchronized void addProjects(Collection<WttProject> p) {
+		projects = SortedLists.insertAll(projects, p, COMPARATOR);
+	}
+	
+	public synchronized boolean removeProject(WttProject p) {
+		List<WttProject> _projects = SortedLists.remove(projects, p, COMPARATOR);
+		if (_projects == projects) {
+			return false;
+		}
+		projects = _projects;
+		return true;
+	}
+
+	/**
+	 * Move a subproject to its new position after its title was changed.
+	 * 
+	 * @param p
+	 * @return false if p is not a subproject of this project
+	 */
+	public synchronized boolean repositionProject(WttProject p) {
+		List<WttProject> _projects = SortedLists.reposition(projects, p, COMPARATOR);
+		if (_projects == projects) {
+			return false;
+		}
+		projects = _projects;
+		return true;
 	}
 
+	/**
+	 * @return an immutable snapshot of the resourceRefs, sorted by RESOURCE_COMPARATOR
+	 */
 	public List<ResourceRefModel> getResources() {
 		return resources;
 	}
 
-	public void setResources(ArrayList<ResourceRefModel> resources) {
-		this.resources = resources;
+	public synchronized void setResources(List<ResourceRefModel> resources) {
+		this.resources = SortedLists.sort(resources, RESOURCE_COMPARATOR);
+		indexResources();
+	}
+
+	/**
+	 * Find a resourceRef of this project by its id (case-insensitive).
+	 * 
+	 * @param rid
+	 * @return the resourceRef or null if it is not assigned to this project
+	 */
+	public ResourceRefModel getResource(String rid) {
+		return rid == null ? null : resourcesById.get(key(rid));
+	}
+
+	public boolean containsResource(String rid) {
+		return getResource(rid) != null;
 	}
 	
-	public void addResource(ResourceRefModel r) {
-		this.resources.add(r);
+	public synchronized void addResource(ResourceRefModel r) {
+		resources = SortedLists.insert(resources, r, RESOURCE_COMPARATOR);
+		resourcesById.put(key(r.getId()), r);
 	}
 	
-	public boolean removeResource(ResourceRefModel r) {
-		return this.resources.remove(r);
+	public synchronized void addResources(Collection<ResourceRefModel> r) {
+		resources = SortedLists.insertAll(resources, r, RESOURCE_COMPARATOR);
+		for (ResourceRefModel _r : r) {
+			resourcesById.put(key(_r.getId()), _r);
+		}
+	}
+	
+	public synchronized boolean removeResource(ResourceRefModel r) {
+		List<ResourceRefModel> _resources = SortedLists.remove(resources, r, RESOURCE_COMPARATOR);
+		if (_resources == resources) {
+			return false;
+		}
+		resources = _resources;
+		resourcesById.remove(key(r.getId()));
+		return true;
 	}
 	
-	public boolean removeResource(String rid) {
+	/**
+	 * Replace a resourceRef by an updated copy at its new sorted position, e.g. after its resource was renamed.
+	 * 
+	 * @param r the resourceRef to be replaced
+	 * @param replacement
+	 * @return false if r is not assigned to this project
+	 */
+	public synchronized boolean replaceResource(ResourceRefModel r, ResourceRefModel replacement) {
+		List<ResourceRefModel> _resources = SortedLists.replace(resources, r, replacement, RESOURCE_COMPARATOR);
+		if (_resources == resources) {
+			return false;
+		}
+		resources = _resources;
+		resourcesById.put(key(replacement.getId()), replacement);
+		return true;
+	}
+	
+	public synchronized boolean removeResource(String rid) {
+		ResourceRefModel _r = getResource(rid);
+		return _r != null && removeResource(_r);
+	}
+
+	/**
+	 * Establish the sort order of subprojects and resourceRefs, e.g. after they were read from a file.
+	 */
+	public synchronized void sort() {
+		projects = SortedLists.sort(projects, COMPARATOR);
+		resources = SortedLists.sort(resources, RESOURCE_COMPARATOR);
+		indexResources();
+	}
+
+	// called with the lock held
+	private void indexResources() {
+		Map<String, ResourceRefModel> _resourcesById = new ConcurrentHashMap<String, ResourceRefModel>();
 		for (ResourceRefModel _r : resources) {
-			if (_r.getId().equalsIgnoreCase(rid)){
-				return this.resources.remove(_r);
-			}
+			_resourcesById.put(key(_r.getId()), _r);
 		}
-		return false;
+		resourcesById = _resourcesById;
+	}
+
+	private static String key(String rid) {
+		return rid.toLowerCase(Locale.ENGLISH);
 	}
-}
+}
\ No newline at end of file
@@ -0,0 +1,53 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import org.opentdc.wtt.ResourceRefModel;
+
+/**
+ * Entry of the resourceRef index: a resourceRef together with the project it is assigned to,
+ * so that a resourceRef can be found and removed from its project without scanning the project tree.
+ */
+public class WttResourceRef {
+	private final ResourceRefModel model;
+	private final WttProject project;
+
+	public WttResourceRef(
+			ResourceRefModel model,
+			WttProject project) {
+		this.model = model;
+		this.project = project;
+	}
+
+	public ResourceRefModel getModel() {
+		return model;
+	}
+
+	/**
+	 * @return the project the resourceRef is assigned to
+	 */
+	public WttProject getProject() {
+		return project;
+	}
+}
@@ -0,0 +1,484 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.opentdc.service.exception.ValidationException;
+
+/**
+ * In-memory search index for the query/queryType parameters of the list methods.
+ * Documents are indexed per scope (i.e. per list: all companies, the projects of a
+ * company or project, the resourceRefs of a project), so that a query only touches
+ * the documents of the list that is filtered.
+ * <p>
+ * Supported queryTypes:
+ * <ul>
+ * <li>title: each word of the query is a prefix of a word in the title</li>
+ * <li>text: the query is a substring of the title or the description</li>
+ * <li>modifiedAt: from..to (epoch millis, both inclusive, either one may be omitted)</li>
+ * <li>orgId, createdBy, resourceId (see ATTRIBUTES): exact match, ignoring case</li>
+ * </ul>
+ * A text query looks up the words of the scope that contain its longest word by their trigrams;
+ * a query whose words are all shorter than three characters scans the words of the scope.
+ */
+public class WttSearchIndex {
+	public static final String TITLE = "title";
+	public static final String TEXT = "text";
+	public static final String MODIFIED_AT = "modifiedAt";
+	public static final String ORG_ID = "orgId";
+	public static final String CREATED_BY = "createdBy";
+	public static final String RESOURCE_ID = "resourceId";
+	// the attributes that may be indexed with Document.attribute() and queried by their name
+	public static final Set<String> ATTRIBUTES = Collections.unmodifiableSet(
+			new HashSet<String>(Arrays.asList(ORG_ID, CREATED_BY, RESOURCE_ID)));
+	private static final String RANGE_SEPARATOR = "..";
+	private static final int GRAM_LENGTH = 3;
+
+	private final Map<String, Scope> scopes = new ConcurrentHashMap<String, Scope>();
+	private final Map<String, String> scopeOf = new ConcurrentHashMap<String, String>();	// id, scope
+
+	/**
+	 * The indexed attributes of a company, project or resourceRef.
+	 */
+	public static class Document {
+		private final String id;
+		private final String title;
+		private final String description;
+		private final long modifiedAt;
+		private final Map<String, String> attributes = new HashMap<String, String>();
+
+		public Document(
+				String id,
+				String title,
+				String description,
+				Date modifiedAt) {
+			this.id = id;
+			this.title = title == null ? "" : title.toLowerCase(Locale.ROOT);
+			this.description = description == null ? "" : description.toLowerCase(Locale.ROOT);
+			this.modifiedAt = modifiedAt == null ? 0 : modifiedAt.getTime();
+		}
+
+		/**
+		 * @param name one of ATTRIBUTES
+		 * @param value
+		 * @return this document
+		 */
+		public Document attribute(
+				String name,
+				String value) {
+			if (! ATTRIBUTES.contains(name)) {
+				throw new IllegalArgumentException("attribute <" + name + "> is not searchable.");
+			}
+			if (value != null) {
+				attributes.put(name, value.toLowerCase(Locale.ROOT));
+			}
+			return this;
+		}
+	}
+
+	/**
+	 * Add or replace a document.
+	 *
+	 * @param scope the list the document belongs to
+	 * @param doc
+	 */
+	public void put(
+			String scope,
+			Document doc) {
+		String _oldScope = scopeOf.put(doc.id, scope);
+		if (_oldScope != null && ! _oldScope.equals(scope)) {
+			Scope _old = scopes.get(_oldScope);
+			if (_old != null) {
+				_old.remove(doc.id);
+			}
+		}
+		Scope _scope = scopes.get(scope);
+		if (_scope == null) {
+			synchronized (scopes) {
+				_scope = scopes.get(scope);
+				if (_scope == null) {
+					_scope = new Scope();
+					scopes.put(scope, _scope);
+				}
+			}
+		}
+		_scope.put(doc);
+	}
+
+	/**
+	 * Replace a document in the scope it was indexed in. 
+	 * Nothing happens if the document is not indexed.
+	 *
+	 * @param doc
+	 */
+	public void update(
+			Document doc) {
+		String _scope = scopeOf.get(doc.id);
+		if (_scope != null) {
+			put(_scope, doc);
+		}
+	}
+
+	/**
+	 * Remove a document.
+	 *
+	 * @param id
+	 */
+	public void remove(
+			String id) {
+		String _scope = scopeOf.remove(id);
+		if (_scope != null) {
+			Scope _s = scopes.get(_scope);
+			if (_s != null) {
+				_s.remove(id);
+			}
+		}
+	}
+
+	/**
+	 * Remove all documents of a scope, e.g. when its parent was deleted.
+	 *
+	 * @param scope
+	 */
+	public void removeScope(
+			String scope) {
+		Scope _scope = scopes.remove(scope);
+		if (_scope != null) {
+			for (String _id : _scope.ids()) {
+				scopeOf.remove(_id);
+			}
+		}
+	}
+
+	/**
+	 * @param queryType
+	 * @param query
+	 * @return true if the parameters describe a filter, false if all documents are requested
+	 */
+	public static boolean isQuery(
+			String queryType,
+			String query) {
+		return queryType != null && ! queryType.isEmpty() && query != null && ! query.isEmpty();
+	}
+
+	/**
+	 * Find the ids of the documents in a scope that match a query.
+	 *
+	 * @param scope
+	 * @param queryType
+	 * @param query
+	 * @return the ids of the matching documents
+	 * @throws ValidationException if the queryType is not supported or the query is malformed,
+	 * 		also if the scope is empty
+	 */
+	public Set<String> search(
+			String scope,
+			String queryType,
+			String query)
+					throws ValidationException {
+		validate(queryType, query);
+		Scope _scope = scopes.get(scope);
+		if (_scope == null) {
+			return Collections.emptySet();
+		}
+		return _scope.search(queryType, query);
+	}
+
+	private static void validate(
+			String queryType,
+			String query)
+					throws ValidationException {
+		if (MODIFIED_AT.equals(queryType)) {
+			parseRange(query);
+		} else if (! TITLE.equals(queryType) && ! TEXT.equals(queryType) && ! ATTRIBUTES.contains(queryType)) {
+			throw new ValidationException("queryType <" + queryType + "> is not supported.");
+		}
+	}
+
+	private static long[] parseRange(
+			String query)
+					throws ValidationException {
+		int _sep = query.indexOf(RANGE_SEPARATOR);
+		if (_sep < 0) {
+			throw new ValidationException("query <" + query + "> must be a range from..to of epoch millis.");
+		}
+		String _from = query.substring(0, _sep).trim();
+		String _to = query.substring(_sep + RANGE_SEPARATOR.length()).trim();
+		try {
+			return new long[] {
+				_from.isEmpty() ? Long.MIN_VALUE : Long.parseLong(_from),
+				_to.isEmpty() ? Long.MAX_VALUE : Long.parseLong(_to)
+			};
+		} catch (NumberFormatException _ex) {
+			throw new ValidationException("query <" + query + "> must be a range from..to of epoch millis.");
+		}
+	}
+
+	private static Set<String> tokenize(
+			String text) {
+		Set<String> _tokens = new HashSet<String>();
+		for (String _token : text.split("[^\\p{L}\\p{N}]+")) {
+			if (! _token.isEmpty()) {
+				_tokens.add(_token);
+			}
+		}
+		return _tokens;
+	}
+
+	/**
+	 * @param word
+	 * @return the distinct substrings of GRAM_LENGTH characters; none if the word is shorter
+	 */
+	private static Set<String> grams(
+			String word) {
+		Set<String> _grams = new HashSet<String>();
+		for (int i = 0; i + GRAM_LENGTH <= word.length(); i++) {
+			_grams.add(word.substring(i, i + GRAM_LENGTH));
+		}
+		return _grams;
+	}
+
+	private static <K extends Comparable<K>> void add(
+			Map<K, Set<String>> index,
+			K key,
+			String id) {
+		Set<String> _ids = index.get(key);
+		if (_ids == null) {
+			_ids = new HashSet<String>();
+			index.put(key, _ids);
+		}
+		_ids.add(id);
+	}
+
+	private static <K extends Comparable<K>> void remove(
+			Map<K, Set<String>> index,
+			K key,
+			String id) {
+		Set<String> _ids = index.get(key);
+		if (_ids != null) {
+			_ids.remove(id);
+			if (_ids.isEmpty()) {
+				index.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * The documents of one list with their inverted token index and secondary indexes.
+	 */
+	private static class Scope {
+		private final Map<String, Document> documents = new HashMap<String, Document>();
+		private final TreeMap<String, Set<String>> titleTokens = new TreeMap<String, Set<String>>();
+		private final TreeMap<String, Set<String>> textTokens = new TreeMap<String, Set<String>>();
+		// trigram -> the text tokens that contain it, so that a text query does not scan all tokens
+		private final Map<String, Set<String>> textGrams = new HashMap<String, Set<String>>();
+		private final TreeMap<Long, Set<String>> modifiedAt = new TreeMap<Long, Set<String>>();
+		private final Map<String, TreeMap<String, Set<String>>> attributes = new HashMap<String, TreeMap<String, Set<String>>>();
+
+		synchronized void put(
+				Document doc) {
+			remove(doc.id);
+			documents.put(doc.id, doc);
+			for (String _token : tokenize(doc.title)) {
+				add(titleTokens, _token, doc.id);
+				addTextToken(_token, doc.id);
+			}
+			for (String _token : tokenize(doc.description)) {
+				addTextToken(_token, doc.id);
+			}
+			add(modifiedAt, doc.modifiedAt, doc.id);
+			for (Map.Entry<String, String> _attribute : doc.attributes.entrySet()) {
+				TreeMap<String, Set<String>> _index = attributes.get(_attribute.getKey());
+				if (_index == null) {
+					_index = new TreeMap<String, Set<String>>();
+					attributes.put(_attribute.getKey(), _index);
+				}
+				add(_index, _attribute.getValue(), doc.id);
+			}
+		}
+
+		synchronized Set<String> ids() {
+			return new HashSet<String>(documents.keySet());
+		}
+
+		synchronized void remove(
+				String id) {
+			Document _doc = documents.remove(id);
+			if (_doc == null) {
+				return;
+			}
+			for (String _token : tokenize(_doc.title)) {
+				WttSearchIndex.remove(titleTokens, _token, id);
+				removeTextToken(_token, id);
+			}
+			for (String _token : tokenize(_doc.description)) {
+				removeTextToken(_token, id);
+			}
+			WttSearchIndex.remove(modifiedAt, _doc.modifiedAt, id);
+			for (Map.Entry<String, String> _attribute : _doc.attributes.entrySet()) {
+				WttSearchIndex.remove(attributes.get(_attribute.getKey()), _attribute.getValue(), id);
+			}
+		}
+
+		synchronized Set<String> search(
+				String queryType,
+				String query)
+						throws ValidationException {
+			String _query = query.toLowerCase(Locale.ROOT);
+			if (TITLE.equals(queryType)) {
+				return searchTitle(_query);
+			} else if (TEXT.equals(queryType)) {
+				return searchText(_query);
+			} else if (MODIFIED_AT.equals(queryType)) {
+				long[] _range = parseRange(query);
+				return union(modifiedAt.subMap(_range[0], true, _range[1], true).values());
+			}
+			// the queryType was validated by WttSearchIndex.search()
+			TreeMap<String, Set<String>> _index = attributes.get(queryType);
+			Set<String> _ids = _index == null ? null : _index.get(_query);
+			return _ids == null ? Collections.<String>emptySet() : new HashSet<String>(_ids);
+		}
+
+		private void addTextToken(
+				String token,
+				String id) {
+			if (! textTokens.containsKey(token)) {
+				for (String _gram : grams(token)) {
+					add(textGrams, _gram, token);
+				}
+			}
+			add(textTokens, token, id);
+		}
+
+		private void removeTextToken(
+				String token,
+				String id) {
+			WttSearchIndex.remove(textTokens, token, id);
+			if (! textTokens.containsKey(token)) {
+				for (String _gram : grams(token)) {
+					WttSearchIndex.remove(textGrams, _gram, token);
+				}
+			}
+		}
+
+		/**
+		 * Each query word must be a prefix of a title word; the candidates of the
+		 * prefix ranges are intersected.
+		 */
+		private Set<String> searchTitle(
+				String query) {
+			Set<String> _result = null;
+			for (String _word : tokenize(query)) {
+				Set<String> _ids = union(prefixRange(titleTokens, _word).values());
+				if (_result == null) {
+					_result = _ids;
+				} else {
+					_result.retainAll(_ids);
+				}
+			}
+			return _result == null ? new HashSet<String>() : _result;
+		}
+
+		/**
+		 * The candidates are the documents with a token containing the longest query word;
+		 * they are verified against the full title and description.
+		 */
+		private Set<String> searchText(
+				String query) {
+			String _longest = "";
+			for (String _word : tokenize(query)) {
+				if (_word.length() > _longest.length()) {
+					_longest = _word;
+				}
+			}
+			Set<String> _result = new HashSet<String>();
+			if (_longest.isEmpty()) {
+				return _result;
+			}
+			for (String _token : tokensContaining(_longest)) {
+				for (String _id : textTokens.get(_token)) {
+					Document _doc = documents.get(_id);
+					if (_doc.title.contains(query) || _doc.description.contains(query)) {
+						_result.add(_id);
+					}
+				}
+			}
+			return _result;
+		}
+
+		/**
+		 * The tokens that contain all trigrams of the word are verified; a word without trigrams
+		 * is compared with all tokens.
+		 */
+		private Set<String> tokensContaining(
+				String word) {
+			Set<String> _candidates = null;
+			for (String _gram : grams(word)) {
+				Set<String> _tokens = textGrams.get(_gram);
+				if (_tokens == null) {
+					return Collections.emptySet();
+				}
+				if (_candidates == null) {
+					_candidates = new HashSet<String>(_tokens);
+				} else {
+					_candidates.retainAll(_tokens);
+				}
+			}
+			Set<String> _result = new HashSet<String>();
+			for (String _token : _candidates == null ? textTokens.keySet() : _candidates) {
+				if (_token.contains(word)) {
+					_result.add(_token);
+				}
+			}
+			return _result;
+		}
+
+		private static NavigableMap<String, Set<String>> prefixRange(
+				TreeMap<String, Set<String>> index,
+				String prefix) {
+			return index.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+		}
+
+		private static Set<String> union(
+				Collection<Set<String>> sets) {
+			Set<String> _result = new HashSet<String>();
+			for (Set<String> _ids : sets) {
+				_result.addAll(_ids);
+			}
+			return _result;
+		}
+	}
+}
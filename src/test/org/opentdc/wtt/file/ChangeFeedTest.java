@@ -0,0 +1,91 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opentdc.wtt.file.JournalEntry.EntityType;
+import org.opentdc.wtt.file.JournalEntry.Op;
+
+/**
+ * Sequence numbers of the change feed across runs: a new run starts above all sequence numbers
+ * of the previous run, even if that run issued them faster than the clock advanced.
+ */
+public class ChangeFeedTest {
+	private static final int CAPACITY = 10;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private SequenceFile sequenceFile;
+
+	@Before
+	public void setUp() {
+		sequenceFile = new SequenceFile(new File(folder.getRoot(), "sequence"));
+	}
+
+	@Test
+	public void startAboveThePreviousRun() throws Exception {
+		ChangeFeed _previous = new ChangeFeed(CAPACITY, sequenceFile);
+		for (int i = 0; i < 250000; i++) {
+			_previous.append(newEntry(i));
+		}
+		long _cursor = _previous.getLastSequence();
+		// more than one block was reserved
+		assertTrue(sequenceFile.read() >= _cursor);
+
+		ChangeFeed _current = new ChangeFeed(CAPACITY, sequenceFile);
+		assertTrue(_current.getInitialSequence() > _cursor);
+		try {
+			_current.getChangesSince(_cursor, null, CAPACITY);
+			throw new AssertionError("a cursor of the previous run was accepted");
+		} catch (ChangeFeedExpiredException _ex) {
+			// expected
+		}
+		_current.append(newEntry(0));
+		assertEquals(1, _current.getChangesSince(_current.getInitialSequence(), null, CAPACITY).getChanges().size());
+	}
+
+	/**
+	 * The previous run issued more sequence numbers than the clock advanced.
+	 */
+	@Test
+	public void startAboveAStoredBound() throws Exception {
+		long _bound = System.currentTimeMillis() * 1000 + 1000000000L;
+		sequenceFile.write(_bound);
+		assertEquals(_bound + 1, new ChangeFeed(CAPACITY, sequenceFile).getInitialSequence());
+	}
+
+	private static JournalEntry newEntry(
+			int i) {
+		return new JournalEntry(Op.CREATE, EntityType.PROJECT, "p" + i, "c", null, null);
+	}
+}
@@ -0,0 +1,289 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opentdc.service.exception.NotFoundException;
+import org.opentdc.service.exception.ValidationException;
+import org.opentdc.wtt.CompanyModel;
+import org.opentdc.wtt.ProjectModel;
+import org.opentdc.wtt.ProjectTreeNodeModel;
+import org.opentdc.wtt.ResourceRefModel;
+
+/**
+ * Runs creates, updates, moves, removes, lists and tree reads of projects and resourceRefs concurrently on one company
+ * and verifies that no operation fails and that the tree, the indexes and the cached tree agree afterwards;
+ * with persistence, the data read after a restart must equal the data in memory.
+ */
+public class ConcurrencyStressTest {
+	private static final int THREADS = 8;
+	private static final int OPERATIONS = 2000;		// per thread
+	private static final int TOP_PROJECTS = 20;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileServiceProvider provider;
+	private String compId;
+	// a second company, read concurrently so that the company under test is evicted; null without eviction
+	private String otherCompId;
+	// the projects that were created; some of them are removed concurrently
+	private final List<String> projIds = new CopyOnWriteArrayList<String>();
+
+	@After
+	public void tearDown() {
+		TestServiceProvider.reset();
+	}
+
+	@Test
+	public void concurrentMutationsAndReads() throws Exception {
+		provider = TestServiceProvider.create(folder.getRoot(), false, new HashMap<String, String>());
+		createCompany();
+		runConcurrently(OPERATIONS);
+		verifyConsistency();
+	}
+
+	@Test
+	public void concurrentMutationsAreJournaled() throws Exception {
+		HashMap<String, String> _parameters = new HashMap<String, String>();
+		_parameters.put("wtt.persistenceMode", "journal");
+		_parameters.put("wtt.journal.compactionThreshold", "500");
+		provider = TestServiceProvider.create(folder.getRoot(), true, _parameters);
+		createCompany();
+		runConcurrently(OPERATIONS);
+		verifyConsistency();
+		String _before = TestServiceProvider.describe(provider.readAsTree(compId));
+		provider = TestServiceProvider.create(folder.getRoot(), true, _parameters);
+		verifyConsistency();
+		assertEquals(_before, TestServiceProvider.describe(provider.readAsTree(compId)));
+	}
+
+	/**
+	 * With a budget of one resident company, reading a second company evicts the company under test
+	 * between the mutations; no mutation may be lost from its shard.
+	 */
+	@Test
+	public void concurrentMutationsWithEviction() throws Exception {
+		HashMap<String, String> _parameters = new HashMap<String, String>();
+		_parameters.put("wtt.snapshot.sharding", "company");
+		_parameters.put("wtt.residentCompanies.max", "1");
+		_parameters.put("wtt.residentCompanies.minIdle", "0");
+		provider = TestServiceProvider.create(folder.getRoot(), true, _parameters);
+		createCompany();
+		CompanyModel _other = new CompanyModel();
+		_other.setTitle("Other");
+		_other.setOrgId("org");
+		otherCompId = provider.createCompany(TestServiceProvider.newRequest(), _other).getId();
+		long _evictions = FileServiceProvider.getCompanyEvictions();
+		// each shard write rewrites the company, therefore fewer operations
+		runConcurrently(OPERATIONS / 4);
+		assertTrue(FileServiceProvider.getCompanyEvictions() > _evictions);
+		verifyConsistency();
+		String _before = TestServiceProvider.describe(provider.readAsTree(compId));
+		provider = TestServiceProvider.create(folder.getRoot(), true, _parameters);
+		verifyConsistency();
+		assertEquals(_before, TestServiceProvider.describe(provider.readAsTree(compId)));
+	}
+
+	private void createCompany() throws Exception {
+		CompanyModel _c = new CompanyModel();
+		_c.setTitle("Stress");
+		_c.setOrgId("org");
+		compId = provider.createCompany(TestServiceProvider.newRequest(), _c).getId();
+		for (int i = 0; i < TOP_PROJECTS; i++) {
+			projIds.add(provider.createProject(TestServiceProvider.newRequest(), compId, newProject("P" + i)).getId());
+		}
+	}
+
+	private void runConcurrently(
+			final int operations) throws Exception {
+		final ConcurrentLinkedQueue<Throwable> _failures = new ConcurrentLinkedQueue<Throwable>();
+		final CountDownLatch _start = new CountDownLatch(1);
+		List<Thread> _threads = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS; t++) {
+			final Random _random = new Random(t);
+			Thread _thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						_start.await();
+						for (int i = 0; i < operations; i++) {
+							runOperation(_random);
+						}
+					} catch (Throwable _ex) {
+						_failures.add(_ex);
+					}
+				}
+			};
+			_threads.add(_thread);
+			_thread.start();
+		}
+		_start.countDown();
+		for (Thread _thread : _threads) {
+			_thread.join();
+		}
+		if (! _failures.isEmpty()) {
+			throw new AssertionError("operation failed: " + _failures.peek(), _failures.peek());
+		}
+	}
+
+	private void runOperation(
+			Random random) {
+		int _index = random.nextInt(projIds.size());
+		String _projId = projIds.get(_index);
+		try {
+			switch (random.nextInt(10)) {
+			case 0:
+			case 1:
+				projIds.add(provider.createSubproject(TestServiceProvider.newRequest(), compId, _projId,
+						newProject("S" + random.nextInt(1000))).getId());
+				break;
+			case 2:
+				// the top-level projects are kept, so that the tree does not run empty
+				if (_index >= TOP_PROJECTS) {
+					provider.deleteProject(compId, _projId);
+					projIds.remove(_projId);
+				}
+				break;
+			case 3:
+				ResourceRefModel _r = new ResourceRefModel();
+				_r.setResourceId("R" + random.nextInt(50));
+				provider.addResourceRef(TestServiceProvider.newRequest(), compId, _projId, _r);
+				break;
+			case 4:
+				List<ResourceRefModel> _refs = provider.listResourceRefs(compId, _projId, null, null, 0, 10);
+				if (! _refs.isEmpty()) {
+					provider.removeResourceRef(compId, _projId, _refs.get(0).getId());
+				}
+				break;
+			case 5:
+				ProjectModel _current = provider.readProject(compId, _projId);
+				ProjectModel _p = newProject("U" + random.nextInt(1000));
+				_p.setCreatedAt(_current.getCreatedAt());
+				_p.setCreatedBy(_current.getCreatedBy());
+				provider.updateProject(TestServiceProvider.newRequest(), compId, _projId, _p);
+				break;
+			case 6:
+				// the top-level projects are not moved; a move into the own subtree is rejected
+				if (_index >= TOP_PROJECTS) {
+					String _newParentId = random.nextInt(10) == 0 ? null : projIds.get(random.nextInt(projIds.size()));
+					try {
+						provider.moveProject(TestServiceProvider.newRequest(), compId, _projId, _newParentId,
+								FileServiceProvider.ANY_VERSION);
+					} catch (ValidationException _ex) {
+						// a cycle
+					}
+				}
+				break;
+			case 7:
+				provider.listProjects(compId, null, null, 0, 50);
+				provider.listSubprojects(compId, _projId, null, null, 0, 50);
+				if (otherCompId != null) {
+					provider.readAsTree(otherCompId);
+				}
+				break;
+			default:
+				countNodes(provider.readAsTree(compId));
+				break;
+			}
+		} catch (NotFoundException _ex) {
+			// the project (or its ancestor, or the resourceRef) was removed by another thread
+			if (_index >= TOP_PROJECTS && ! FileServiceProvider.projectIndex.containsKey(_projId)) {
+				projIds.remove(_projId);
+			}
+		}
+	}
+
+	/**
+	 * The projects reachable from the company, the project index and the back-pointers must agree,
+	 * and the cached tree must equal a freshly built one.
+	 */
+	private void verifyConsistency() {
+		// loads the company if it was evicted
+		provider.readAsTree(compId);
+		WttCompany _company = FileServiceProvider.companyIndex.get(compId);
+		int _reachable = verifySubtree(_company.getProjects(), null);
+		int _indexed = 0;
+		for (WttProject _p : FileServiceProvider.projectIndex.values()) {
+			if (compId.equals(_p.getCompanyId())) {
+				_indexed++;
+			}
+		}
+		assertEquals("indexed projects", _reachable, _indexed);
+		ProjectTreeNodeModel _cached = provider.readAsTree(compId);
+		ProjectTreeNodeModel _built = provider.readAsTree(compId, null, Integer.MAX_VALUE, true);
+		assertEquals(TestServiceProvider.describe(_built), TestServiceProvider.describe(_cached));
+		assertEquals(_reachable + 1, countNodes(_cached));
+	}
+
+	private int verifySubtree(
+			List<WttProject> projects,
+			String parentId) {
+		int _count = 0;
+		for (WttProject _p : projects) {
+			String _id = _p.getModel().getId();
+			assertSame("indexed project " + _id, _p, FileServiceProvider.projectIndex.get(_id));
+			assertEquals("parent of " + _id, parentId, _p.getParentId());
+			for (ResourceRefModel _r : _p.getResources()) {
+				WttResourceRef _ref = FileServiceProvider.resourceIndex.get(_r.getId());
+				assertNotNull("indexed resourceRef " + _r.getId(), _ref);
+				assertSame(_p, _ref.getProject());
+			}
+			_count += 1 + verifySubtree(_p.getProjects(), _id);
+		}
+		return _count;
+	}
+
+	private static int countNodes(
+			ProjectTreeNodeModel node) {
+		int _count = 1;
+		for (ProjectTreeNodeModel _child : node.getProjects()) {
+			_count += countNodes(_child);
+		}
+		return _count;
+	}
+
+	private static ProjectModel newProject(
+			String title) {
+		ProjectModel _p = new ProjectModel();
+		_p.setTitle(title);
+		return _p;
+	}
+}
@@ -0,0 +1,124 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opentdc.service.exception.NotFoundException;
+import org.opentdc.wtt.CompanyModel;
+import org.opentdc.wtt.ProjectModel;
+import org.opentdc.wtt.ResourceRefModel;
+
+/**
+ * Deletes several projects at once, including projects whose ancestors are deleted as well.
+ */
+public class DeleteProjectsTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Map<String, String> parameters = new HashMap<String, String>();
+	private FileServiceProvider provider;
+	private String compId;
+	// A(B(C with a resourceRef)) D
+	private String a;
+	private String b;
+	private String c;
+	private String d;
+
+	@Before
+	public void setUp() throws Exception {
+		parameters.put("wtt.persistenceMode", "journal");
+		provider = TestServiceProvider.create(folder.getRoot(), true, parameters);
+		CompanyModel _c = new CompanyModel();
+		_c.setTitle("Delete");
+		_c.setOrgId("org");
+		compId = provider.createCompany(TestServiceProvider.newRequest(), _c).getId();
+		a = provider.createProject(TestServiceProvider.newRequest(), compId, newProject("A")).getId();
+		b = provider.createSubproject(TestServiceProvider.newRequest(), compId, a, newProject("B")).getId();
+		c = provider.createSubproject(TestServiceProvider.newRequest(), compId, b, newProject("C")).getId();
+		d = provider.createProject(TestServiceProvider.newRequest(), compId, newProject("D")).getId();
+		ResourceRefModel _r = new ResourceRefModel();
+		_r.setResourceId("R");
+		provider.addResourceRef(TestServiceProvider.newRequest(), compId, c, _r);
+	}
+
+	@After
+	public void tearDown() {
+		TestServiceProvider.reset();
+	}
+
+	@Test
+	public void deleteProjectWithItsGrandchild() throws Exception {
+		provider.deleteProjects(compId, Arrays.asList(a, c));
+		assertRemaining();
+	}
+
+	@Test
+	public void deleteGrandchildWithItsAncestor() throws Exception {
+		provider.deleteProjects(compId, Arrays.asList(c, a));
+		assertRemaining();
+	}
+
+	@Test
+	public void deleteNothingIfAProjectIsMissing() throws Exception {
+		try {
+			provider.deleteProjects(compId, Arrays.asList(c, "missing"));
+			fail("deleted a missing project");
+		} catch (NotFoundException _ex) {
+			// expected
+		}
+		assertEquals(4, FileServiceProvider.getProjectCount());
+		assertEquals(1, FileServiceProvider.getResourceRefCount());
+	}
+
+	/**
+	 * Only D must remain, also after a restart.
+	 */
+	private void assertRemaining() throws Exception {
+		for (int i = 0; i < 2; i++) {
+			assertEquals(1, FileServiceProvider.getProjectCount());
+			assertEquals(0, FileServiceProvider.getResourceRefCount());
+			assertEquals(d, provider.listProjects(compId, null, null, 0, 10).get(0).getId());
+			assertEquals(compId + "[][" + d + "[][]]", TestServiceProvider.describe(provider.readAsTree(compId)));
+			provider = TestServiceProvider.create(folder.getRoot(), true, parameters);
+		}
+	}
+
+	private static ProjectModel newProject(
+			String title) {
+		ProjectModel _p = new ProjectModel();
+		_p.setTitle(title);
+		return _p;
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opentdc.service.exception.ValidationException;
+import org.opentdc.wtt.CompanyModel;
+import org.opentdc.wtt.ProjectModel;
+import org.opentdc.wtt.ProjectTreeNodeModel;
+import org.opentdc.wtt.ResourceRefModel;
+
+/**
+ * Moves project subtrees within a company: the subtree keeps its ids and resourceRefs, a move into the
+ * own subtree is rejected, and the moves are replayed from the journal after a restart.
+ */
+public class MoveProjectTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final Map<String, String> parameters = new HashMap<String, String>();
+	private FileServiceProvider provider;
+	private String compId;
+	// A(A1(A11 with a resourceRef)) B
+	private String a;
+	private String a1;
+	private String a11;
+	private String b;
+
+	@Before
+	public void setUp() throws Exception {
+		parameters.put("wtt.persistenceMode", "journal");
+		provider = TestServiceProvider.create(folder.getRoot(), true, parameters);
+		CompanyModel _c = new CompanyModel();
+		_c.setTitle("Move");
+		_c.setOrgId("org");
+		compId = provider.createCompany(TestServiceProvider.newRequest(), _c).getId();
+		a = provider.createProject(TestServiceProvider.newRequest(), compId, newProject("A")).getId();
+		a1 = provider.createSubproject(TestServiceProvider.newRequest(), compId, a, newProject("A1")).getId();
+		a11 = provider.createSubproject(TestServiceProvider.newRequest(), compId, a1, newProject("A11")).getId();
+		b = provider.createProject(TestServiceProvider.newRequest(), compId, newProject("B")).getId();
+		ResourceRefModel _r = new ResourceRefModel();
+		_r.setResourceId("R");
+		provider.addResourceRef(TestServiceProvider.newRequest(), compId, a11, _r);
+	}
+
+	@After
+	public void tearDown() {
+		TestServiceProvider.reset();
+	}
+
+	@Test
+	public void moveSubtreeToAnotherParent() throws Exception {
+		String _before = describe(a1);
+		long _version = provider.getProjectVersion(compId, a1);
+		provider.moveProject(TestServiceProvider.newRequest(), compId, a1, b, _version);
+		assertEquals(_version + 1, provider.getProjectVersion(compId, a1));
+		assertEquals(_before, describe(a1));
+		assertEquals(0, provider.listSubprojects(compId, a, null, null, 0, 10).size());
+		assertEquals(a1, provider.listSubprojects(compId, b, null, null, 0, 10).get(0).getId());
+		assertEquals(2, provider.listAncestors(compId, a11).size());
+		assertEquals(b, provider.listAncestors(compId, a11).get(0).getId());
+		assertEquals(describe(null), TestServiceProvider.describe(provider.readAsTree(compId, null, Integer.MAX_VALUE, true)));
+	}
+
+	@Test
+	public void promoteToTopLevelProject() throws Exception {
+		provider.moveProject(TestServiceProvider.newRequest(), compId, a11, null, FileServiceProvider.ANY_VERSION);
+		assertEquals(3, provider.listProjects(compId, null, null, 0, 10).size());
+		assertEquals(0, provider.listAncestors(compId, a11).size());
+		assertEquals(0, provider.listSubprojects(compId, a1, null, null, 0, 10).size());
+	}
+
+	@Test
+	public void rejectMoveIntoOwnSubtree() throws Exception {
+		String _before = describe(null);
+		for (String _newParentId : new String[] { a, a1, a11 }) {
+			try {
+				provider.moveProject(TestServiceProvider.newRequest(), compId, a, _newParentId,
+						FileServiceProvider.ANY_VERSION);
+				fail("moved <A> into <" + _newParentId + ">");
+			} catch (ValidationException _ex) {
+				// expected
+			}
+		}
+		assertEquals(_before, describe(null));
+		assertEquals(0, provider.getProjectVersion(compId, a));
+	}
+
+	@Test(expected = ConflictException.class)
+	public void rejectStaleVersion() throws Exception {
+		long _version = provider.getProjectVersion(compId, a1);
+		provider.moveProject(TestServiceProvider.newRequest(), compId, a1, b, _version);
+		provider.moveProject(TestServiceProvider.newRequest(), compId, a1, a, _version);
+	}
+
+	@Test
+	public void replayMovesAfterRestart() throws Exception {
+		provider.moveProject(TestServiceProvider.newRequest(), compId, a1, b, FileServiceProvider.ANY_VERSION);
+		provider.moveProject(TestServiceProvider.newRequest(), compId, a11, null, FileServiceProvider.ANY_VERSION);
+		String _before = describe(null);
+		provider = TestServiceProvider.create(folder.getRoot(), true, parameters);
+		assertEquals(_before, describe(null));
+		assertEquals(b, provider.listAncestors(compId, a1).get(0).getId());
+	}
+
+	@Test
+	public void replayMoveIntoDeletedParent() throws Exception {
+		provider.moveProject(TestServiceProvider.newRequest(), compId, a1, b, FileServiceProvider.ANY_VERSION);
+		provider.deleteProject(compId, b);
+		String _before = describe(null);
+		provider = TestServiceProvider.create(folder.getRoot(), true, parameters);
+		assertEquals(_before, describe(null));
+		assertEquals(1, FileServiceProvider.getProjectCount());
+		assertEquals(0, FileServiceProvider.getResourceRefCount());
+	}
+
+	/**
+	 * @param projId a project, or null for the whole company
+	 * @return the description of the (cached) tree
+	 */
+	private String describe(
+			String projId) {
+		ProjectTreeNodeModel _tree = projId == null ? provider.readAsTree(compId)
+				: provider.readAsTree(compId, projId, -1, true);
+		return TestServiceProvider.describe(_tree);
+	}
+
+	private static ProjectModel newProject(
+			String title) {
+		ProjectModel _p = new ProjectModel();
+		_p.setTitle(title);
+		return _p;
+	}
+}
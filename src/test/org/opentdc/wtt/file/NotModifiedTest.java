@@ -0,0 +1,176 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opentdc.wtt.CompanyModel;
+import org.opentdc.wtt.ProjectModel;
+import org.opentdc.wtt.ResourceRefModel;
+
+/**
+ * Conditional reads with the version stamp of a company: they fail with NotModifiedException as long as
+ * neither the company nor any of its projects, subprojects or resourceRefs changed.
+ */
+public class NotModifiedTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileServiceProvider provider;
+	private String compId;
+	private String otherCompId;
+	private String projId;
+	private String subprojId;
+
+	@Before
+	public void setUp() throws Exception {
+		provider = TestServiceProvider.create(folder.getRoot(), false, new HashMap<String, String>());
+		compId = createCompany("Stamped");
+		otherCompId = createCompany("Other");
+		projId = provider.createProject(TestServiceProvider.newRequest(), compId, newProject("P")).getId();
+		subprojId = provider.createSubproject(TestServiceProvider.newRequest(), compId, projId,
+				newProject("S")).getId();
+	}
+
+	@After
+	public void tearDown() {
+		TestServiceProvider.reset();
+	}
+
+	@Test
+	public void unchangedCompanyIsNotModified() throws Exception {
+		long _stamp = provider.getCompanyStamp(compId);
+		assertNotModified(_stamp);
+		// reads and mutations of other companies do not change the stamp
+		provider.readAsTree(compId, null, -1, true);
+		provider.updateCompany(TestServiceProvider.newRequest(), otherCompId, companyUpdate(otherCompId, "changed"));
+		provider.createProject(TestServiceProvider.newRequest(), otherCompId, newProject("Q"));
+		assertEquals(_stamp, provider.getCompanyStamp(compId));
+		assertNotModified(_stamp);
+		// unconditional reads
+		assertNotNull(provider.readAsTree(compId, null, -1, true, -1));
+		assertNotNull(provider.listProjects(compId, null, null, 0, 10, -1));
+	}
+
+	@Test
+	public void companyUpdateIsModified() throws Exception {
+		long _stamp = provider.getCompanyStamp(compId);
+		provider.updateCompany(TestServiceProvider.newRequest(), compId, companyUpdate(compId, "changed"));
+		assertModified(_stamp);
+	}
+
+	@Test
+	public void subprojectUpdateIsModified() throws Exception {
+		long _stamp = provider.getCompanyStamp(compId);
+		ProjectModel _s = provider.readSubproject(compId, projId, subprojId);
+		_s.setTitle("changed");
+		provider.updateSubproject(TestServiceProvider.newRequest(), compId, projId, subprojId, _s);
+		assertModified(_stamp);
+
+		_stamp = provider.getCompanyStamp(compId);
+		provider.createSubproject(TestServiceProvider.newRequest(), compId, subprojId, newProject("T"));
+		assertModified(_stamp);
+	}
+
+	@Test
+	public void resourceRefMutationsAreModified() throws Exception {
+		long _stamp = provider.getCompanyStamp(compId);
+		ResourceRefModel _r = new ResourceRefModel();
+		_r.setResourceId("A");
+		String _resourceRefId = provider.addResourceRef(TestServiceProvider.newRequest(), compId, subprojId, _r)
+				.getId();
+		assertModified(_stamp);
+
+		_stamp = provider.getCompanyStamp(compId);
+		assertEquals(1, provider.renameResource("A", "Resource Z"));
+		assertModified(_stamp);
+
+		_stamp = provider.getCompanyStamp(compId);
+		provider.removeResourceRef(compId, subprojId, _resourceRefId);
+		assertModified(_stamp);
+	}
+
+	private void assertNotModified(
+			long stamp) {
+		try {
+			provider.readAsTree(compId, null, -1, true, stamp);
+			fail("readAsTree() returned an unchanged company");
+		} catch (NotModifiedException _ex) {
+			// expected
+		}
+		try {
+			provider.listProjects(compId, null, null, 0, 10, stamp);
+			fail("listProjects() returned an unchanged company");
+		} catch (NotModifiedException _ex) {
+			// expected
+		}
+	}
+
+	private void assertModified(
+			long stamp) {
+		long _stamp = provider.getCompanyStamp(compId);
+		assertTrue(_stamp > stamp);
+		assertNotNull(provider.readAsTree(compId, null, -1, true, stamp));
+		assertNotNull(provider.listProjects(compId, null, null, 0, 10, stamp));
+		assertNotModified(_stamp);
+	}
+
+	private String createCompany(
+			String title) {
+		CompanyModel _c = new CompanyModel();
+		_c.setTitle(title);
+		_c.setOrgId("org");
+		return provider.createCompany(TestServiceProvider.newRequest(), _c).getId();
+	}
+
+	private CompanyModel companyUpdate(
+			String id,
+			String description) {
+		CompanyModel _current = provider.readCompany(id);
+		CompanyModel _c = new CompanyModel();
+		_c.setTitle(_current.getTitle());
+		_c.setDescription(description);
+		_c.setOrgId(_current.getOrgId());
+		_c.setCreatedAt(_current.getCreatedAt());
+		_c.setCreatedBy(_current.getCreatedBy());
+		return _c;
+	}
+
+	private static ProjectModel newProject(
+			String title) {
+		ProjectModel _p = new ProjectModel();
+		_p.setTitle(title);
+		return _p;
+	}
+}
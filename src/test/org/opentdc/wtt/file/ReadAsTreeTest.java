@@ -0,0 +1,214 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opentdc.wtt.CompanyModel;
+import org.opentdc.wtt.ProjectModel;
+import org.opentdc.wtt.ProjectTreeNodeModel;
+import org.opentdc.wtt.ResourceRefModel;
+
+/**
+ * The cached trees of a company and its projects share their subtrees;
+ * readAsTree() returns them without copying, and they can not be modified.
+ */
+public class ReadAsTreeTest {
+	private static final int DEPTH = 5000;
+	private static final long STACK_SIZE = 256 * 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileServiceProvider provider;
+	private String compId;
+	private String projId;
+
+	@Before
+	public void setUp() throws Exception {
+		provider = TestServiceProvider.create(folder.getRoot(), false, new HashMap<String, String>());
+		CompanyModel _c = new CompanyModel();
+		_c.setTitle("Tree");
+		_c.setOrgId("org");
+		compId = provider.createCompany(TestServiceProvider.newRequest(), _c).getId();
+		projId = provider.createProject(TestServiceProvider.newRequest(), compId, newProject("A")).getId();
+		String _subprojId = provider.createSubproject(TestServiceProvider.newRequest(), compId, projId,
+				newProject("A1")).getId();
+		ResourceRefModel _r = new ResourceRefModel();
+		_r.setResourceId("R");
+		provider.addResourceRef(TestServiceProvider.newRequest(), compId, _subprojId, _r);
+	}
+
+	@After
+	public void tearDown() {
+		TestServiceProvider.reset();
+	}
+
+	/**
+	 * A cache hit returns the cached tree itself; the tree is not rebuilt.
+	 */
+	@Test
+	public void cacheHitReturnsSharedTree() throws Exception {
+		ProjectTreeNodeModel _tree = provider.readAsTree(compId);
+		ProjectTreeNodeModel _subtree = provider.readAsTree(compId, projId, -1, true);
+		long _hits = FileServiceProvider.getTreeCacheHits();
+		long _misses = FileServiceProvider.getTreeCacheMisses();
+
+		assertSame(_tree, provider.readAsTree(compId));
+		assertSame(_subtree, provider.readAsTree(compId, projId, -1, true));
+		assertSame(_subtree, _tree.getProjects().get(0));
+		assertEquals(_hits + 2, FileServiceProvider.getTreeCacheHits());
+		assertEquals(_misses, FileServiceProvider.getTreeCacheMisses());
+	}
+
+	@Test
+	public void cachedTreeIsReadOnly() throws Exception {
+		String _company = TestServiceProvider.describe(provider.readAsTree(compId));
+		final ProjectTreeNodeModel _tree = provider.readAsTree(compId);
+		final ProjectTreeNodeModel _a1 = _tree.getProjects().get(0).getProjects().get(0);
+
+		assertUnsupported(new Runnable() { public void run() { _tree.setTitle("changed"); } });
+		assertUnsupported(new Runnable() { public void run() { _tree.setProjects(new ArrayList<ProjectTreeNodeModel>()); } });
+		assertUnsupported(new Runnable() { public void run() { _tree.addProject(new ProjectTreeNodeModel()); } });
+		assertUnsupported(new Runnable() { public void run() { _tree.getProjects().clear(); } });
+		assertUnsupported(new Runnable() { public void run() { _tree.getProjects().set(0, null); } });
+		assertUnsupported(new Runnable() { public void run() { _tree.getProjects().subList(0, 1).clear(); } });
+		assertUnsupported(new Runnable() {
+			public void run() {
+				Iterator<ProjectTreeNodeModel> _it = _tree.getProjects().iterator();
+				_it.next();
+				_it.remove();
+			}
+		});
+		assertUnsupported(new Runnable() { public void run() { _a1.addResource("X"); } });
+		assertUnsupported(new Runnable() { public void run() { _a1.getResources().remove(0); } });
+		assertUnsupported(new Runnable() { public void run() { _a1.getResources().addAll(Arrays.asList("X")); } });
+
+		assertEquals(_company, TestServiceProvider.describe(provider.readAsTree(compId)));
+		assertEquals("A", provider.readAsTree(compId).getProjects().get(0).getTitle());
+	}
+
+	/**
+	 * A change replaces the cached trees along its path; trees returned before are not affected.
+	 */
+	@Test
+	public void changeReplacesCachedTree() throws Exception {
+		ProjectTreeNodeModel _tree = provider.readAsTree(compId);
+		String _before = TestServiceProvider.describe(_tree);
+		String _sibling = provider.createProject(TestServiceProvider.newRequest(), compId, newProject("B")).getId();
+
+		ProjectTreeNodeModel _changed = provider.readAsTree(compId);
+		assertNotSame(_tree, _changed);
+		assertEquals(_before, TestServiceProvider.describe(_tree));
+		assertEquals(2, _changed.getProjects().size());
+		// the unchanged subtree of A is reused
+		assertSame(_tree.getProjects().get(0), _changed.getProjects().get(0));
+		assertEquals(_sibling, _changed.getProjects().get(1).getId());
+	}
+
+	/**
+	 * Trees that are limited in depth or omit the resourceRefs are not cached and belong to the caller.
+	 */
+	@Test
+	public void partialTreeIsModifiable() throws Exception {
+		ProjectTreeNodeModel _tree = provider.readAsTree(compId, null, 1, true);
+		assertTrue(_tree.getProjects().get(0).getProjects().isEmpty());
+		_tree.getProjects().clear();
+		_tree.setTitle("changed");
+		assertEquals(1, provider.readAsTree(compId, null, 1, true).getProjects().size());
+		assertEquals(1, provider.readAsTree(compId, null, -1, false).getProjects().size());
+	}
+
+	/**
+	 * The trees are built without recursion, i.e. also on a thread with a small stack.
+	 */
+	@Test
+	public void readDeepTree() throws Exception {
+		String _parentId = projId;
+		for (int i = 0; i < DEPTH; i++) {
+			_parentId = provider.createSubproject(TestServiceProvider.newRequest(), compId, _parentId,
+					newProject("L" + i)).getId();
+		}
+		final List<ProjectTreeNodeModel> _trees = new ArrayList<ProjectTreeNodeModel>();
+		final List<Throwable> _failures = new ArrayList<Throwable>();
+		Thread _reader = new Thread(null, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// built and cached, then read from the cache
+					_trees.add(provider.readAsTree(compId));
+					_trees.add(provider.readAsTree(compId));
+				} catch (Throwable _ex) {
+					_failures.add(_ex);
+				}
+			}
+		}, "reader", STACK_SIZE);
+		_reader.start();
+		_reader.join();
+		if (! _failures.isEmpty()) {
+			throw new AssertionError("readAsTree failed: " + _failures.get(0), _failures.get(0));
+		}
+		for (ProjectTreeNodeModel _tree : _trees) {
+			ProjectTreeNodeModel _node = _tree;
+			int _depth = 0;
+			while (! _node.getProjects().isEmpty()) {
+				_node = _node.getProjects().get(_node.getProjects().size() - 1);
+				_depth++;
+			}
+			assertEquals(DEPTH + 1, _depth);
+		}
+	}
+
+	private static void assertUnsupported(
+			Runnable modification) {
+		try {
+			modification.run();
+			fail("a cached tree was modified");
+		} catch (UnsupportedOperationException _ex) {
+			// expected
+		}
+	}
+
+	private static ProjectModel newProject(
+			String title) {
+		ProjectModel _p = new ProjectModel();
+		_p.setTitle(title);
+		return _p;
+	}
+}
@@ -0,0 +1,133 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opentdc.wtt.CompanyModel;
+import org.opentdc.wtt.ProjectModel;
+import org.opentdc.wtt.ResourceRefModel;
+
+/**
+ * Renaming a resource replaces its resourceRefs by renamed copies at their new sorted positions,
+ * so that the paged lists stay sorted and the sorted lists can still be searched.
+ */
+public class RenameResourceTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private HashMap<String, String> parameters;
+	private FileServiceProvider provider;
+	private String compId;
+	private String projId;
+
+	@Before
+	public void setUp() throws Exception {
+		parameters = new HashMap<String, String>();
+		parameters.put("wtt.persistenceMode", "journal");
+		provider = TestServiceProvider.create(folder.getRoot(), true, parameters);
+		CompanyModel _c = new CompanyModel();
+		_c.setTitle("Rename");
+		_c.setOrgId("org");
+		compId = provider.createCompany(TestServiceProvider.newRequest(), _c).getId();
+		ProjectModel _p = new ProjectModel();
+		_p.setTitle("P");
+		projId = provider.createProject(TestServiceProvider.newRequest(), compId, _p).getId();
+		for (String _resourceId : new String[] { "A", "B", "C", "D" }) {
+			addResourceRef(_resourceId);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		TestServiceProvider.reset();
+	}
+
+	@Test
+	public void renameRepositionsResourceRefs() throws Exception {
+		List<ResourceRefModel> _before = provider.listResourceRefs(compId, projId, null, null, 0, 10);
+		assertEquals("[Resource A, Resource B, Resource C, Resource D]", names(_before));
+
+		assertEquals(1, provider.renameResource("D", "Resource 0"));
+		assertEquals("[Resource 0, Resource A, Resource B, Resource C]", names(listResourceRefs()));
+		assertEquals("[Resource 0, Resource A]", names(provider.listResourceRefs(compId, projId, null, null, 0, 2)));
+		// the models returned before are not modified
+		assertEquals("Resource D", _before.get(3).getResourceName());
+		assertEquals("[Resource 0]", names(provider.listResourceRefsByResource("D")));
+	}
+
+	/**
+	 * The resourceRefs can still be found, added and removed after a rename.
+	 */
+	@Test
+	public void mutationsAfterRename() throws Exception {
+		provider.renameResource("A", "Resource X");
+		provider.renameResource("C", "Resource 0");
+		ResourceRefModel _x = provider.listResourceRefsByResource("A").get(0);
+		provider.removeResourceRef(compId, projId, _x.getId());
+		addResourceRef("E");
+		assertEquals("[Resource 0, Resource B, Resource D, Resource E]", names(listResourceRefs()));
+		String _id = provider.listResourceRefsByResource("C").get(0).getId();
+		provider.removeResourceRef(compId, projId, _id);
+		assertEquals("[Resource B, Resource D, Resource E]", names(listResourceRefs()));
+	}
+
+	@Test
+	public void renameIsReplayed() throws Exception {
+		provider.renameResource("D", "Resource 0");
+		provider = TestServiceProvider.create(folder.getRoot(), true, parameters);
+		assertEquals("[Resource 0, Resource A, Resource B, Resource C]", names(listResourceRefs()));
+		assertEquals(1, provider.renameResource("B", "Resource Z"));
+		assertEquals("[Resource 0, Resource A, Resource C, Resource Z]", names(listResourceRefs()));
+	}
+
+	private void addResourceRef(
+			String resourceId) throws Exception {
+		ResourceRefModel _r = new ResourceRefModel();
+		_r.setResourceId(resourceId);
+		provider.addResourceRef(TestServiceProvider.newRequest(), compId, projId, _r);
+	}
+
+	private List<ResourceRefModel> listResourceRefs() {
+		return provider.listResourceRefs(compId, projId, null, null, 0, 10);
+	}
+
+	private static String names(
+			List<ResourceRefModel> resourceRefs) {
+		List<String> _names = new ArrayList<String>();
+		for (ResourceRefModel _r : resourceRefs) {
+			_names.add(_r.getResourceName());
+		}
+		return _names.toString();
+	}
+}
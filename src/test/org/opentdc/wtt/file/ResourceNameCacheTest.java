@@ -0,0 +1,76 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Hits, expiry and eviction of the resource name cache.
+ */
+public class ResourceNameCacheTest {
+	private final AtomicInteger loads = new AtomicInteger();
+	private final ResourceNameCache.Loader loader = new ResourceNameCache.Loader() {
+		@Override
+		public String load(String resourceId) {
+			loads.incrementAndGet();
+			return "Resource " + resourceId;
+		}
+	};
+
+	@Test
+	public void cacheNamesWithoutExpiry() {
+		ResourceNameCache _cache = new ResourceNameCache(loader, 10, Long.MAX_VALUE);
+		assertEquals("Resource r", _cache.get("r"));
+		assertEquals("Resource r", _cache.get("r"));
+		assertEquals(1, loads.get());
+		assertEquals(1, _cache.getHits());
+	}
+
+	@Test
+	public void reloadExpiredNames() throws Exception {
+		ResourceNameCache _cache = new ResourceNameCache(loader, 10, 1);
+		_cache.get("r");
+		Thread.sleep(5);
+		_cache.get("r");
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void evictLeastRecentlyUsedName() {
+		ResourceNameCache _cache = new ResourceNameCache(loader, 2, Long.MAX_VALUE);
+		_cache.get("a");
+		_cache.get("b");
+		_cache.get("a");
+		_cache.get("c");		// evicts b
+		assertEquals(2, _cache.size());
+		assertEquals(1, _cache.getEvictions());
+		_cache.get("a");
+		_cache.get("b");
+		assertEquals(4, loads.get());
+	}
+}
@@ -0,0 +1,308 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opentdc.wtt.CompanyModel;
+import org.opentdc.wtt.ProjectModel;
+import org.opentdc.wtt.ResourceRefModel;
+
+/**
+ * Splits a data file into one shard per company, evicts and reloads companies and writes the shards
+ * of several companies concurrently; the data read after a restart must equal the data in memory.
+ */
+public class ShardedSnapshotTest {
+	private static final int COMPANIES = 4;
+	private static final int UPDATES = 200;		// per thread
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileServiceProvider provider;
+	private final List<String> compIds = new ArrayList<String>();
+
+	@After
+	public void tearDown() {
+		TestServiceProvider.reset();
+	}
+
+	@Test
+	public void dataFileIsSplitIntoShards() throws Exception {
+		provider = TestServiceProvider.create(folder.getRoot(), true, new HashMap<String, String>());
+		createCompanies();
+		Map<String, String> _before = describeCompanies();
+		assertFalse(shardDirectory().exists());
+
+		provider = TestServiceProvider.create(folder.getRoot(), true, shardedParameters(0));
+		assertEquals(COMPANIES, shardDirectory().listFiles().length);
+		assertEquals(_before, describeCompanies());
+
+		// read from the shards
+		provider = TestServiceProvider.create(folder.getRoot(), true, shardedParameters(0));
+		assertEquals(_before, describeCompanies());
+	}
+
+	@Test
+	public void evictedCompaniesAreReloaded() throws Exception {
+		provider = TestServiceProvider.create(folder.getRoot(), true, shardedParameters(1));
+		createCompanies();
+		// reading a company loads it and evicts the others
+		Map<String, String> _before = describeCompanies();
+		assertTrue(FileServiceProvider.getCompanyEvictions() > 0);
+		assertTrue(FileServiceProvider.getResidentCompanyCount() <= 1);
+		assertEquals(_before, describeCompanies());
+
+		// a change of an evicted company loads it first
+		provider.createProject(TestServiceProvider.newRequest(), compIds.get(0), newProject("Late"));
+		String _projId = provider.listProjects(compIds.get(1), null, null, 0, 1).get(0).getId();
+		ResourceRefModel _r = new ResourceRefModel();
+		_r.setResourceId("late");
+		provider.addResourceRef(TestServiceProvider.newRequest(), compIds.get(1), _projId, _r);
+		Map<String, String> _after = describeCompanies();
+		assertEquals(COMPANIES - 2, countUnchanged(_before, _after));
+
+		provider = TestServiceProvider.create(folder.getRoot(), true, shardedParameters(1));
+		assertEquals(_after, describeCompanies());
+	}
+
+	/**
+	 * The projects and resourceRefs of the evicted companies leave the indexes; for the evicted companies,
+	 * only the company directory and the id indexes next to their shards remain.
+	 */
+	@Test
+	public void evictionReleasesIndexes() throws Exception {
+		provider = TestServiceProvider.create(folder.getRoot(), true, shardedParameters(1));
+		createCompanies();
+		String _residentId = compIds.get(COMPANIES - 1);
+		provider.readAsTree(_residentId);
+
+		assertEquals(1, FileServiceProvider.getResidentCompanyCount());
+		assertEquals(COMPANIES - 1, FileServiceProvider.residentCompanies.getUnloadedCount());
+		assertEquals(6, FileServiceProvider.projectIndex.size());
+		for (WttProject _p : FileServiceProvider.projectIndex.values()) {
+			assertEquals(_residentId, _p.getCompanyId());
+		}
+		assertEquals(3, FileServiceProvider.resourceIndex.size());
+		for (WttResourceRef _ref : FileServiceProvider.resourceIndex.values()) {
+			assertEquals(_residentId, _ref.getProject().getCompanyId());
+		}
+		for (Set<WttResourceRef> _refs : FileServiceProvider.resourceRefsByResource.values()) {
+			assertEquals(1, _refs.size());
+		}
+		for (String _compId : compIds.subList(0, COMPANIES - 1)) {
+			assertTrue(new File(shardDirectory(), _compId + ".ids").exists());
+		}
+	}
+
+	/**
+	 * A project or resource of an evicted company is found by the id index of its shard;
+	 * a missing id index is derived from the shard again.
+	 */
+	@Test
+	public void lookupsLoadEvictedCompanies() throws Exception {
+		provider = TestServiceProvider.create(folder.getRoot(), true, shardedParameters(1));
+		createCompanies();
+		ProjectModel _project = provider.listProjects(compIds.get(0), null, null, 0, 1).get(0);
+		Map<String, String> _before = describeCompanies();
+		assertFalse(FileServiceProvider.projectIndex.containsKey(_project.getId()));
+
+		assertEquals(_project.getTitle(), FileServiceProvider.getProject(_project.getId()).getTitle());
+		assertEquals(COMPANIES, provider.listResourceRefsByResource("R1").size());
+		assertEquals(COMPANIES, provider.renameResource("R2", "Renamed"));
+
+		provider = TestServiceProvider.create(folder.getRoot(), true, shardedParameters(1));
+		for (File _file : shardDirectory().listFiles()) {
+			if (_file.getName().endsWith(".ids")) {
+				assertTrue(_file.delete());
+			}
+		}
+		assertEquals(_project.getTitle(), FileServiceProvider.getProject(_project.getId()).getTitle());
+		assertEquals(COMPANIES, provider.listResourceRefsByResource("R1").size());
+		for (ResourceRefModel _r : provider.listResourceRefsByResource("R2")) {
+			assertEquals("Renamed", _r.getResourceName());
+		}
+		assertEquals(_before, describeCompanies());
+	}
+
+	/**
+	 * At most MAX_CACHED_ID_INDEXES id indexes of evicted companies are kept in memory.
+	 */
+	@Test
+	public void idIndexCacheIsBounded() throws Exception {
+		provider = TestServiceProvider.create(folder.getRoot(), true, shardedParameters(1));
+		List<String> _projIds = new ArrayList<String>();
+		for (int i = 0; i < ResidentCompanies.MAX_CACHED_ID_INDEXES + 10; i++) {
+			CompanyModel _c = new CompanyModel();
+			_c.setTitle("C" + i);
+			_c.setOrgId("org");
+			String _compId = provider.createCompany(TestServiceProvider.newRequest(), _c).getId();
+			_projIds.add(provider.createProject(TestServiceProvider.newRequest(), _compId, newProject("P" + i)).getId());
+		}
+		for (String _projId : _projIds) {
+			assertEquals(_projId, FileServiceProvider.getProject(_projId).getId());
+			assertTrue(FileServiceProvider.residentCompanies.getCachedIdIndexCount()
+					<= ResidentCompanies.MAX_CACHED_ID_INDEXES);
+		}
+		assertEquals(0, provider.listResourceRefsByResource("none").size());
+		assertTrue(FileServiceProvider.residentCompanies.getCachedIdIndexCount()
+				<= ResidentCompanies.MAX_CACHED_ID_INDEXES);
+	}
+
+	/**
+	 * Each thread updates one company and creates projects in another one, so that the shards of
+	 * several companies are written (and evicted) concurrently; this must neither deadlock nor lose changes.
+	 */
+	@Test(timeout = 60000)
+	public void concurrentChangesOfShardedCompanies() throws Exception {
+		provider = TestServiceProvider.create(folder.getRoot(), true, shardedParameters(2));
+		createCompanies();
+		final ConcurrentLinkedQueue<Throwable> _failures = new ConcurrentLinkedQueue<Throwable>();
+		final CountDownLatch _start = new CountDownLatch(1);
+		List<Thread> _threads = new ArrayList<Thread>();
+		for (int t = 0; t < COMPANIES; t++) {
+			final String _compId = compIds.get(t);
+			final String _otherId = compIds.get((t + 1) % COMPANIES);
+			Thread _thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						_start.await();
+						for (int i = 0; i < UPDATES; i++) {
+							CompanyModel _current = provider.readCompany(_compId);
+							CompanyModel _c = new CompanyModel();
+							_c.setTitle(_current.getTitle());
+							_c.setDescription("update " + i);
+							_c.setOrgId(_current.getOrgId());
+							_c.setCreatedAt(_current.getCreatedAt());
+							_c.setCreatedBy(_current.getCreatedBy());
+							provider.updateCompany(TestServiceProvider.newRequest(), _compId, _c);
+							provider.createProject(TestServiceProvider.newRequest(), _otherId, newProject("N" + i));
+						}
+					} catch (Throwable _ex) {
+						_failures.add(_ex);
+					}
+				}
+			};
+			_threads.add(_thread);
+			_thread.start();
+		}
+		_start.countDown();
+		for (Thread _thread : _threads) {
+			_thread.join();
+		}
+		if (! _failures.isEmpty()) {
+			throw new AssertionError("operation failed: " + _failures.peek(), _failures.peek());
+		}
+		Map<String, String> _before = describeCompanies();
+
+		provider = TestServiceProvider.create(folder.getRoot(), true, shardedParameters(2));
+		assertEquals(_before, describeCompanies());
+		for (String _compId : compIds) {
+			assertEquals("update " + (UPDATES - 1), provider.readCompany(_compId).getDescription());
+		}
+	}
+
+	/**
+	 * Create the companies, each with a few projects, subprojects and resourceRefs.
+	 */
+	private void createCompanies() throws Exception {
+		for (int i = 0; i < COMPANIES; i++) {
+			CompanyModel _c = new CompanyModel();
+			_c.setTitle("C" + i);
+			_c.setOrgId("org");
+			String _compId = provider.createCompany(TestServiceProvider.newRequest(), _c).getId();
+			compIds.add(_compId);
+			for (int j = 0; j < 3; j++) {
+				String _projId = provider.createProject(TestServiceProvider.newRequest(), _compId,
+						newProject("P" + j)).getId();
+				provider.createSubproject(TestServiceProvider.newRequest(), _compId, _projId, newProject("S" + j));
+				ResourceRefModel _r = new ResourceRefModel();
+				_r.setResourceId("R" + j);
+				provider.addResourceRef(TestServiceProvider.newRequest(), _compId, _projId, _r);
+			}
+		}
+	}
+
+	/**
+	 * @return companyId -> description of its tree
+	 */
+	private Map<String, String> describeCompanies() {
+		Map<String, String> _trees = new LinkedHashMap<String, String>();
+		for (String _compId : compIds) {
+			_trees.put(_compId, TestServiceProvider.describe(provider.readAsTree(_compId)));
+		}
+		return _trees;
+	}
+
+	private static int countUnchanged(
+			Map<String, String> before,
+			Map<String, String> after) {
+		int _count = 0;
+		for (Map.Entry<String, String> _entry : before.entrySet()) {
+			if (_entry.getValue().equals(after.get(_entry.getKey()))) {
+				_count++;
+			}
+		}
+		return _count;
+	}
+
+	private File shardDirectory() {
+		return new File(folder.getRoot(), TestServiceProvider.PREFIX + "/companies");
+	}
+
+	private static Map<String, String> shardedParameters(
+			int maxResident) {
+		Map<String, String> _parameters = new HashMap<String, String>();
+		_parameters.put("wtt.snapshot.sharding", "company");
+		if (maxResident > 0) {
+			_parameters.put("wtt.residentCompanies.max", Integer.toString(maxResident));
+			_parameters.put("wtt.residentCompanies.minIdle", "0");
+		}
+		return _parameters;
+	}
+
+	private static ProjectModel newProject(
+			String title) {
+		ProjectModel _p = new ProjectModel();
+		_p.setTitle(title);
+		return _p;
+	}
+}
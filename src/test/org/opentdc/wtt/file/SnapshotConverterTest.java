@@ -0,0 +1,255 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opentdc.wtt.CompanyModel;
+import org.opentdc.wtt.ProjectModel;
+import org.opentdc.wtt.ResourceRefModel;
+
+/**
+ * Conversion between the JSON and the binary snapshot format: nothing is lost in either direction,
+ * and binary snapshots of older versions can still be read and converted.
+ */
+public class SnapshotConverterTest {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Date CREATED = new Date(1420070400000L);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void roundTrip() throws Exception {
+		File _json = folder.newFile("data.json");
+		File _binary = new File(folder.getRoot(), "data.bin");
+		File _copy = new File(folder.getRoot(), "copy.json");
+		new SnapshotWriter(_json, 0, SnapshotWriter.Format.JSON).write(newCompanies());
+
+		assertEquals(2, SnapshotConverter.convert(_json, _binary, SnapshotWriter.Format.BINARY));
+		assertTrue(_binary.length() < _json.length());
+		assertEquals(2, SnapshotConverter.convert(_binary, _copy, SnapshotWriter.Format.JSON));
+		assertEquals(new String(Files.readAllBytes(_json.toPath()), UTF8),
+				new String(Files.readAllBytes(_copy.toPath()), UTF8));
+
+		File _binaryCopy = new File(folder.getRoot(), "copy.bin");
+		SnapshotConverter.convert(_copy, _binaryCopy, SnapshotWriter.Format.BINARY);
+		assertTrue(Arrays.equals(Files.readAllBytes(_binary.toPath()), Files.readAllBytes(_binaryCopy.toPath())));
+
+		List<WttCompany> _companies = read(_binary);
+		assertEquals(7, _companies.get(0).getVersion());
+		WttProject _project = _companies.get(0).getProjects().get(0);
+		assertEquals(3, _project.getVersion());
+		assertEquals(CREATED, _project.getModel().getCreatedAt());
+		assertNull(_project.getModel().getModifiedAt());
+		assertNull(_project.getModel().getDescription());
+		assertEquals("Resource A", _project.getProjects().get(0).getResources().get(0).getResourceName());
+	}
+
+	/**
+	 * A version 1 binary snapshot has no model versions and no end marker.
+	 */
+	@Test
+	public void readVersion1() throws Exception {
+		File _v1 = new File(folder.getRoot(), "v1.bin");
+		writeVersion1(_v1);
+		assertTrue(SnapshotReader.isComplete(_v1));
+
+		List<WttCompany> _companies = read(_v1);
+		assertEquals(1, _companies.size());
+		WttCompany _company = _companies.get(0);
+		assertEquals("c1", _company.getModel().getId());
+		assertEquals("Old", _company.getModel().getTitle());
+		assertNull(_company.getModel().getDescription());
+		assertEquals("org", _company.getModel().getOrgId());
+		assertEquals(CREATED, _company.getModel().getCreatedAt());
+		assertEquals("admin", _company.getModel().getModifiedBy());
+		assertEquals(0, _company.getVersion());
+		WttProject _project = _company.getProjects().get(0);
+		assertEquals("p1", _project.getModel().getId());
+		assertEquals("admin", _project.getModel().getCreatedBy());
+		assertEquals(0, _project.getVersion());
+		ResourceRefModel _r = _project.getResources().get(0);
+		assertEquals("r1", _r.getId());
+		assertEquals("A", _r.getResourceId());
+		assertEquals("Resource A", _r.getResourceName());
+		assertEquals(0, _project.getProjects().size());
+
+		// converted into the current formats
+		File _json = new File(folder.getRoot(), "v1.json");
+		File _binary = new File(folder.getRoot(), "v3.bin");
+		SnapshotConverter.convert(_v1, _json, SnapshotWriter.Format.JSON);
+		SnapshotConverter.convert(_json, _binary, SnapshotWriter.Format.BINARY);
+		assertTrue(SnapshotReader.isComplete(_binary));
+		WttCompany _converted = read(_binary).get(0);
+		assertEquals("Old", _converted.getModel().getTitle());
+		assertEquals("Resource A", _converted.getProjects().get(0).getResources().get(0).getResourceName());
+	}
+
+	private static List<WttCompany> newCompanies() {
+		List<WttCompany> _companies = new ArrayList<WttCompany>();
+		for (int c = 1; c <= 2; c++) {
+			CompanyModel _c = new CompanyModel();
+			_c.setId("c" + c);
+			_c.setTitle("Company " + c);
+			_c.setDescription("d\u00e9j\u00e0 vu " + c);
+			_c.setOrgId("org");
+			_c.setCreatedAt(CREATED);
+			_c.setCreatedBy("admin");
+			_c.setModifiedAt(new Date(CREATED.getTime() + c));
+			_c.setModifiedBy("admin");
+			WttCompany _company = new WttCompany();
+			_company.setModel(_c);
+			_company.setVersion(7);
+			List<WttProject> _projects = new ArrayList<WttProject>();
+			for (int p = 1; p <= 2; p++) {
+				_projects.add(newProject(_c.getId() + "p" + p, 3));
+			}
+			_company.setProjects(_projects);
+			_companies.add(_company);
+		}
+		return _companies;
+	}
+
+	private static WttProject newProject(
+			String id,
+			int depth) {
+		ProjectModel _p = new ProjectModel();
+		_p.setId(id);
+		_p.setTitle("Project " + id);
+		_p.setCreatedAt(CREATED);
+		_p.setCreatedBy("admin");
+		WttProject _project = new WttProject();
+		_project.setModel(_p);
+		_project.setVersion(depth);
+		List<ResourceRefModel> _resources = new ArrayList<ResourceRefModel>();
+		for (String _resourceId : new String[] { "A", "B" }) {
+			ResourceRefModel _r = new ResourceRefModel();
+			_r.setId(id + _resourceId);
+			_r.setResourceId(_resourceId);
+			_r.setResourceName("Resource " + _resourceId);
+			_r.setCreatedAt(CREATED);
+			_r.setCreatedBy("admin");
+			_resources.add(_r);
+		}
+		_project.setResources(_resources);
+		if (depth > 1) {
+			_project.setProjects(Arrays.asList(newProject(id + "s", depth - 1)));
+		}
+		return _project;
+	}
+
+	private static List<WttCompany> read(
+			File file) throws IOException {
+		final List<WttCompany> _companies = new ArrayList<WttCompany>();
+		new SnapshotReader(null).read(file, new SnapshotReader.CompanyHandler() {
+			@Override
+			public void handle(WttCompany company) {
+				_companies.add(company);
+			}
+		});
+		return _companies;
+	}
+
+	/**
+	 * Write a snapshot as BinarySnapshotCodec wrote it in version 1.
+	 */
+	private static void writeVersion1(
+			File file) throws IOException {
+		DataOutputStream _out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			Map<String, Integer> _strings = new HashMap<String, Integer>();
+			_out.writeInt(BinarySnapshotCodec.MAGIC);
+			_out.writeInt(1);
+			_out.writeInt(1);
+			// company
+			writeString(_out, _strings, "c1");
+			writeString(_out, _strings, "Old");
+			writeString(_out, _strings, null);
+			writeString(_out, _strings, "org");
+			_out.writeLong(CREATED.getTime());
+			writeString(_out, _strings, "admin");
+			_out.writeLong(Long.MIN_VALUE);
+			writeString(_out, _strings, "admin");
+			_out.writeInt(1);
+			// project
+			writeString(_out, _strings, "p1");
+			writeString(_out, _strings, "P");
+			writeString(_out, _strings, null);
+			_out.writeLong(CREATED.getTime());
+			writeString(_out, _strings, "admin");
+			_out.writeLong(Long.MIN_VALUE);
+			writeString(_out, _strings, null);
+			_out.writeInt(1);
+			// resourceRef
+			writeString(_out, _strings, "r1");
+			writeString(_out, _strings, "A");
+			writeString(_out, _strings, "Resource A");
+			_out.writeLong(CREATED.getTime());
+			writeString(_out, _strings, "admin");
+			_out.writeLong(Long.MIN_VALUE);
+			writeString(_out, _strings, null);
+			// subprojects
+			_out.writeInt(0);
+		} finally {
+			_out.close();
+		}
+	}
+
+	private static void writeString(
+			DataOutputStream out,
+			Map<String, Integer> strings,
+			String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+		} else if (strings.containsKey(s)) {
+			out.writeInt(strings.get(s));
+		} else {
+			strings.put(s, strings.size());
+			byte[] _bytes = s.getBytes(UTF8);
+			out.writeInt(-2);
+			out.writeInt(_bytes.length);
+			out.write(_bytes);
+		}
+	}
+}
@@ -0,0 +1,170 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opentdc.wtt.CompanyModel;
+
+/**
+ * Snapshot generations: the last K previous snapshots are kept, and a truncated snapshot
+ * is replaced by its newest complete previous generation when it is read.
+ */
+public class SnapshotWriterTest {
+	private static final int GENERATIONS = 2;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void keepLastGenerations() throws Exception {
+		for (SnapshotWriter.Format _format : SnapshotWriter.Format.values()) {
+			File _file = new File(folder.newFolder(_format.name()), "data");
+			SnapshotWriter _writer = new SnapshotWriter(_file, GENERATIONS, _format);
+			for (int i = 1; i <= 5; i++) {
+				_writer.write(snapshot("v" + i));
+			}
+			assertEquals("v5", readTitle(_file));
+			assertEquals("v4", readTitle(generation(_file, 1)));
+			assertEquals("v3", readTitle(generation(_file, 2)));
+			assertFalse(generation(_file, 3).exists());
+			// no temporary files are left behind
+			assertEquals(3, _file.getParentFile().list().length);
+		}
+	}
+
+	@Test
+	public void truncatedSnapshotFallsBack() throws Exception {
+		for (SnapshotWriter.Format _format : SnapshotWriter.Format.values()) {
+			File _file = new File(folder.getRoot(), "data." + _format);
+			SnapshotWriter _writer = new SnapshotWriter(_file, GENERATIONS, _format);
+			for (int i = 1; i <= 3; i++) {
+				_writer.write(snapshot("v" + i));
+			}
+			assertTrue(SnapshotReader.isComplete(_file));
+			truncate(_file);
+			assertFalse(SnapshotReader.isComplete(_file));
+			assertEquals(generation(_file, 1), SnapshotReader.lastComplete(_file));
+			assertEquals("v2", readTitle(new SnapshotReader(null, _file)));
+
+			truncate(generation(_file, 1));
+			assertEquals("v1", readTitle(new SnapshotReader(null, _file)));
+
+			truncate(generation(_file, 2));
+			assertEquals(null, SnapshotReader.lastComplete(_file));
+		}
+	}
+
+	@Test
+	public void truncatedShardFallsBack() throws Exception {
+		for (SnapshotWriter.Format _format : SnapshotWriter.Format.values()) {
+			File _directory = new File(folder.getRoot(), "shards." + _format);
+			ShardedSnapshotStore _store = new ShardedSnapshotStore(_directory, GENERATIONS, _format);
+			List<WttCompany> _company = snapshot("v1");
+			_store.write(_company.get(0));
+			_company.get(0).getModel().setTitle("v2");
+			_store.write(_company.get(0));
+			File[] _shards = _directory.listFiles();
+			for (File _shard : _shards) {
+				if (! _shard.getName().matches(".*\\.(json|bin)")) {
+					continue;
+				}
+				truncate(_shard);
+			}
+			assertEquals("v1", _store.read("c").getModel().getTitle());
+			final List<String> _titles = new ArrayList<String>();
+			_store.readAll(new SnapshotReader.CompanyHandler() {
+				@Override
+				public void handle(WttCompany company) {
+					_titles.add(company.getModel().getTitle());
+				}
+			});
+			assertEquals(Collections.singletonList("v1"), _titles);
+		}
+	}
+
+	private static List<WttCompany> snapshot(
+			String title) {
+		CompanyModel _c = new CompanyModel();
+		_c.setId("c");
+		_c.setTitle(title);
+		WttCompany _company = new WttCompany();
+		_company.setModel(_c);
+		return Collections.singletonList(_company);
+	}
+
+	private static File generation(
+			File file,
+			int i) {
+		return new File(file.getPath() + "." + i);
+	}
+
+	private static void truncate(
+			File file) throws IOException {
+		RandomAccessFile _file = new RandomAccessFile(file, "rw");
+		try {
+			_file.setLength(_file.length() / 2);
+		} finally {
+			_file.close();
+		}
+	}
+
+	private static String readTitle(
+			File file) throws IOException {
+		final List<String> _titles = new ArrayList<String>();
+		new SnapshotReader(null).read(file, new SnapshotReader.CompanyHandler() {
+			@Override
+			public void handle(WttCompany company) {
+				_titles.add(company.getModel().getTitle());
+			}
+		});
+		assertEquals(1, _titles.size());
+		return _titles.get(0);
+	}
+
+	private static String readTitle(
+			SnapshotReader reader) throws IOException {
+		final List<String> _titles = new ArrayList<String>();
+		reader.read(new SnapshotReader.CompanyHandler() {
+			@Override
+			public void handle(WttCompany company) {
+				_titles.add(company.getModel().getTitle());
+			}
+		});
+		assertEquals(1, _titles.size());
+		return _titles.get(0);
+	}
+}
@@ -0,0 +1,158 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+
+import org.opentdc.wtt.ProjectTreeNodeModel;
+
+/**
+ * FileServiceProvider for the unit tests. The static indexes are discarded and initialized again
+ * from a data directory for each test, so that a restart can be simulated by creating a new provider
+ * on the same directory. Resource names are synthetic, so that the resources service is not needed.
+ */
+public class TestServiceProvider extends FileServiceProvider {
+	public static final String PREFIX = "wtt";
+	private static final long NAME_CACHE_TTL = 3600000;
+
+	private TestServiceProvider(
+			ServletContext context)
+					throws IOException {
+		super(context, PREFIX);
+	}
+
+	/**
+	 * Discard the current indexes and import the data in &lt;directory&gt;/wtt.
+	 * 
+	 * @param directory
+	 * @param persistent false to keep all changes in memory only
+	 * @param parameters the servlet context parameters, e.g. wtt.persistenceMode
+	 * @return the new provider
+	 * @throws IOException
+	 */
+	public static TestServiceProvider create(
+			File directory,
+			boolean persistent,
+			Map<String, String> parameters)
+					throws IOException {
+		reset();
+		isPersistent = persistent;
+		new File(directory, PREFIX).mkdirs();
+		TestServiceProvider _provider = new TestServiceProvider(newContext(directory, parameters));
+		resourceNameCache = new ResourceNameCache(new ResourceNameCache.Loader() {
+			@Override
+			public String load(String resourceId) {
+				return "Resource " + resourceId;
+			}
+		}, 10000, NAME_CACHE_TTL);
+		return _provider;
+	}
+
+	/**
+	 * Flush pending writes and discard the static indexes.
+	 */
+	public static void reset() {
+		shutdown();
+		companyIndex = null;
+		journal = null;
+		shardStore = null;
+		dirtyCompanies.clear();
+		residentCompanies = null;
+	}
+
+	/**
+	 * @return a request without a principal
+	 */
+	public static HttpServletRequest newRequest() {
+		return newProxy(HttpServletRequest.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	/**
+	 * @param node
+	 * @return the ids of the projects and resources of a tree, e.g. to compare the trees before and after a restart
+	 */
+	public static String describe(
+			ProjectTreeNodeModel node) {
+		List<String> _children = new ArrayList<String>();
+		for (ProjectTreeNodeModel _child : node.getProjects()) {
+			_children.add(describe(_child));
+		}
+		List<String> _resources = new ArrayList<String>(node.getResources());
+		Collections.sort(_resources);
+		return node.getId() + _resources + _children;
+	}
+
+	private static ServletContext newContext(
+			final File directory,
+			final Map<String, String> parameters) {
+		return newProxy(ServletContext.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("getInitParameter")) {
+					return parameters.get(args[0]);
+				}
+				if (method.getName().equals("getRealPath")) {
+					return new File(directory, (String) args[0]).getPath();
+				}
+				return defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	private static <T> T newProxy(
+			Class<T> type,
+			InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler));
+	}
+
+	private static Object defaultValue(
+			Class<?> type) {
+		if (type == boolean.class) {
+			return Boolean.FALSE;
+		}
+		if (type == int.class) {
+			return 0;
+		}
+		if (type == long.class) {
+			return 0L;
+		}
+		return null;
+	}
+}
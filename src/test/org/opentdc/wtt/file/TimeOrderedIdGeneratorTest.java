@@ -0,0 +1,125 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * Ids of the TimeOrderedIdGenerator are UUIDv7 and strictly increasing, also within one millisecond
+ * and when they are generated on several threads.
+ */
+public class TimeOrderedIdGeneratorTest {
+	private static final int IDS = 20000;
+	private static final int THREADS = 8;
+
+	@Test
+	public void versionAndVariant() {
+		IdGenerator _generator = new TimeOrderedIdGenerator();
+		long _before = System.currentTimeMillis();
+		UUID _id = UUID.fromString(_generator.newId());
+		long _after = System.currentTimeMillis();
+		assertEquals(7, _id.version());
+		assertEquals(2, _id.variant());
+		long _millis = _id.getMostSignificantBits() >>> 16;
+		assertTrue(_millis >= _before && _millis <= _after);
+	}
+
+	/**
+	 * More ids than fit into one millisecond are generated, so that many of them share their timestamp.
+	 */
+	@Test
+	public void increasingWithinOneMillisecond() {
+		IdGenerator _generator = new TimeOrderedIdGenerator();
+		String _previous = _generator.newId();
+		int _sameMillisecond = 0;
+		for (int i = 0; i < IDS; i++) {
+			String _id = _generator.newId();
+			assertTrue(_previous + " < " + _id, _previous.compareTo(_id) < 0);
+			if (millis(_previous) == millis(_id)) {
+				_sameMillisecond++;
+			}
+			assertEquals(7, UUID.fromString(_id).version());
+			_previous = _id;
+		}
+		assertTrue(_sameMillisecond > 0);
+	}
+
+	@Test
+	public void increasingAcrossThreads() throws Exception {
+		final IdGenerator _generator = new TimeOrderedIdGenerator();
+		final CountDownLatch _start = new CountDownLatch(1);
+		final List<List<String>> _ids = new ArrayList<List<String>>();
+		List<Thread> _threads = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS; t++) {
+			final List<String> _threadIds = new ArrayList<String>(IDS);
+			_ids.add(_threadIds);
+			Thread _t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						_start.await();
+					} catch (InterruptedException _ex) {
+						return;
+					}
+					for (int i = 0; i < IDS; i++) {
+						_threadIds.add(_generator.newId());
+					}
+				}
+			};
+			_threads.add(_t);
+			_t.start();
+		}
+		_start.countDown();
+		for (Thread _t : _threads) {
+			_t.join();
+		}
+		// the timestamp and sequence (the most significant bits) are unique across all threads
+		Set<Long> _timestamps = new HashSet<Long>();
+		for (List<String> _threadIds : _ids) {
+			assertEquals(IDS, _threadIds.size());
+			for (int i = 0; i < IDS; i++) {
+				if (i > 0) {
+					assertTrue(_threadIds.get(i - 1).compareTo(_threadIds.get(i)) < 0);
+				}
+				assertTrue(_timestamps.add(UUID.fromString(_threadIds.get(i)).getMostSignificantBits()));
+			}
+		}
+		assertEquals(THREADS * IDS, _timestamps.size());
+	}
+
+	private static long millis(
+			String id) {
+		return UUID.fromString(id).getMostSignificantBits() >>> 16;
+	}
+}
@@ -0,0 +1,251 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opentdc.wtt.CompanyModel;
+import org.opentdc.wtt.ProjectModel;
+
+/**
+ * Updates that are based on the same version conflict: exactly one of them succeeds.
+ * Updates with ANY_VERSION (and the updates of the ServiceProvider interface) are not checked.
+ */
+public class VersionedUpdateTest {
+	private static final int THREADS = 8;
+	private static final int ROUNDS = 20;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileServiceProvider provider;
+	private String compId;
+	private String projId;
+	private String subprojId;
+
+	@Before
+	public void setUp() throws Exception {
+		provider = TestServiceProvider.create(folder.getRoot(), false, new HashMap<String, String>());
+		CompanyModel _c = new CompanyModel();
+		_c.setTitle("Versions");
+		_c.setOrgId("org");
+		compId = provider.createCompany(TestServiceProvider.newRequest(), _c).getId();
+		projId = provider.createProject(TestServiceProvider.newRequest(), compId, newProject("P")).getId();
+		subprojId = provider.createSubproject(TestServiceProvider.newRequest(), compId, projId,
+				newProject("S")).getId();
+	}
+
+	@After
+	public void tearDown() {
+		TestServiceProvider.reset();
+	}
+
+	@Test
+	public void staleCompanyUpdateConflicts() throws Exception {
+		long _version = provider.getCompanyVersion(compId);
+		provider.updateCompany(TestServiceProvider.newRequest(), compId, companyUpdate("first"), _version);
+		assertEquals(_version + 1, provider.getCompanyVersion(compId));
+		try {
+			provider.updateCompany(TestServiceProvider.newRequest(), compId, companyUpdate("second"), _version);
+			fail("an update based on an outdated version succeeded");
+		} catch (ConflictException _ex) {
+			// expected
+		}
+		assertEquals("first", provider.readCompany(compId).getDescription());
+		assertEquals(_version + 1, provider.getCompanyVersion(compId));
+	}
+
+	@Test
+	public void staleProjectUpdateConflicts() throws Exception {
+		long _version = provider.getProjectVersion(compId, projId);
+		provider.updateProject(TestServiceProvider.newRequest(), compId, projId, projectUpdate(projId, "first"), _version);
+		try {
+			provider.updateProject(TestServiceProvider.newRequest(), compId, projId, projectUpdate(projId, "second"), _version);
+			fail("an update based on an outdated version succeeded");
+		} catch (ConflictException _ex) {
+			// expected
+		}
+		assertEquals("first", provider.readProject(compId, projId).getTitle());
+
+		_version = provider.getProjectVersion(compId, subprojId);
+		provider.updateSubproject(TestServiceProvider.newRequest(), compId, projId, subprojId, projectUpdate(subprojId, "first"),
+				_version);
+		try {
+			provider.updateSubproject(TestServiceProvider.newRequest(), compId, projId, subprojId,
+					projectUpdate(subprojId, "second"), _version);
+			fail("an update based on an outdated version succeeded");
+		} catch (ConflictException _ex) {
+			// expected
+		}
+		assertEquals("first", provider.readSubproject(compId, projId, subprojId).getTitle());
+	}
+
+	/**
+	 * Concurrent updates based on the same version: one succeeds, all others conflict.
+	 */
+	@Test
+	public void concurrentUpdatesOfOneVersion() throws Exception {
+		for (int i = 0; i < ROUNDS; i++) {
+			final long _companyVersion = provider.getCompanyVersion(compId);
+			assertEquals(1, runConcurrently(new Update() {
+				@Override
+				public void run(int thread) {
+					provider.updateCompany(TestServiceProvider.newRequest(), compId, companyUpdate("T" + thread),
+							_companyVersion);
+				}
+			}));
+			assertEquals(_companyVersion + 1, provider.getCompanyVersion(compId));
+
+			final long _projectVersion = provider.getProjectVersion(compId, projId);
+			assertEquals(1, runConcurrently(new Update() {
+				@Override
+				public void run(int thread) {
+					provider.updateProject(TestServiceProvider.newRequest(), compId, projId, projectUpdate(projId, "T" + thread),
+							_projectVersion);
+				}
+			}));
+			assertEquals(_projectVersion + 1, provider.getProjectVersion(compId, projId));
+		}
+	}
+
+	/**
+	 * Updates with ANY_VERSION and the unversioned updates always succeed and still increment the version.
+	 */
+	@Test
+	public void anyVersionIsNotChecked() throws Exception {
+		long _companyVersion = provider.getCompanyVersion(compId);
+		assertEquals(0, THREADS - runConcurrently(new Update() {
+			@Override
+			public void run(int thread) {
+				provider.updateCompany(TestServiceProvider.newRequest(), compId, companyUpdate("T" + thread),
+						FileServiceProvider.ANY_VERSION);
+			}
+		}));
+		provider.updateCompany(TestServiceProvider.newRequest(), compId, companyUpdate("last"));
+		assertEquals(_companyVersion + THREADS + 1, provider.getCompanyVersion(compId));
+		assertEquals("last", provider.readCompany(compId).getDescription());
+
+		long _projectVersion = provider.getProjectVersion(compId, projId);
+		assertEquals(0, THREADS - runConcurrently(new Update() {
+			@Override
+			public void run(int thread) {
+				provider.updateProject(TestServiceProvider.newRequest(), compId, projId, projectUpdate(projId, "T" + thread),
+						FileServiceProvider.ANY_VERSION);
+			}
+		}));
+		provider.updateProject(TestServiceProvider.newRequest(), compId, projId, projectUpdate(projId, "last"));
+		assertEquals(_projectVersion + THREADS + 1, provider.getProjectVersion(compId, projId));
+		assertEquals("last", provider.readProject(compId, projId).getTitle());
+	}
+
+	private interface Update {
+		void run(int thread);
+	}
+
+	/**
+	 * Run an update on THREADS threads at once.
+	 * 
+	 * @param update
+	 * @return the number of updates that succeeded; all others must have failed with a ConflictException
+	 * @throws Exception
+	 */
+	private static int runConcurrently(
+			final Update update) throws Exception {
+		final AtomicInteger _succeeded = new AtomicInteger();
+		final AtomicInteger _conflicts = new AtomicInteger();
+		final ConcurrentLinkedQueue<Throwable> _failures = new ConcurrentLinkedQueue<Throwable>();
+		final CountDownLatch _start = new CountDownLatch(1);
+		List<Thread> _threads = new ArrayList<Thread>();
+		for (int t = 0; t < THREADS; t++) {
+			final int _thread = t;
+			Thread _t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						_start.await();
+						update.run(_thread);
+						_succeeded.incrementAndGet();
+					} catch (ConflictException _ex) {
+						_conflicts.incrementAndGet();
+					} catch (Throwable _ex) {
+						_failures.add(_ex);
+					}
+				}
+			};
+			_threads.add(_t);
+			_t.start();
+		}
+		_start.countDown();
+		for (Thread _t : _threads) {
+			_t.join();
+		}
+		if (! _failures.isEmpty()) {
+			throw new AssertionError("update failed: " + _failures.peek(), _failures.peek());
+		}
+		assertEquals(THREADS, _succeeded.get() + _conflicts.get());
+		return _succeeded.get();
+	}
+
+	private CompanyModel companyUpdate(
+			String description) {
+		CompanyModel _current = provider.readCompany(compId);
+		CompanyModel _c = new CompanyModel();
+		_c.setTitle(_current.getTitle());
+		_c.setDescription(description);
+		_c.setOrgId(_current.getOrgId());
+		_c.setCreatedAt(_current.getCreatedAt());
+		_c.setCreatedBy(_current.getCreatedBy());
+		return _c;
+	}
+
+	private ProjectModel projectUpdate(
+			String id,
+			String title) {
+		ProjectModel _current = provider.readProject(compId, id);
+		ProjectModel _p = newProject(title);
+		_p.setCreatedAt(_current.getCreatedAt());
+		_p.setCreatedBy(_current.getCreatedBy());
+		return _p;
+	}
+
+	private static ProjectModel newProject(
+			String title) {
+		ProjectModel _p = new ProjectModel();
+		_p.setTitle(title);
+		return _p;
+	}
+}
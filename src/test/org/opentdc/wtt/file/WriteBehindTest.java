@@ -0,0 +1,149 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opentdc.wtt.CompanyModel;
+import org.opentdc.wtt.ProjectModel;
+
+/**
+ * Write-behind persistence: mutations are coalesced into flushes, and all pending mutations
+ * are flushed when the flusher (or the service) is shut down.
+ */
+public class WriteBehindTest {
+	private static final long NEVER = 3600000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@After
+	public void tearDown() {
+		TestServiceProvider.reset();
+	}
+
+	@Test
+	public void flushOnShutdown() throws Exception {
+		final AtomicInteger _flushes = new AtomicInteger();
+		WriteBehindFlusher _flusher = new WriteBehindFlusher(new Runnable() {
+			@Override
+			public void run() {
+				_flushes.incrementAndGet();
+			}
+		}, NEVER, 100);
+		for (int i = 0; i < 10; i++) {
+			_flusher.markDirty();
+		}
+		assertEquals(10, _flusher.getPendingMutations());
+		assertEquals(0, _flushes.get());
+		_flusher.shutdown();
+		assertEquals(1, _flushes.get());
+		assertEquals(0, _flusher.getPendingMutations());
+		assertTrue(_flusher.getLastFlush() > 0);
+	}
+
+	@Test
+	public void flushWhenMaxPendingIsReached() throws Exception {
+		final CountDownLatch _flushed = new CountDownLatch(1);
+		WriteBehindFlusher _flusher = new WriteBehindFlusher(new Runnable() {
+			@Override
+			public void run() {
+				_flushed.countDown();
+			}
+		}, NEVER, 5);
+		try {
+			for (int i = 0; i < 5; i++) {
+				_flusher.markDirty();
+			}
+			assertTrue(_flushed.await(10, TimeUnit.SECONDS));
+		} finally {
+			_flusher.shutdown();
+		}
+	}
+
+	@Test
+	public void failedFlushIsRetried() throws Exception {
+		final AtomicBoolean _fail = new AtomicBoolean(true);
+		final AtomicInteger _flushes = new AtomicInteger();
+		WriteBehindFlusher _flusher = new WriteBehindFlusher(new Runnable() {
+			@Override
+			public void run() {
+				if (_fail.get()) {
+					throw new IllegalStateException("disk full");
+				}
+				_flushes.incrementAndGet();
+			}
+		}, NEVER, 100);
+		_flusher.markDirty();
+		_flusher.markDirty();
+		_flusher.flush();
+		assertEquals(2, _flusher.getPendingMutations());
+		assertEquals(0, _flusher.getLastFlush());
+		_fail.set(false);
+		_flusher.shutdown();
+		assertEquals(1, _flushes.get());
+		assertEquals(0, _flusher.getPendingMutations());
+	}
+
+	/**
+	 * Mutations that were not flushed yet are written when the service shuts down.
+	 */
+	@Test
+	public void serviceShutdownFlushesPendingMutations() throws Exception {
+		Map<String, String> _parameters = new HashMap<String, String>();
+		_parameters.put("wtt.persistenceMode", "writeBehind");
+		_parameters.put("wtt.writeBehind.interval", String.valueOf(NEVER));
+		_parameters.put("wtt.writeBehind.maxPending", "1000");
+		FileServiceProvider _provider = TestServiceProvider.create(folder.getRoot(), true, _parameters);
+		CompanyModel _c = new CompanyModel();
+		_c.setTitle("Pending");
+		_c.setOrgId("org");
+		String _compId = _provider.createCompany(TestServiceProvider.newRequest(), _c).getId();
+		for (int i = 0; i < 10; i++) {
+			ProjectModel _p = new ProjectModel();
+			_p.setTitle("P" + i);
+			_provider.createProject(TestServiceProvider.newRequest(), _compId, _p);
+		}
+		assertEquals(11, FileServiceProvider.getPendingMutations());
+		assertEquals(0, FileServiceProvider.getLastFlush());
+
+		// restart without the write-behind mode, so that only the data written on shutdown is read
+		TestServiceProvider.reset();
+		_provider = TestServiceProvider.create(folder.getRoot(), true, new HashMap<String, String>());
+		assertEquals("Pending", _provider.readCompany(_compId).getTitle());
+		assertEquals(10, _provider.listProjects(_compId, null, null, 0, 100).size());
+	}
+}
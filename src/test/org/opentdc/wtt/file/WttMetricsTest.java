@@ -0,0 +1,160 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opentdc.service.exception.NotFoundException;
+import org.opentdc.wtt.CompanyModel;
+import org.opentdc.wtt.ProjectModel;
+import org.opentdc.wtt.ResourceRefModel;
+
+/**
+ * Each public operation is recorded once under its name, also if it calls another operation.
+ * The metrics are shared by all providers, therefore only the differences are compared.
+ */
+public class WttMetricsTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private FileServiceProvider provider;
+	private String compId;
+	private String projId;
+
+	@Before
+	public void setUp() throws Exception {
+		provider = TestServiceProvider.create(folder.getRoot(), false, new HashMap<String, String>());
+		CompanyModel _c = new CompanyModel();
+		_c.setTitle("Metrics");
+		_c.setOrgId("org");
+		compId = provider.createCompany(TestServiceProvider.newRequest(), _c).getId();
+		projId = provider.createProject(TestServiceProvider.newRequest(), compId, newProject("A")).getId();
+	}
+
+	@After
+	public void tearDown() {
+		TestServiceProvider.reset();
+	}
+
+	@Test
+	public void batchAndFeedOperationsAreRecorded() throws Exception {
+		long _move = count("moveProject");
+		long _rename = count("renameResource");
+		long _changes = count("listChanges");
+		long _stamp = count("getCompanyStamp");
+		long _addRefs = count("addResourceRefs");
+		long _delete = count("deleteProjects");
+		long _sequence = FileServiceProvider.getChangeSequence();
+
+		String _subprojId = provider.createSubproject(TestServiceProvider.newRequest(), compId, projId,
+				newProject("A1")).getId();
+		provider.moveProject(TestServiceProvider.newRequest(), compId, _subprojId, null, FileServiceProvider.ANY_VERSION);
+		ResourceRefModel _r = new ResourceRefModel();
+		_r.setResourceId("R");
+		provider.addResourceRefs(TestServiceProvider.newRequest(), compId, projId, Arrays.asList(_r));
+		provider.renameResource("R", "Renamed");
+		provider.listChanges(compId, _sequence, 10);
+		provider.getCompanyStamp(compId);
+		provider.deleteProjects(compId, Arrays.asList(_subprojId));
+
+		assertEquals(_move + 1, count("moveProject"));
+		assertEquals(_rename + 1, count("renameResource"));
+		assertEquals(_changes + 1, count("listChanges"));
+		assertEquals(_stamp + 1, count("getCompanyStamp"));
+		assertEquals(_addRefs + 1, count("addResourceRefs"));
+		assertEquals(_delete + 1, count("deleteProjects"));
+	}
+
+	/**
+	 * An operation that delegates to another one is recorded once, under its own name.
+	 */
+	@Test
+	public void nestedOperationsAreRecordedOnce() throws Exception {
+		long _readCompany = count("readCompany");
+		long _getCompany = count("getCompany");
+		long _readAsTree = count("readAsTree");
+		long _renameResource = count("renameResource");
+		long _invalidate = count("invalidateResourceName");
+
+		provider.readCompany(compId);
+		provider.readAsTree(compId);
+		provider.renameResource("R", "Renamed");
+
+		assertEquals(_readCompany + 1, count("readCompany"));
+		assertEquals(_getCompany, count("getCompany"));
+		assertEquals(_readAsTree + 1, count("readAsTree"));
+		assertEquals(_renameResource + 1, count("renameResource"));
+		assertEquals(_invalidate, count("invalidateResourceName"));
+	}
+
+	@Test
+	public void failuresAreCounted() throws Exception {
+		long _errors = errors("readProject");
+		long _readAsTreeErrors = errors("readAsTree");
+		long _readAsTree = count("readAsTree");
+		try {
+			provider.readProject(compId, "unknown");
+			fail("unknown project was read");
+		} catch (NotFoundException _ex) {
+			// expected
+		}
+		try {
+			provider.readAsTree(compId, null, -1, true, provider.getCompanyStamp(compId));
+			fail("unchanged company was read");
+		} catch (NotModifiedException _ex) {
+			// a conditional read is not a failure
+		}
+		assertEquals(_errors + 1, errors("readProject"));
+		assertEquals(_readAsTreeErrors, errors("readAsTree"));
+		assertEquals(_readAsTree + 1, count("readAsTree"));
+	}
+
+	private static long count(
+			String operation) {
+		OperationStatistics _statistics = FileServiceProvider.getMetrics().getOperations().get(operation);
+		return _statistics == null ? 0 : _statistics.getCount();
+	}
+
+	private static long errors(
+			String operation) {
+		OperationStatistics _statistics = FileServiceProvider.getMetrics().getOperations().get(operation);
+		return _statistics == null ? 0 : _statistics.getErrors();
+	}
+
+	private static ProjectModel newProject(
+			String title) {
+		ProjectModel _p = new ProjectModel();
+		_p.setTitle(title);
+		return _p;
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2015 Arbalo AG
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package org.opentdc.wtt.file;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.opentdc.service.exception.ValidationException;
+
+/**
+ * Queries of the search index: validation of the queryType, title prefixes, substrings and attributes.
+ */
+public class WttSearchIndexTest {
+	private static final String SCOPE = "projects";
+
+	private WttSearchIndex index;
+
+	@Before
+	public void setUp() {
+		index = new WttSearchIndex();
+		index.put(SCOPE, new WttSearchIndex.Document("1", "Website Relaunch", "new CMS for the shop", new Date(1000))
+				.attribute(WttSearchIndex.CREATED_BY, "Alice"));
+		index.put(SCOPE, new WttSearchIndex.Document("2", "Shop Migration", "move the webshop to a new host", new Date(2000))
+				.attribute(WttSearchIndex.CREATED_BY, "Bob"));
+		index.put(SCOPE, new WttSearchIndex.Document("3", "Go Live", null, new Date(3000)));
+	}
+
+	@Test(expected = ValidationException.class)
+	public void rejectUnsupportedQueryType() {
+		index.search(SCOPE, "color", "red");
+	}
+
+	@Test(expected = ValidationException.class)
+	public void rejectUnsupportedQueryTypeInEmptyScope() {
+		index.search("empty", "color", "red");
+	}
+
+	@Test(expected = ValidationException.class)
+	public void rejectMalformedRangeInEmptyScope() {
+		index.search("empty", WttSearchIndex.MODIFIED_AT, "yesterday");
+	}
+
+	@Test
+	public void searchEmptyScope() {
+		assertEquals(Collections.emptySet(), index.search("empty", WttSearchIndex.TITLE, "web"));
+		assertEquals(Collections.emptySet(), index.search("empty", WttSearchIndex.ORG_ID, "org"));
+	}
+
+	@Test
+	public void searchTitlePrefixes() {
+		assertEquals(ids("1"), index.search(SCOPE, WttSearchIndex.TITLE, "web rel"));
+		assertEquals(ids(), index.search(SCOPE, WttSearchIndex.TITLE, "launch"));
+	}
+
+	@Test
+	public void searchSubstrings() {
+		assertEquals(ids("1", "2"), index.search(SCOPE, WttSearchIndex.TEXT, "shop"));
+		assertEquals(ids("1"), index.search(SCOPE, WttSearchIndex.TEXT, "launch"));
+		assertEquals(ids("2"), index.search(SCOPE, WttSearchIndex.TEXT, "webshop to"));
+		assertEquals(ids(), index.search(SCOPE, WttSearchIndex.TEXT, "shop to a new cms"));
+		// shorter than a trigram
+		assertEquals(ids("3"), index.search(SCOPE, WttSearchIndex.TEXT, "li"));
+	}
+
+	@Test
+	public void searchSubstringsAfterChanges() {
+		index.update(new WttSearchIndex.Document("1", "Website", null, new Date(4000)));
+		index.remove("2");
+		assertEquals(ids(), index.search(SCOPE, WttSearchIndex.TEXT, "shop"));
+		assertEquals(ids("1"), index.search(SCOPE, WttSearchIndex.TEXT, "bsit"));
+	}
+
+	@Test
+	public void searchAttributesAndRanges() {
+		assertEquals(ids("2"), index.search(SCOPE, WttSearchIndex.CREATED_BY, "BOB"));
+		assertEquals(ids(), index.search(SCOPE, WttSearchIndex.RESOURCE_ID, "r1"));
+		assertEquals(ids("2", "3"), index.search(SCOPE, WttSearchIndex.MODIFIED_AT, "1500.."));
+	}
+
+	private static HashSet<String> ids(
+			String... ids) {
+		return new HashSet<String>(Arrays.asList(ids));
+	}
+}